@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard;
+
+import org.nightcode.javacard.channel.ApduChannel;
+import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.channel.key.KeyProvider;
+import org.nightcode.javacard.channel.key.KeySet;
+import org.nightcode.javacard.channel.scp.ScpVersion;
+import org.nightcode.javacard.common.CardProperties;
+import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.util.Hexs;
+
+import java.util.EnumSet;
+
+public final class BenchmarkSupport {
+
+  public static final Hexs HEX = Hexs.hex();
+
+  public static CardChannelContext createContext(ApduChannel channel) {
+    CardProperties cardProperties = CardProperties.builder().keyVersionNumber((byte) 0xFF).build();
+
+    CardChannelContext context = CardChannelContext.builder()
+        .channel(channel)
+        .cardProperties(cardProperties)
+        .keyProvider(KeyProvider.DEFAULT)
+        .maxLength(0xFF)
+        .build();
+    context.setScpVersion(ScpVersion.SCP_02);
+
+    return context;
+  }
+
+  public static void deriveSessionKeys(CardChannelContext context, String sequenceCounter)
+      throws JavaCardException {
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    context.setSessionKeys(keySet.deriveSessionKeys(context.getCardProperties(), HEX.toByteArray(sequenceCounter)));
+  }
+
+  /**
+   * Parses a comma separated list of {@link SecurityLevel} names.
+   */
+  public static EnumSet<SecurityLevel> securityLevel(String names) {
+    EnumSet<SecurityLevel> result = EnumSet.noneOf(SecurityLevel.class);
+    for (String name : names.split(",")) {
+      result.add(SecurityLevel.valueOf(name.trim()));
+    }
+    return result;
+  }
+
+  private BenchmarkSupport() {
+    // do nothing
+  }
+}
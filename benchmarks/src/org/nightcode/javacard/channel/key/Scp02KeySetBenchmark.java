@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.BenchmarkSupport;
+import org.nightcode.javacard.JavaCardException;
+import org.nightcode.javacard.channel.scp.ScpVersion;
+import org.nightcode.javacard.common.CardProperties;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Scp02KeySetBenchmark {
+
+  private static final byte[] SEQUENCE_COUNTER = BenchmarkSupport.HEX.toByteArray("006D");
+
+  private CardProperties cardProperties;
+  private KeySet keySet;
+
+  @Setup public void setUp() throws JavaCardException {
+    cardProperties = CardProperties.builder().keyVersionNumber((byte) 0xFF).build();
+    keySet = KeySet.of(ScpVersion.SCP_02, KeyProvider.DEFAULT);
+  }
+
+  @Benchmark public SessionKeys deriveSessionKeys() {
+    return keySet.deriveSessionKeys(cardProperties, SEQUENCE_COUNTER);
+  }
+}
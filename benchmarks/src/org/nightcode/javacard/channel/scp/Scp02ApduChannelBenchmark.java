@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.BenchmarkSupport;
+import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.channel.key.KeyUsage;
+import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * In place wrapping of a command and unwrapping of a 32 bytes response for
+ * every meaningful security level and a range of command payload sizes.
+ * The largest payload is the maximum data length that fits a short APDU
+ * once C-MAC and padding are added.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Scp02ApduChannelBenchmark {
+
+  private static final byte[] ICV = BenchmarkSupport.HEX.toByteArray("94373CCB68A4C173");
+  private static final int RESPONSE_DATA_LENGTH = 32;
+
+  @Param({"C_MAC", "C_MAC,C_DECRYPTION", "C_MAC,R_MAC", "C_MAC,C_DECRYPTION,R_MAC"})
+  public String securityLevel;
+
+  @Param({"0", "1", "8", "16", "64", "128", "239"})
+  public int payloadSize;
+
+  private Scp02ApduChannel channel;
+
+  private byte[] command;
+  private ByteBuffer commandBuffer;
+
+  private byte[] response;
+  private ByteBuffer responseBuffer;
+
+  @Setup public void setUp() throws Exception {
+    CardChannelContext context = BenchmarkSupport.createContext(request -> {
+      throw new UnsupportedOperationException();
+    });
+    BenchmarkSupport.deriveSessionKeys(context, "006D");
+    EnumSet<SecurityLevel> level = BenchmarkSupport.securityLevel(securityLevel);
+
+    Random random = new Random(payloadSize);
+    byte[] data = new byte[payloadSize];
+    random.nextBytes(data);
+    command = (payloadSize == 0) ? new byte[] {(byte) 0x80, (byte) 0xE2, 0x00, 0x00} : apdu(data);
+    commandBuffer = ByteBuffer.allocate(Scp02Session.wrappedLength(command.length));
+
+    channel = new Scp02ApduChannel(context, level, ICV);
+    channel.setRicv(ICV);
+    // the R-MAC header is captured from the (constant) unsecured command
+    wrap();
+
+    byte[] responseData = new byte[RESPONSE_DATA_LENGTH];
+    random.nextBytes(responseData);
+    if (level.contains(SecurityLevel.R_MAC)) {
+      byte[] rMac = rMac(context.getSessionKeys().getDesEde(KeyUsage.R_MAC).getEncoded(), responseData);
+      response = new byte[RESPONSE_DATA_LENGTH + rMac.length + 2];
+      System.arraycopy(rMac, 0, response, RESPONSE_DATA_LENGTH, rMac.length);
+    } else {
+      response = new byte[RESPONSE_DATA_LENGTH + 2];
+    }
+    System.arraycopy(responseData, 0, response, 0, RESPONSE_DATA_LENGTH);
+    response[response.length - 2] = (byte) 0x90;
+    response[response.length - 1] = 0x00;
+    responseBuffer = ByteBuffer.allocate(response.length);
+  }
+
+  @Benchmark public ByteBuffer wrap() throws Exception {
+    commandBuffer.clear();
+    commandBuffer.put(command).flip();
+    channel.wrap(commandBuffer);
+    return commandBuffer;
+  }
+
+  @Benchmark public ByteBuffer unwrap() throws Exception {
+    channel.setRicv(ICV);
+    responseBuffer.clear();
+    responseBuffer.put(response).flip();
+    channel.unwrap(responseBuffer);
+    return responseBuffer;
+  }
+
+  private static byte[] apdu(byte[] data) {
+    byte[] apdu = new byte[5 + data.length];
+    apdu[0] = (byte) 0x80;
+    apdu[1] = (byte) 0xE2;
+    apdu[4] = (byte) data.length;
+    System.arraycopy(data, 0, apdu, 5, data.length);
+    return apdu;
+  }
+
+  private byte[] rMac(byte[] key, byte[] responseData) {
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(key);
+    macAlgorithm.init(ICV);
+    macAlgorithm.update((byte) (command[0] & 0xF8));
+    macAlgorithm.update(command, 1, command.length - 1);
+    macAlgorithm.update((byte) responseData.length);
+    macAlgorithm.update(responseData, 0, responseData.length);
+    macAlgorithm.update((byte) 0x90);
+    macAlgorithm.update((byte) 0x00);
+    byte[] mac = new byte[MacAlgorithm3.BLOCK_SIZE];
+    macAlgorithm.doFinalPadded(mac, 0);
+    return mac;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.BenchmarkSupport;
+import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.common.Apdu;
+import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.util.ByteArrayGenerator;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * INITIALIZE UPDATE and EXTERNAL AUTHENTICATE against a scripted card that
+ * replays a recorded INITIALIZE UPDATE response, i.e. session key derivation,
+ * card cryptogram verification and host cryptogram generation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Scp02SessionBenchmark {
+
+  private static final byte[] HOST_CHALLENGE = BenchmarkSupport.HEX.toByteArray("E4C522735415CC5C");
+
+  private static final ResponseAPDU INITIALIZE_UPDATE_RESPONSE = new ResponseAPDU(
+      BenchmarkSupport.HEX.toByteArray("0000000000000000000001020002D9857D532F04EFA4524D0C2472659000"));
+  private static final ResponseAPDU SW_NO_ERROR = new ResponseAPDU(new byte[] {(byte) 0x90, 0x00});
+
+  @Param({"C_MAC", "C_MAC,C_DECRYPTION", "C_MAC,C_DECRYPTION,R_MAC"})
+  public String securityLevel;
+
+  private final ByteArrayGenerator hostChallengeGenerator = size -> HOST_CHALLENGE.clone();
+
+  // keeps the configured level, loggers are only weakly referenced by the LogManager
+  private Logger sessionLogger;
+
+  private CardChannelContext context;
+  private EnumSet<SecurityLevel> level;
+
+  @Setup public void setUp() {
+    sessionLogger = Logger.getLogger(Scp02Session.class.getName());
+    sessionLogger.setLevel(Level.WARNING);
+
+    context = BenchmarkSupport.createContext(request -> (request.getINS() == (Apdu.INS_INITIALIZE_UPDATE & 0xFF))
+        ? INITIALIZE_UPDATE_RESPONSE : SW_NO_ERROR);
+    level = BenchmarkSupport.securityLevel(securityLevel);
+  }
+
+  @Benchmark public Scp02Session openSecureChannel() throws Exception {
+    Scp02Session session = new Scp02Session(context, hostChallengeGenerator);
+    session.openSecureChannel(level);
+    return session;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * C-MAC of many concurrent sessions: every benchmark thread is a session with
+ * its own key, computing either with its own {@link MacAlgorithm3} or through
+ * the shared {@link BatchMacEngine}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class BatchMacEngineBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class SharedEngine {
+    final BatchMacEngine engine = new BatchMacEngine();
+  }
+
+  @State(Scope.Thread)
+  public static class Session {
+    @Param({"16", "64"})
+    public int length;
+
+    BatchMacEngine.MacKey macKey;
+    MacAlgorithm3 macAlgorithm;
+    byte[] input;
+    final byte[] icv = new byte[8];
+
+    @Setup public void setUp() {
+      Random random = new Random(Thread.currentThread().getId());
+      byte[] key = new byte[16];
+      random.nextBytes(key);
+      macKey = BatchMacEngine.macKey(key);
+      macAlgorithm = new MacAlgorithm3(new TableDesCryptoBackend(), key);
+      input = new byte[length];
+      random.nextBytes(input);
+    }
+  }
+
+  @Benchmark public byte[] macAlgorithm3(Session session) {
+    session.macAlgorithm.mac(session.icv, session.input, 0, session.length, session.icv, 0);
+    return session.icv;
+  }
+
+  @Benchmark public byte[] batchMacEngine(SharedEngine shared, Session session) {
+    shared.engine.mac(session.macKey, session.icv, session.input, 0, session.length, session.icv, 0);
+    return session.icv;
+  }
+}
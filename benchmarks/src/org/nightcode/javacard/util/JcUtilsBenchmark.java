@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import org.nightcode.javacard.channel.scp.ScpVersion;
+import org.nightcode.tools.ber.BerFrame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the Card Recognition Data (tag '73') returned in the FCI of a
+ * GlobalPlatform 2.1.1 / SCP02 i=15 security domain.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JcUtilsBenchmark {
+
+  private static final byte[] CARD_RECOGNITION_DATA = Hexs.hex().toByteArray(
+      "734A06072A864886FC6B01600C060A2A864886FC6B02020101630906072A864886FC6B03640B06092A864886FC6B040215"
+      + "650B06092B8510864864020103660C060A2B060104012A026E0102");
+
+  private final BerFrame cardRecognitionData = BerFrame.parseFrom(CARD_RECOGNITION_DATA);
+
+  @Benchmark public BerFrame parseFrame() {
+    return BerFrame.parseFrom(CARD_RECOGNITION_DATA);
+  }
+
+  @Benchmark public void parseCardRecognitionData(Blackhole blackhole) {
+    BerFrame frame = BerFrame.parseFrom(CARD_RECOGNITION_DATA);
+    blackhole.consume(JcUtils.isGlobalPlatform(frame));
+    blackhole.consume(JcUtils.getGlobalPlatformVersion(frame));
+    blackhole.consume(JcUtils.getScpVersion(frame));
+    blackhole.consume(JcUtils.getScpImplementationOptions(frame));
+    blackhole.consume(JcUtils.getJavaCardVersion(frame));
+  }
+
+  @Benchmark public ScpVersion getScpVersion() {
+    return JcUtils.getScpVersion(cardRecognitionData);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * A channel that exchanges APDUs without blocking the calling thread.
+ */
+public interface AsyncApduChannel {
+
+  /**
+   * Runs the commands of a blocking {@link ApduChannel}, e.g. a {@link PlainApduChannel} or a
+   * secure channel session, on an executor one at a time and in submission order. The executor
+   * may be shared by the channels of many readers: no thread is bound to a channel while its
+   * queue is empty.
+   */
+  final class ExecutorApduChannel implements AsyncApduChannel {
+
+    private static final int DRAIN_BATCH = 16;
+
+    private final ApduChannel channel;
+    private final Executor executor;
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private ExecutorApduChannel(ApduChannel channel, Executor executor) {
+      this.channel = channel;
+      this.executor = executor;
+    }
+
+    @Override public CompletionStage<ResponseAPDU> transmitAsync(CommandAPDU request) {
+      return submit(() -> channel.transmit(request));
+    }
+
+    /**
+     * Runs {@code task}, e.g. a secure channel handshake, in order with the transmitted commands.
+     */
+    public <T> CompletionStage<T> submit(Callable<T> task) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      Runnable command = () -> {
+        try {
+          result.complete(task.call());
+        } catch (Throwable ex) {
+          result.completeExceptionally(ex);
+        }
+      };
+      queue.add(command);
+      try {
+        schedule();
+      } catch (RuntimeException ex) {
+        queue.remove(command);
+        result.completeExceptionally(ex);
+      }
+      return result;
+    }
+
+    /**
+     * Runs queued tasks; a busy channel gives the executor thread back after a batch of tasks,
+     * so that it does not starve the other channels sharing the executor.
+     */
+    private void drain() {
+      Runnable task;
+      for (int n = 0; n < DRAIN_BATCH && (task = queue.poll()) != null; n++) {
+        task.run();
+      }
+      scheduled.set(false);
+      if (!queue.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          executor.execute(this::drain);
+        } catch (RuntimeException ex) {
+          scheduled.set(false);
+          throw ex;
+        }
+      }
+    }
+  }
+
+  static ExecutorApduChannel of(ApduChannel channel, Executor executor) {
+    return new ExecutorApduChannel(channel, executor);
+  }
+
+  /**
+   * Transmits the command APDU; the returned stage completes with the response APDU or
+   * exceptionally if the exchange failed.
+   */
+  CompletionStage<ResponseAPDU> transmitAsync(CommandAPDU request);
+}
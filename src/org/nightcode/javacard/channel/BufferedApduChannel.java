@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link ApduChannel} that can exchange APDUs through caller-owned buffers,
+ * following the contract of {@link javax.smartcardio.CardChannel#transmit(ByteBuffer, ByteBuffer)}.
+ */
+public interface BufferedApduChannel extends ApduChannel {
+
+  int MIN_RESPONSE_CAPACITY = 258;
+
+  /**
+   * Transmits the command APDU located between the command buffer's position and limit
+   * and writes the response APDU (data and status word) to the response buffer starting
+   * at its position. On return the command buffer's position equals its limit and the
+   * response buffer's position is advanced by the length of the response.
+   *
+   * @param command the buffer containing the command APDU
+   * @param response the buffer that shall receive the response APDU
+   * @return the length of the received response APDU
+   * @throws IOException if the exchange failed
+   */
+  int transmit(ByteBuffer command, ByteBuffer response) throws IOException;
+}
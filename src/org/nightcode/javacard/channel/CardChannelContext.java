@@ -16,18 +16,30 @@ package org.nightcode.javacard.channel;
 
 import org.nightcode.javacard.channel.key.KeyProvider;
 import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.channel.scp.Scp02KeyPredictions;
 import org.nightcode.javacard.channel.scp.ScpVersion;
 import org.nightcode.javacard.common.Aid;
 import org.nightcode.javacard.common.CardProperties;
+import org.nightcode.javacard.crypto.BatchMacEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.crypto.CryptoBackends;
+import org.nightcode.javacard.util.ByteArrayGenerator;
 import org.nightcode.javacard.util.JcUtils;
 import org.nightcode.tools.ber.BerFrame;
 
+import java.util.concurrent.Executor;
+
 import javax.annotation.Nullable;
 
 public final class CardChannelContext {
 
   public static final class Builder {
+    private BatchMacEngine batchMacEngine;
+    private ByteArrayGenerator byteArrayGenerator;
     private ApduChannel channel;
+    private CryptoBackend cryptoBackend;
+    private Executor keyDerivationExecutor;
+    private Scp02KeyPredictions keyPredictions;
     private KeyProvider keyProvider;
 
     private CardProperties cardProperties;
@@ -43,6 +55,16 @@ public final class CardChannelContext {
       return new CardChannelContext(this);
     }
 
+    public Builder batchMacEngine(BatchMacEngine val) {
+      batchMacEngine = val;
+      return this;
+    }
+
+    public Builder byteArrayGenerator(ByteArrayGenerator val) {
+      byteArrayGenerator = val;
+      return this;
+    }
+
     public Builder cardProperties(CardProperties val) {
       cardProperties = val;
       return this;
@@ -58,6 +80,21 @@ public final class CardChannelContext {
       return this;
     }
 
+    public Builder cryptoBackend(CryptoBackend val) {
+      cryptoBackend = val;
+      return this;
+    }
+
+    public Builder keyDerivationExecutor(Executor val) {
+      keyDerivationExecutor = val;
+      return this;
+    }
+
+    public Builder keyPredictions(Scp02KeyPredictions val) {
+      keyPredictions = val;
+      return this;
+    }
+
     public Builder keyProvider(KeyProvider val) {
       keyProvider = val;
       return this;
@@ -83,14 +120,24 @@ public final class CardChannelContext {
   private final int maxLength;
   private final Aid sdAid;
 
+  private final BatchMacEngine batchMacEngine;
+  private final ByteArrayGenerator byteArrayGenerator;
   private final ApduChannel channel;
+  private final CryptoBackend cryptoBackend;
+  private final Executor keyDerivationExecutor;
+  private final Scp02KeyPredictions keyPredictions;
   private final KeyProvider keyProvider;
 
   private volatile ScpVersion scpVersion;
   private volatile SessionKeys sessionKeys;
 
   private CardChannelContext(Builder builder) {
+    batchMacEngine = builder.batchMacEngine;
+    byteArrayGenerator = builder.byteArrayGenerator;
     channel = builder.channel;
+    cryptoBackend = builder.cryptoBackend;
+    keyDerivationExecutor = builder.keyDerivationExecutor;
+    keyPredictions = builder.keyPredictions;
     keyProvider = builder.keyProvider;
 
     cardProperties = builder.cardProperties;
@@ -106,10 +153,31 @@ public final class CardChannelContext {
     }
   }
 
+  /**
+   * Returns the engine shared by the sessions to compute C-MACs in batches, if any.
+   */
+  @Nullable public BatchMacEngine batchMacEngine() {
+    return batchMacEngine;
+  }
+
+  /**
+   * Returns the generator of host challenges shared by the sessions, if any.
+   */
+  @Nullable public ByteArrayGenerator byteArrayGenerator() {
+    return byteArrayGenerator;
+  }
+
   public ApduChannel channel() {
     return channel;
   }
 
+  /**
+   * Returns the crypto backend of the session, {@link CryptoBackends#defaultBackend()} if none is set.
+   */
+  public CryptoBackend cryptoBackend() {
+    return (cryptoBackend != null) ? cryptoBackend : CryptoBackends.defaultBackend();
+  }
+
   public CardProperties getCardProperties() {
     return cardProperties;
   }
@@ -134,6 +202,22 @@ public final class CardChannelContext {
     return sdAid;
   }
 
+  /**
+   * Returns the executor that derives the session keys of the card's next sequence counter after
+   * each handshake, {@code null} if speculative derivation is disabled.
+   */
+  @Nullable public Executor keyDerivationExecutor() {
+    return keyDerivationExecutor;
+  }
+
+  /**
+   * Returns the speculative derivations shared with the contexts of other connections, if any.
+   * Without them a prediction is only used when the same session object is opened again.
+   */
+  @Nullable public Scp02KeyPredictions keyPredictions() {
+    return keyPredictions;
+  }
+
   public KeyProvider keyProvider() {
     return keyProvider;
   }
@@ -60,6 +60,7 @@ public class CardChannelServiceImpl implements CardChannelService {
 
   @Override public CardChannelContext createCardChannelContext(CardProperties properties, ApduChannel channel)
       throws JavaCardException {
+    channel = responseChaining(channel);
     CommandAPDU command = new CommandAPDU(CLA_ISO7816, INS_SELECT, P1_SELECT_BY_NAME, P2_SELECT_FIRST_OR_ONLY
         , DEF_MAX_RESPONSE_LENGTH);
     ResponseAPDU response;
@@ -80,6 +81,7 @@ public class CardChannelServiceImpl implements CardChannelService {
 
   @Override public CardChannelContext createCardChannelContext(CardProperties properties, ApduChannel channel,
       Aid aid) throws JavaCardException {
+    channel = responseChaining(channel);
     CommandAPDU command = new CommandAPDU(CLA_ISO7816, INS_SELECT, P1_SELECT_BY_NAME, P2_SELECT_FIRST_OR_ONLY
         , aid.array(), DEF_MAX_RESPONSE_LENGTH);
     ResponseAPDU response;
@@ -103,6 +105,16 @@ public class CardChannelServiceImpl implements CardChannelService {
     throw new JavaCardException("unsupported SCP version %s", context.getScpVersion());
   }
 
+  /**
+   * Installs response chaining beneath the secure channel sessions created for the context.
+   */
+  private static ApduChannel responseChaining(ApduChannel channel) {
+    if (channel instanceof ResponseChainingApduChannel) {
+      return channel;
+    }
+    return new ResponseChainingApduChannel(channel);
+  }
+
   private CardChannelContext createCardChannelContext(CardProperties properties, ApduChannel channel,
       byte[] selectResponseData) {
     CardChannelContext.Builder builder = CardChannelContext.builder()
@@ -140,7 +152,7 @@ public class CardChannelServiceImpl implements CardChannelService {
     byte[] content = proprietaryData.getContent(TAG_MAX_LENGTH_OF_DATA_FIELD);
     if (content != null) {
       for (int i = 0; i < content.length; i++) {
-        maxLength = (maxLength << (8 * i)) + (content[i] & 0xFF);
+        maxLength = (maxLength << 8) + (content[i] & 0xFF);
       }
     }
     builder.maxLength(maxLength);
@@ -17,6 +17,7 @@ package org.nightcode.javacard.channel;
 import org.nightcode.javacard.util.Hexs;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,7 +26,7 @@ import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
-public class PlainApduChannel implements ApduChannel {
+public class PlainApduChannel implements BufferedApduChannel {
 
   private static final Logger LOGGER = Logger.getLogger(PlainApduChannel.class.getName());
 
@@ -38,15 +39,40 @@ public class PlainApduChannel implements ApduChannel {
   }
 
   @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
-    LOGGER.log(Level.FINER, String.format("  >>>> %s %s",  HEX.fromByteArray(request.getBytes(), 0, 4)
-        , HEX.fromByteArray(request.getBytes(), 4, request.getBytes().length - 4)));
+    if (LOGGER.isLoggable(Level.FINER)) {
+      byte[] apdu = request.getBytes();
+      LOGGER.log(Level.FINER, String.format("  >>>> %s %s", HEX.fromByteArray(apdu, 0, 4)
+          , HEX.fromByteArray(apdu, 4, apdu.length - 4)));
+    }
     ResponseAPDU response;
     try {
       response = channel.transmit(request);
     } catch (CardException ex) {
       throw new IOException(ex);
     }
-    LOGGER.log(Level.FINER, String.format("  <<<< %s %04X", HEX.fromByteArray(response.getData()), response.getSW()));
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, String.format("  <<<< %s %04X", HEX.fromByteArray(response.getData()), response.getSW()));
+    }
     return response;
   }
+
+  @Override public int transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+    if (LOGGER.isLoggable(Level.FINER)) {
+      int position = command.position();
+      LOGGER.log(Level.FINER, String.format("  >>>> %s %s", HEX.fromByteBuffer(command, position, 4)
+          , HEX.fromByteBuffer(command, position + 4, command.remaining() - 4)));
+    }
+    int start = response.position();
+    int length;
+    try {
+      length = channel.transmit(command, response);
+    } catch (CardException ex) {
+      throw new IOException(ex);
+    }
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, String.format("  <<<< %s %02X%02X", HEX.fromByteBuffer(response, start, length - 2)
+          , response.get(start + length - 2), response.get(start + length - 1)));
+    }
+    return length;
+  }
 }
@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import org.nightcode.javacard.util.ByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import static org.nightcode.javacard.common.Apdu.INS_GET_RESPONSE;
+import static org.nightcode.javacard.common.Apdu.SW1_BYTES_AVAILABLE;
+import static org.nightcode.javacard.common.Apdu.SW1_WRONG_LE;
+
+/**
+ * A decorator that returns a single logical response for commands the card answers with
+ * '61xx' (response bytes still available) or '6Cxx' (wrong Le): it re-sends a command with
+ * the Le given by the card and fetches the remaining response bytes with GET RESPONSE.
+ * The response pieces are collected in a buffer from a {@link ByteBufferPool}, which is grown
+ * before an exchange whose Ne exceeds it. Placed beneath a secure channel the R-MAC of the
+ * response is verified over the assembled response. A chained response is limited to
+ * {@value #MAX_RESPONSE_DATA_LENGTH} data bytes.
+ * <p>
+ * The {@code javax.smartcardio} provider of the JDK handles these status words itself unless
+ * disabled by the {@code sun.security.smartcardio.t0GetResponse} and {@code t1GetResponse}
+ * system properties; this channel covers other transports and providers.
+ */
+public class ResponseChainingApduChannel implements BufferedApduChannel {
+
+  /**
+   * The maximum Ne of an extended length command followed by a secure messaging MAC.
+   */
+  public static final int MAX_RESPONSE_DATA_LENGTH = 65536 + 8;
+
+  private static final int DEF_BUFFER_SIZE = 512;
+  private static final int DEF_MAX_POOLED_BUFFERS = 4;
+
+  private static final int HEADER_LENGTH = 4;
+  private static final int OFFSET_LC = 4;
+  private static final int SWS_LENGTH = 2;
+  private static final int TRAILER_LENGTH = 8;
+
+  private final ApduChannel channel;
+  private final ByteBufferPool bufferPool;
+
+  public ResponseChainingApduChannel(ApduChannel channel) {
+    this(channel, new ByteBufferPool(DEF_MAX_POOLED_BUFFERS, DEF_BUFFER_SIZE, false));
+  }
+
+  public ResponseChainingApduChannel(ApduChannel channel, ByteBufferPool bufferPool) {
+    if (bufferPool.bufferSize() < MIN_RESPONSE_CAPACITY) {
+      throw new IllegalArgumentException("bufferSize [" + bufferPool.bufferSize() + "] must be at least "
+          + MIN_RESPONSE_CAPACITY);
+    }
+    this.channel = channel;
+    this.bufferPool = bufferPool;
+  }
+
+  @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
+    ByteBuffer response = exchange(ByteBuffer.wrap(request.getBytes()));
+    try {
+      byte[] apdu = new byte[response.remaining()];
+      response.get(apdu);
+      return new ResponseAPDU(apdu);
+    } finally {
+      bufferPool.release(response);
+    }
+  }
+
+  /**
+   * Transmits the command and writes the complete response to the response buffer. The content
+   * of the command buffer is not modified, a command re-sent with another Le is a copy.
+   */
+  @Override public int transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+    ByteBuffer assembled = exchange(command);
+    try {
+      int length = assembled.remaining();
+      response.put(assembled);
+      return length;
+    } finally {
+      bufferPool.release(assembled);
+    }
+  }
+
+  /**
+   * Returns a buffer of the pool holding the complete response between position 0 and its limit.
+   */
+  private ByteBuffer exchange(ByteBuffer command) throws IOException {
+    int commandStart = command.position();
+    int commandLength = command.remaining();
+    byte cla = command.get(commandStart);
+    int leLength = leLength(command, commandStart);
+    ByteBuffer response = bufferPool.acquire();
+    try {
+      response = ensureCapacity(response, 0, responseCapacity(ne(command, commandStart + commandLength, leLength)));
+      response = exchange(command, response, 0);
+      int length = response.position();
+      if ((response.get(length - 2) & 0xFF) == SW1_WRONG_LE && leLength > 0) {
+        byte[] apdu = new byte[commandLength];
+        ByteBuffer source = command.duplicate();
+        source.limit(commandStart + commandLength).position(commandStart);
+        source.get(apdu);
+        if (leLength == 2) {
+          apdu[commandLength - 2] = 0x00;
+        }
+        apdu[commandLength - 1] = response.get(length - 1);
+        response = ensureCapacity(response, 0, responseCapacity(ne(ByteBuffer.wrap(apdu), commandLength, leLength)));
+        response = exchange(ByteBuffer.wrap(apdu), response, 0);
+        length = response.position();
+      }
+      while ((response.get(length - 2) & 0xFF) == SW1_BYTES_AVAILABLE) {
+        int dataLength = length - SWS_LENGTH;
+        byte le = response.get(length - 1);
+        int ne = (le == 0) ? 256 : (le & 0xFF);
+        if (dataLength + ne > MAX_RESPONSE_DATA_LENGTH) {
+          throw new IOException("chained response exceeds " + MAX_RESPONSE_DATA_LENGTH + " bytes");
+        }
+        ByteBuffer getResponse = ByteBuffer.wrap(new byte[] {(byte) (cla & 0x03), INS_GET_RESPONSE, 0x00, 0x00, le});
+        response = ensureCapacity(response, dataLength, dataLength + responseCapacity(ne));
+        response = exchange(getResponse, response, dataLength);
+        if (response.position() == length && (response.get(length - 2) & 0xFF) == SW1_BYTES_AVAILABLE) {
+          throw new IOException("GET RESPONSE returned no data");
+        }
+        length = response.position();
+      }
+      response.limit(length).position(0);
+      return response;
+    } catch (IOException | RuntimeException ex) {
+      bufferPool.release(response);
+      throw ex;
+    }
+  }
+
+  /**
+   * Transmits the command and writes the response to {@code response} starting at {@code offset}.
+   * Returns the buffer holding the response, which is {@code response} or a grown copy of it,
+   * with the position at the end of the response.
+   */
+  private ByteBuffer exchange(ByteBuffer command, ByteBuffer response, int offset) throws IOException {
+    response.clear().position(offset);
+    int length;
+    if (channel instanceof BufferedApduChannel) {
+      length = ((BufferedApduChannel) channel).transmit(command, response);
+    } else {
+      byte[] apdu = new byte[command.remaining()];
+      command.get(apdu);
+      byte[] responseApdu = channel.transmit(new CommandAPDU(apdu)).getBytes();
+      response = ensureCapacity(response, offset, offset + responseApdu.length);
+      response.clear().position(offset);
+      response.put(responseApdu);
+      length = responseApdu.length;
+    }
+    if (length < SWS_LENGTH) {
+      throw new IOException("invalid response APDU length " + length);
+    }
+    response.position(offset + length);
+    return response;
+  }
+
+  /**
+   * Returns {@code buffer} if its capacity suffices, otherwise a larger buffer holding the first
+   * {@code length} bytes of it. The position of the returned buffer is not defined.
+   */
+  private ByteBuffer ensureCapacity(ByteBuffer buffer, int length, int capacity) {
+    if (buffer.capacity() >= capacity) {
+      return buffer;
+    }
+    ByteBuffer grown = buffer.isDirect()
+        ? ByteBuffer.allocateDirect(Math.max(2 * buffer.capacity(), capacity))
+        : ByteBuffer.allocate(Math.max(2 * buffer.capacity(), capacity));
+    buffer.limit(length).position(0);
+    grown.put(buffer);
+    bufferPool.release(buffer);
+    return grown;
+  }
+
+  /**
+   * Returns the buffer capacity needed for a response of up to {@code ne} data bytes, a secure
+   * messaging trailer and the status word.
+   */
+  private static int responseCapacity(int ne) {
+    return Math.max(MIN_RESPONSE_CAPACITY, ne + TRAILER_LENGTH + SWS_LENGTH);
+  }
+
+  /**
+   * Returns Ne of the command ending at {@code end} whose Le field has {@code leLength} bytes.
+   */
+  private static int ne(ByteBuffer command, int end, int leLength) {
+    if (leLength == 1) {
+      int le = command.get(end - 1) & 0xFF;
+      return (le == 0) ? 256 : le;
+    }
+    if (leLength == 2) {
+      int le = ((command.get(end - 2) & 0xFF) << 8) | (command.get(end - 1) & 0xFF);
+      return (le == 0) ? 65536 : le;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the number of bytes encoding Ne at the end of a short (1) or extended (2) length
+   * command, 0 if the command has no Le field.
+   */
+  private static int leLength(ByteBuffer command, int start) {
+    int length = command.limit() - start;
+    if (length <= HEADER_LENGTH) {
+      return 0;
+    }
+    if (length == HEADER_LENGTH + 1) {
+      return 1;
+    }
+    int nc = command.get(start + OFFSET_LC) & 0xFF;
+    if (nc != 0) {
+      return (length == OFFSET_LC + 1 + nc + 1) ? 1 : 0;
+    }
+    if (length == OFFSET_LC + 3) {
+      return 2;
+    }
+    nc = ((command.get(start + OFFSET_LC + 1) & 0xFF) << 8) | (command.get(start + OFFSET_LC + 2) & 0xFF);
+    return (length == OFFSET_LC + 3 + nc + 2) ? 2 : 0;
+  }
+}
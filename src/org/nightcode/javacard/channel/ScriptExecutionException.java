@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import java.io.IOException;
+
+/**
+ * Signals that a command of a script could not be exchanged. The commands before the failed one
+ * have been transmitted, the failed one may or may not have reached the card.
+ */
+public class ScriptExecutionException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int index;
+
+  public ScriptExecutionException(int index, Throwable cause) {
+    super(String.format("script command %d failed: %s", index, cause.getMessage()), cause);
+    this.index = index;
+  }
+
+  /**
+   * Returns the index of the failed command in the script.
+   */
+  public int index() {
+    return index;
+  }
+}
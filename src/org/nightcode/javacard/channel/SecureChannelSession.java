@@ -19,11 +19,46 @@ import org.nightcode.javacard.common.SecurityLevel;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+
+import javax.smartcardio.CommandAPDU;
 
 public interface SecureChannelSession extends ApduChannel {
 
   byte[] encryptData(byte[] data) throws GeneralSecurityException;
 
   void openSecureChannel(EnumSet<SecurityLevel> securityLevel) throws IOException, JavaCardException;
+
+  /**
+   * Transmits a script of commands and returns the status word of each transmitted command.
+   * If the policy aborts at an unexpected status word the returned array ends with it and
+   * the remaining commands are not transmitted.
+   *
+   * @throws ScriptExecutionException if an exchange failed, see {@link ScriptExecutionException#index()}
+   */
+  default int[] transmitAll(List<CommandAPDU> commands, SwPolicy policy) throws ScriptExecutionException {
+    int[] sws = new int[commands.size()];
+    for (int n = 0; n < sws.length; n++) {
+      try {
+        sws[n] = transmit(commands.get(n)).getSW();
+      } catch (IOException ex) {
+        throw new ScriptExecutionException(n, ex);
+      }
+      if (policy.abortOnUnexpected() && !policy.isExpected(sws[n])) {
+        return Arrays.copyOf(sws, n + 1);
+      }
+    }
+    return sws;
+  }
+
+  /**
+   * Closes the secure channel and releases the resources of the session, so a new
+   * secure channel can be opened with the same session object. The default
+   * implementation does nothing.
+   */
+  default void reset() {
+    // do nothing
+  }
 }
@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import java.util.Arrays;
+
+/**
+ * The status words expected from the commands of a script and whether the script is aborted
+ * at the first unexpected one.
+ */
+public final class SwPolicy {
+
+  public static final class Builder {
+    private int[] expected = {0x9000};
+    private boolean abortOnUnexpected = true;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder abortOnUnexpected(boolean val) {
+      abortOnUnexpected = val;
+      return this;
+    }
+
+    public SwPolicy build() {
+      return new SwPolicy(this);
+    }
+
+    public Builder expected(int... val) {
+      expected = val;
+      return this;
+    }
+  }
+
+  /**
+   * Expects 9000 and aborts at the first other status word.
+   */
+  public static final SwPolicy NO_ERROR = builder().build();
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final int[] expected;
+  private final boolean abortOnUnexpected;
+
+  private SwPolicy(Builder builder) {
+    if (builder.expected == null || builder.expected.length == 0) {
+      throw new IllegalArgumentException("at least one expected status word must be set");
+    }
+    expected = Arrays.copyOf(builder.expected, builder.expected.length);
+    abortOnUnexpected = builder.abortOnUnexpected;
+  }
+
+  public boolean abortOnUnexpected() {
+    return abortOnUnexpected;
+  }
+
+  public boolean isExpected(int sw) {
+    for (int value : expected) {
+      if (value == sw) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import java.security.Key;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link KeyProvider} that derives the session keys of a handshake without blocking the calling
+ * thread, e.g. one backed by a remote HSM. The synchronous methods are still used for session keys
+ * that are derived on first use.
+ */
+public interface AsyncKeyProvider extends KeyProvider {
+
+  /**
+   * Runs a synchronous provider on an executor.
+   */
+  final class ExecutorKeyProvider implements AsyncKeyProvider {
+
+    private final KeyProvider keyProvider;
+    private final Executor executor;
+
+    private ExecutorKeyProvider(KeyProvider keyProvider, Executor executor) {
+      this.keyProvider = keyProvider;
+      this.executor = executor;
+    }
+
+    @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+      return keyProvider.deriveSessionKey(context, usage);
+    }
+
+    @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+      return keyProvider.deriveSessionKeys(context, usages);
+    }
+
+    @Override public CompletionStage<Map<KeyUsage, Key>> deriveSessionKeysAsync(KeyContext context,
+        Set<KeyUsage> usages) {
+      return CompletableFuture.supplyAsync(() -> keyProvider.deriveSessionKeys(context, usages), executor);
+    }
+  }
+
+  static AsyncKeyProvider of(KeyProvider keyProvider, Executor executor) {
+    return new ExecutorKeyProvider(keyProvider, executor);
+  }
+
+  /**
+   * Derives the session keys of all {@code usages}; the returned stage completes exceptionally
+   * if the derivation failed.
+   */
+  CompletionStage<Map<KeyUsage, Key>> deriveSessionKeysAsync(KeyContext context, Set<KeyUsage> usages);
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nullable;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link KeyProvider} decorator that caches derived session keys by card identity, i.e.
+ * {@code (key diversification data, key version number, sequence counter, key usage)}, so that
+ * re-opening a session with an unchanged sequence counter, e.g. after a reader hiccup or a card
+ * re-insertion, skips derivation. The cache is bounded by size (least recently used entries are
+ * evicted first) and by time to live; the key material of evicted and expired entries is zeroized.
+ * Contexts without key diversification data are passed through to the delegate.
+ */
+public final class CachingKeyProvider implements KeyProvider {
+
+  public static final class Builder {
+    private KeyProvider keyProvider;
+    private int maximumSize = 1024;
+    private long timeToLiveNanos = TimeUnit.MINUTES.toNanos(10);
+    private LongSupplier ticker = System::nanoTime;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public CachingKeyProvider build() {
+      return new CachingKeyProvider(this);
+    }
+
+    public Builder keyProvider(KeyProvider val) {
+      keyProvider = val;
+      return this;
+    }
+
+    public Builder maximumSize(int val) {
+      maximumSize = val;
+      return this;
+    }
+
+    public Builder timeToLive(long duration, TimeUnit unit) {
+      timeToLiveNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    Builder ticker(LongSupplier val) {
+      ticker = val;
+      return this;
+    }
+  }
+
+  private static final class CacheKey {
+    private final byte[] keyDiversificationData;
+    private final byte keyVersionNumber;
+    private final byte[] sequenceCounter;
+    private final DerivationType derivationType;
+    private final KeyUsage usage;
+    private final int hash;
+
+    CacheKey(KeyContext context, KeyUsage usage) {
+      keyDiversificationData = context.keyDiversificationData();
+      keyVersionNumber = context.keyVersionNumber();
+      sequenceCounter = context.sequenceCounter();
+      derivationType = context.derivationType();
+      this.usage = usage;
+
+      int result = Arrays.hashCode(keyDiversificationData);
+      result = 31 * result + keyVersionNumber;
+      result = 31 * result + Arrays.hashCode(sequenceCounter);
+      result = 31 * result + derivationType.hashCode();
+      hash = 31 * result + usage.hashCode();
+    }
+
+    @Override public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return keyVersionNumber == other.keyVersionNumber
+          && usage == other.usage
+          && derivationType == other.derivationType
+          && Arrays.equals(sequenceCounter, other.sequenceCounter)
+          && Arrays.equals(keyDiversificationData, other.keyDiversificationData);
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    private final byte[] encoded;
+    private final String algorithm;
+    private final long expiresAt;
+
+    Entry(byte[] encoded, String algorithm, long expiresAt) {
+      this.encoded = encoded;
+      this.algorithm = algorithm;
+      this.expiresAt = expiresAt;
+    }
+
+    void zeroize() {
+      Arrays.fill(encoded, (byte) 0x00);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final KeyProvider keyProvider;
+  private final int maximumSize;
+  private final long timeToLiveNanos;
+  private final LongSupplier ticker;
+
+  private final LinkedHashMap<CacheKey, Entry> entries;
+
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  private CachingKeyProvider(Builder builder) {
+    if (builder.keyProvider == null) {
+      throw new IllegalArgumentException("keyProvider must be set");
+    }
+    if (builder.maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize must be greater than zero");
+    }
+    if (builder.timeToLiveNanos <= 0) {
+      throw new IllegalArgumentException("timeToLive must be greater than zero");
+    }
+    keyProvider = builder.keyProvider;
+    maximumSize = builder.maximumSize;
+    timeToLiveNanos = builder.timeToLiveNanos;
+    ticker = builder.ticker;
+
+    entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+        if (size() > maximumSize) {
+          eldest.getValue().zeroize();
+          evictionCount++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+    if (context.keyDiversificationData() == null) {
+      return keyProvider.deriveSessionKey(context, usage);
+    }
+    CacheKey cacheKey = new CacheKey(context, usage);
+    Key key = lookup(cacheKey);
+    if (key == null) {
+      key = keyProvider.deriveSessionKey(context, usage);
+      store(cacheKey, key);
+    }
+    return key;
+  }
+
+  /**
+   * Returns the cached keys and derives the missing ones with a single bulk call to the delegate.
+   */
+  @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    if (context.keyDiversificationData() == null) {
+      return keyProvider.deriveSessionKeys(context, usages);
+    }
+    Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+    Set<KeyUsage> missing = EnumSet.noneOf(KeyUsage.class);
+    for (KeyUsage usage : usages) {
+      Key key = lookup(new CacheKey(context, usage));
+      if (key != null) {
+        keys.put(usage, key);
+      } else {
+        missing.add(usage);
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<KeyUsage, Key> derived = keyProvider.deriveSessionKeys(context, missing);
+      for (Map.Entry<KeyUsage, Key> entry : derived.entrySet()) {
+        store(new CacheKey(context, entry.getKey()), entry.getValue());
+      }
+      keys.putAll(derived);
+    }
+    return keys;
+  }
+
+  /**
+   * Removes and zeroizes expired entries.
+   */
+  public synchronized void cleanUp() {
+    long now = ticker.getAsLong();
+    for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+      Entry entry = iterator.next();
+      if (now - entry.expiresAt >= 0) {
+        entry.zeroize();
+        evictionCount++;
+        iterator.remove();
+      }
+    }
+  }
+
+  public synchronized long evictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Removes and zeroizes all entries.
+   */
+  public synchronized void invalidateAll() {
+    for (Entry entry : entries.values()) {
+      entry.zeroize();
+    }
+    entries.clear();
+  }
+
+  public synchronized long missCount() {
+    return missCount;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private synchronized @Nullable Key lookup(CacheKey cacheKey) {
+    Entry entry = entries.get(cacheKey);
+    if (entry != null && ticker.getAsLong() - entry.expiresAt >= 0) {
+      entries.remove(cacheKey);
+      entry.zeroize();
+      evictionCount++;
+      entry = null;
+    }
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return new SecretKeySpec(entry.encoded, entry.algorithm);
+  }
+
+  private void store(CacheKey cacheKey, Key key) {
+    byte[] encoded = key.getEncoded();
+    if (encoded == null) {
+      // the key material is not extractable
+      return;
+    }
+    synchronized (this) {
+      Entry previous = entries.put(cacheKey, new Entry(encoded, key.getAlgorithm(), ticker.getAsLong() + timeToLiveNanos));
+      if (previous != null) {
+        previous.zeroize();
+      }
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.crypto.CryptoBackends;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Derives SCP02 session keys from static card keys that are diversified from a master key with the
+ * card's key diversification data, see {@link KeyDiversification}. The master key schedule is computed
+ * once per thread and the static key schedules of the most recently used cards are kept in a bounded
+ * LRU cache, so a returning card costs two block encryptions per session key.
+ */
+public final class DiversifiedKeyProvider implements KeyProvider {
+
+  public static final class Builder {
+    private int cacheSize = 1024;
+    private CryptoBackend cryptoBackend;
+    private KeyDiversification diversification = KeyDiversification.EMV_CPS_11;
+    private byte[] masterKey;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public DiversifiedKeyProvider build() {
+      return new DiversifiedKeyProvider(this);
+    }
+
+    public Builder cacheSize(int val) {
+      cacheSize = val;
+      return this;
+    }
+
+    public Builder cryptoBackend(CryptoBackend val) {
+      cryptoBackend = val;
+      return this;
+    }
+
+    public Builder diversification(KeyDiversification val) {
+      diversification = val;
+      return this;
+    }
+
+    public Builder masterKey(byte[] val) {
+      masterKey = val;
+      return this;
+    }
+  }
+
+  private static final byte KEY_TYPE_ENC = 0x01;
+  private static final byte KEY_TYPE_MAC = 0x02;
+  private static final byte KEY_TYPE_DEK = 0x03;
+
+  /**
+   * Static key schedules of a card indexed by key type - 1. Engines are not thread-safe,
+   * so they are used under the monitor of their card. Once evicted from the cache the
+   * engines are released and the card's keys are diversified again on the next use.
+   */
+  private static final class StaticKeys {
+    private final CipherEngine[] engines;
+    private boolean released;
+
+    StaticKeys(CipherEngine[] engines) {
+      this.engines = engines;
+    }
+
+    /**
+     * Returns the session key or {@code null} if the engines have been released.
+     */
+    synchronized Key deriveSessionKey(byte[] sequenceCounter, KeyUsage usage) {
+      if (released) {
+        return null;
+      }
+      return Scp02KeyDerivation.deriveSessionKey(engine(usage), usage, sequenceCounter);
+    }
+
+    synchronized void release() {
+      if (!released) {
+        released = true;
+        for (CipherEngine engine : engines) {
+          engine.release();
+        }
+      }
+    }
+
+    private CipherEngine engine(KeyUsage usage) {
+      switch (usage) {
+        case ENC:
+          return engines[KEY_TYPE_ENC - 1];
+        case MAC:
+        case R_MAC:
+          return engines[KEY_TYPE_MAC - 1];
+        case DEK:
+          return engines[KEY_TYPE_DEK - 1];
+        default:
+          throw new IllegalArgumentException("unsupported key usage '" + usage + "'");
+      }
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final CryptoBackend backend;
+  private final KeyDiversification diversification;
+  private final ThreadLocal<CipherEngine> masterEngine;
+  private final LinkedHashMap<ByteBuffer, StaticKeys> cache;
+
+  private DiversifiedKeyProvider(Builder builder) {
+    if (builder.masterKey == null) {
+      throw new IllegalArgumentException("masterKey must be set");
+    }
+    if (builder.cacheSize <= 0) {
+      throw new IllegalArgumentException("cacheSize must be greater than zero");
+    }
+    backend = (builder.cryptoBackend != null) ? builder.cryptoBackend : CryptoBackends.defaultBackend();
+    diversification = builder.diversification;
+    byte[] masterKey = Arrays.copyOf(builder.masterKey, builder.masterKey.length);
+    backend.desEde(masterKey).release(); // fails fast on a malformed key
+    masterEngine = ThreadLocal.withInitial(() -> backend.desEde(masterKey));
+
+    int cacheSize = builder.cacheSize;
+    cache = new LinkedHashMap<ByteBuffer, StaticKeys>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, StaticKeys> eldest) {
+        if (size() > cacheSize) {
+          eldest.getValue().release();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+    Key key;
+    do {
+      key = staticKeys(context).deriveSessionKey(context.sequenceCounter(), usage);
+    } while (key == null); // evicted concurrently
+    return key;
+  }
+
+  @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+    StaticKeys staticKeys = staticKeys(context);
+    for (KeyUsage usage : usages) {
+      Key key = staticKeys.deriveSessionKey(context.sequenceCounter(), usage);
+      while (key == null) { // evicted concurrently
+        staticKeys = staticKeys(context);
+        key = staticKeys.deriveSessionKey(context.sequenceCounter(), usage);
+      }
+      keys.put(usage, key);
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the number of cards whose static key schedules are cached.
+   */
+  public synchronized int cacheSize() {
+    return cache.size();
+  }
+
+  private StaticKeys staticKeys(KeyContext context) {
+    if (!DerivationType.SCP_02.equals(context.derivationType())) {
+      throw new IllegalArgumentException("unsupported derivation type " + context.derivationType());
+    }
+    byte[] keyDiversificationData = context.keyDiversificationData();
+    if (keyDiversificationData == null
+        || keyDiversificationData.length != KeyDiversification.KEY_DIVERSIFICATION_DATA_LENGTH) {
+      throw new IllegalArgumentException("10 byte key diversification data is required");
+    }
+    ByteBuffer cardId = ByteBuffer.wrap(keyDiversificationData);
+    StaticKeys staticKeys;
+    synchronized (this) {
+      staticKeys = cache.get(cardId);
+    }
+    if (staticKeys == null) {
+      StaticKeys diversified = diversify(keyDiversificationData);
+      synchronized (this) {
+        staticKeys = cache.get(cardId);
+        if (staticKeys == null) {
+          staticKeys = diversified;
+          cache.put(cardId, staticKeys);
+        }
+      }
+      if (staticKeys != diversified) {
+        diversified.release();
+      }
+    }
+    return staticKeys;
+  }
+
+  private StaticKeys diversify(byte[] keyDiversificationData) {
+    CipherEngine master = masterEngine.get();
+    CipherEngine[] engines = new CipherEngine[KEY_TYPE_DEK];
+    byte[] staticKey = new byte[16];
+    for (byte keyType = KEY_TYPE_ENC; keyType <= KEY_TYPE_DEK; keyType++) {
+      diversification.diversificationData(keyDiversificationData, keyType, staticKey);
+      master.encrypt(staticKey, 0, staticKey.length, staticKey, 0);
+      engines[keyType - 1] = backend.desEde(staticKey);
+    }
+    Arrays.fill(staticKey, (byte) 0x00);
+    return new StaticKeys(engines);
+  }
+}
@@ -18,11 +18,15 @@ import org.nightcode.javacard.common.CardProperties;
 
 import java.util.Arrays;
 
+import javax.annotation.Nullable;
+
 public final class KeyContext {
 
   public static final class Builder {
     private DerivationType derivationType;
     private CardProperties cardProperties;
+    private byte[] keyDiversificationData;
+    private byte keyVersionNumber;
     private byte[] sequenceCounter;
 
     private Builder() {
@@ -43,6 +47,16 @@ public final class KeyContext {
       return this;
     }
 
+    public Builder keyDiversificationData(byte[] val) {
+      keyDiversificationData = val;
+      return this;
+    }
+
+    public Builder keyVersionNumber(byte val) {
+      keyVersionNumber = val;
+      return this;
+    }
+
     public Builder sequenceCounter(byte[] val) {
       sequenceCounter = val;
       return this;
@@ -55,11 +69,16 @@ public final class KeyContext {
 
   private final DerivationType derivationType;
   private final CardProperties cardProperties;
+  private final byte[] keyDiversificationData;
+  private final byte keyVersionNumber;
   private final byte[] sequenceCounter;
 
   private KeyContext(Builder builder) {
     derivationType = builder.derivationType;
     cardProperties = builder.cardProperties;
+    keyDiversificationData = (builder.keyDiversificationData != null)
+        ? Arrays.copyOf(builder.keyDiversificationData, builder.keyDiversificationData.length) : null;
+    keyVersionNumber = builder.keyVersionNumber;
     sequenceCounter = Arrays.copyOf(builder.sequenceCounter, builder.sequenceCounter.length);
   }
 
@@ -71,6 +90,22 @@ public final class KeyContext {
     return cardProperties;
   }
 
+  /**
+   * Returns the key diversification data reported by the card in the INITIALIZE UPDATE
+   * response, or {@code null} if unknown.
+   */
+  public @Nullable byte[] keyDiversificationData() {
+    return keyDiversificationData;
+  }
+
+  /**
+   * Returns the version number of the card's key set the session keys are derived from,
+   * or 0 if unknown.
+   */
+  public byte keyVersionNumber() {
+    return keyVersionNumber;
+  }
+
   public byte[] sequenceCounter() {
     return sequenceCounter;
   }
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+/**
+ * Methods of deriving a card's static keys from a master key and the 10 byte key diversification
+ * data returned by INITIALIZE UPDATE. The static key of a key type is the Triple DES ECB
+ * encryption of the 16 byte diversification data under the master key.
+ */
+public enum KeyDiversification {
+
+  /**
+   * VISA2: bytes 0-1 and 4-7 of the key diversification data.
+   */
+  VISA2 {
+    @Override void diversificationData(byte[] keyDiversificationData, byte keyType, byte[] out) {
+      for (int half = 0; half < 16; half += 8) {
+        System.arraycopy(keyDiversificationData, 0, out, half, 2);
+        System.arraycopy(keyDiversificationData, 4, out, half + 2, 4);
+      }
+      padding(keyType, out);
+    }
+  },
+
+  /**
+   * EMV CPS 1.1: bytes 4-9 of the key diversification data.
+   */
+  EMV_CPS_11 {
+    @Override void diversificationData(byte[] keyDiversificationData, byte keyType, byte[] out) {
+      for (int half = 0; half < 16; half += 8) {
+        System.arraycopy(keyDiversificationData, 4, out, half, 6);
+      }
+      padding(keyType, out);
+    }
+  };
+
+  static final int KEY_DIVERSIFICATION_DATA_LENGTH = 10;
+
+  private static void padding(byte keyType, byte[] out) {
+    out[6] = (byte) 0xF0;
+    out[7] = keyType;
+    out[14] = (byte) 0x0F;
+    out[15] = keyType;
+  }
+
+  /**
+   * Writes the 16 byte diversification data of the key type (1 - ENC, 2 - MAC, 3 - DEK) to {@code out}.
+   */
+  abstract void diversificationData(byte[] keyDiversificationData, byte keyType, byte[] out);
+}
@@ -14,14 +14,16 @@
 
 package org.nightcode.javacard.channel.key;
 
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackends;
 import org.nightcode.javacard.util.Hexs;
 import org.nightcode.javacard.util.JcCryptoUtils;
 
-import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.SecretKeySpec;
 
 public interface KeyProvider {
@@ -30,17 +32,8 @@ public interface KeyProvider {
 
     private static final byte[] DEFAULT_KEY_BYTES = Hexs.hex().toByteArray("404142434445464748494A4B4C4D4E4F");
 
-    private static final SecretKeyFactory KEY_FACTORY;
-    private static final Key BASE_KEY;
-
-    static {
-      try {
-        KEY_FACTORY = SecretKeyFactory.getInstance("DESede");
-        BASE_KEY = KEY_FACTORY.generateSecret(new SecretKeySpec(JcCryptoUtils.toKey24(DEFAULT_KEY_BYTES), "DESede"));
-      } catch (GeneralSecurityException ex) {
-        throw new RuntimeException(ex);
-      }
-    }
+    private static final ThreadLocal<CipherEngine> BASE_ENGINE
+        = ThreadLocal.withInitial(() -> CryptoBackends.defaultBackend().desEde(DEFAULT_KEY_BYTES));
 
     private DefaultKeyProvider() {
       // do nothing
@@ -53,22 +46,61 @@ public interface KeyProvider {
       throw new IllegalArgumentException("unsupported derivation type " + context.derivationType());
     }
 
+    /**
+     * Derives all SCP02 session keys with two multi-block ECB operations: the CBC encryption of
+     * the derivation data {@code constant | counter | 0..0} with zero ICV equals
+     * {@code E(block1) | E(E(block1))} because the second block is zero.
+     */
+    @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+      if (!DerivationType.SCP_02.equals(context.derivationType())) {
+        throw new IllegalArgumentException("unsupported derivation type " + context.derivationType());
+      }
+      KeyUsage[] order = usages.toArray(new KeyUsage[0]);
+      byte[] sequenceCounter = context.sequenceCounter();
+      int length = order.length * CipherEngine.BLOCK_SIZE;
+      byte[] blocks = new byte[2 * length];
+      for (int i = 0; i < order.length; i++) {
+        System.arraycopy(order[i].keyConstant(), 0, blocks, i * CipherEngine.BLOCK_SIZE, 2);
+        System.arraycopy(sequenceCounter, 0, blocks, i * CipherEngine.BLOCK_SIZE + 2, 2);
+      }
+      CipherEngine engine = BASE_ENGINE.get();
+      engine.encrypt(blocks, 0, length, blocks, 0);
+      engine.encrypt(blocks, 0, length, blocks, length);
+
+      Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+      for (int i = 0; i < order.length; i++) {
+        byte[] key = new byte[24];
+        System.arraycopy(blocks, i * CipherEngine.BLOCK_SIZE, key, 0, 8);
+        System.arraycopy(blocks, length + i * CipherEngine.BLOCK_SIZE, key, 8, 8);
+        System.arraycopy(key, 0, key, 16, 8);
+        keys.put(order[i], new SecretKeySpec(key, "DESede"));
+      }
+      return keys;
+    }
+
     private Key deriveScp02SessionKey(byte[] deriveKeyConstant, byte[] sequenceCounter) {
       byte[] derivationData = new byte[16];
       System.arraycopy(deriveKeyConstant, 0, derivationData, 0, 2);
       System.arraycopy(sequenceCounter, 0, derivationData, 2, 2);
-      try {
-        Cipher cipher = Cipher.getInstance(JcCryptoUtils.DES_EDE_CBC_NO_PADDING);
-        cipher.init(Cipher.ENCRYPT_MODE, BASE_KEY, JcCryptoUtils.ZERO_IV_PARAMETER_SPEC);
-        byte[] result = cipher.doFinal(derivationData);
-        return KEY_FACTORY.generateSecret(new SecretKeySpec(JcCryptoUtils.toKey24(result), "DESede"));
-      } catch (GeneralSecurityException ex) {
-        throw new RuntimeException("session keys calculation failed", ex);
-      }
+      BASE_ENGINE.get().encryptCbc(null, derivationData, 0, derivationData.length, derivationData, 0);
+      return new SecretKeySpec(JcCryptoUtils.toKey24(derivationData), "DESede");
     }
   }
 
   KeyProvider DEFAULT = new DefaultKeyProvider();
 
   Key deriveSessionKey(KeyContext context, KeyUsage usage);
+
+  /**
+   * Derives the session keys of all {@code usages} at once. The default implementation calls
+   * {@link #deriveSessionKey} per usage; providers backed by a remote or hardware key store
+   * should override it to answer in a single round trip.
+   */
+  default Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+    for (KeyUsage usage : usages) {
+      keys.put(usage, deriveSessionKey(context, usage));
+    }
+    return keys;
+  }
 }
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Wire format of the key derivation service. Every frame is prefixed with its length and carries
+ * a batch of items, all integers are big-endian:
+ * <pre>
+ * request frame:  length(4) count(2) { id(4) derivationType(1) usage(1) kvn(1)
+ *                                      kddLength(1) kdd(kddLength) counterLength(1) counter(counterLength) }
+ * response frame: length(4) count(2) { id(4) status(1) length(2) key or UTF-8 error message(length) }
+ * </pre>
+ * Enum values are sent as ordinals; a {@code kddLength} of 0 means no key diversification data.
+ */
+final class KeyServiceProtocol {
+
+  static final byte STATUS_OK = 0x00;
+  static final byte STATUS_ERROR = 0x01;
+
+  static final int MAX_FRAME_LENGTH = 1 << 20;
+  static final int MAX_FIELD_LENGTH = 0xFF;
+  static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+  static final class Request {
+    final int id;
+    final KeyContext context;
+    final KeyUsage usage;
+
+    Request(int id, KeyContext context, KeyUsage usage) {
+      this.id = id;
+      this.context = context;
+      this.usage = usage;
+    }
+  }
+
+  static final class Response {
+    final int id;
+    final byte status;
+    final byte[] payload;
+
+    Response(int id, byte status, byte[] payload) {
+      this.id = id;
+      this.status = status;
+      this.payload = payload;
+    }
+
+    static Response error(int id, String message) {
+      return new Response(id, STATUS_ERROR, message.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static final DerivationType[] DERIVATION_TYPES = DerivationType.values();
+  private static final KeyUsage[] KEY_USAGES = KeyUsage.values();
+
+  static List<Request> readRequests(DataInputStream in) throws IOException {
+    int count = readFrameHeader(in);
+    List<Request> requests = new ArrayList<>(count);
+    for (int n = 0; n < count; n++) {
+      int id = in.readInt();
+      DerivationType derivationType = DERIVATION_TYPES[readOrdinal(in, DERIVATION_TYPES.length, "derivation type")];
+      KeyUsage usage = KEY_USAGES[readOrdinal(in, KEY_USAGES.length, "key usage")];
+      byte keyVersionNumber = in.readByte();
+      byte[] keyDiversificationData = readBytes(in, in.readUnsignedByte());
+      byte[] sequenceCounter = readBytes(in, in.readUnsignedByte());
+      KeyContext context = KeyContext.builder()
+          .derivationType(derivationType)
+          .keyDiversificationData(keyDiversificationData.length > 0 ? keyDiversificationData : null)
+          .keyVersionNumber(keyVersionNumber)
+          .sequenceCounter(sequenceCounter)
+          .build();
+      requests.add(new Request(id, context, usage));
+    }
+    return requests;
+  }
+
+  static List<Response> readResponses(DataInputStream in) throws IOException {
+    int count = readFrameHeader(in);
+    List<Response> responses = new ArrayList<>(count);
+    for (int n = 0; n < count; n++) {
+      int id = in.readInt();
+      byte status = in.readByte();
+      responses.add(new Response(id, status, readBytes(in, in.readUnsignedShort())));
+    }
+    return responses;
+  }
+
+  /**
+   * Checks that the request fields fit the wire format.
+   *
+   * @throws IllegalArgumentException if the key diversification data or the sequence counter
+   *     is longer than {@value #MAX_FIELD_LENGTH} bytes
+   */
+  static void checkRequest(KeyContext context) {
+    checkLength("key diversification data", context.keyDiversificationData(), MAX_FIELD_LENGTH);
+    checkLength("sequence counter", context.sequenceCounter(), MAX_FIELD_LENGTH);
+  }
+
+  static void writeRequests(DataOutputStream out, List<Request> requests) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(16 + requests.size() * 24);
+    DataOutputStream data = new DataOutputStream(frame);
+    data.writeShort(requests.size());
+    for (Request request : requests) {
+      KeyContext context = request.context;
+      data.writeInt(request.id);
+      data.writeByte(context.derivationType().ordinal());
+      data.writeByte(request.usage.ordinal());
+      data.writeByte(context.keyVersionNumber());
+      writeBytes(data, context.keyDiversificationData());
+      writeBytes(data, context.sequenceCounter());
+    }
+    writeFrame(out, frame);
+  }
+
+  static void writeResponses(DataOutputStream out, List<Response> responses) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(16 + responses.size() * 32);
+    DataOutputStream data = new DataOutputStream(frame);
+    data.writeShort(responses.size());
+    for (Response response : responses) {
+      data.writeInt(response.id);
+      data.writeByte(response.status);
+      checkLength("response payload", response.payload, MAX_PAYLOAD_LENGTH);
+      data.writeShort(response.payload.length);
+      data.write(response.payload);
+    }
+    writeFrame(out, frame);
+  }
+
+  private static void checkLength(String name, @Nullable byte[] bytes, int maxLength) {
+    if (bytes != null && bytes.length > maxLength) {
+      throw new IllegalArgumentException(name + " length [" + bytes.length + "] must not exceed " + maxLength);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static int readFrameHeader(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 2 || length > MAX_FRAME_LENGTH) {
+      throw new IOException("invalid frame length " + length);
+    }
+    return in.readUnsignedShort();
+  }
+
+  private static int readOrdinal(DataInputStream in, int count, String name) throws IOException {
+    int ordinal = in.readUnsignedByte();
+    if (ordinal >= count) {
+      throw new IOException("invalid " + name + " " + ordinal);
+    }
+    return ordinal;
+  }
+
+  private static void writeBytes(DataOutputStream out, @Nullable byte[] bytes) throws IOException {
+    if (bytes == null) {
+      out.writeByte(0);
+      return;
+    }
+    checkLength("field", bytes, MAX_FIELD_LENGTH);
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeFrame(DataOutputStream out, ByteArrayOutputStream frame) throws IOException {
+    out.writeInt(frame.size());
+    frame.writeTo(out);
+    out.flush();
+  }
+
+  private KeyServiceProtocol() {
+    // do nothing
+  }
+}
@@ -18,6 +18,9 @@ import org.nightcode.javacard.JavaCardException;
 import org.nightcode.javacard.channel.scp.ScpVersion;
 import org.nightcode.javacard.common.CardProperties;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 public abstract class KeySet {
 
   public static KeySet of(ScpVersion scpVersion, KeyProvider keyProvider) throws JavaCardException {
@@ -28,4 +31,28 @@ public abstract class KeySet {
   }
 
   public abstract SessionKeys deriveSessionKeys(CardProperties cardProperties, byte[] sequenceCounter);
+
+  /**
+   * Derives the session keys of the card identified by its key diversification data and the version
+   * number of its key set, as reported in the INITIALIZE UPDATE response.
+   */
+  public SessionKeys deriveSessionKeys(CardProperties cardProperties, byte[] keyDiversificationData
+      , byte keyVersionNumber, byte[] sequenceCounter) {
+    return deriveSessionKeys(cardProperties, sequenceCounter);
+  }
+
+  /**
+   * Derives the session keys without blocking if the key set's provider is an {@link AsyncKeyProvider},
+   * otherwise derives them on the calling thread and returns a completed stage.
+   */
+  public CompletionStage<SessionKeys> deriveSessionKeysAsync(CardProperties cardProperties
+      , byte[] keyDiversificationData, byte keyVersionNumber, byte[] sequenceCounter) {
+    CompletableFuture<SessionKeys> result = new CompletableFuture<>();
+    try {
+      result.complete(deriveSessionKeys(cardProperties, keyDiversificationData, keyVersionNumber, sequenceCounter));
+    } catch (RuntimeException ex) {
+      result.completeExceptionally(ex);
+    }
+    return result;
+  }
 }
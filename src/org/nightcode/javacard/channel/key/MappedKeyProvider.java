@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.crypto.CryptoBackends;
+import org.nightcode.javacard.util.Hexs;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Derives SCP02 session keys from per-card static keys looked up in a {@link MappedKeyStore} by the
+ * card's key diversification data. If the context carries a non-zero key version number it must
+ * match the version stored for the card.
+ */
+public final class MappedKeyProvider implements KeyProvider {
+
+  private static final Hexs HEX = Hexs.hex();
+
+  private final MappedKeyStore keyStore;
+  private final CryptoBackend backend;
+
+  public MappedKeyProvider(MappedKeyStore keyStore) {
+    this(keyStore, CryptoBackends.defaultBackend());
+  }
+
+  public MappedKeyProvider(MappedKeyStore keyStore, CryptoBackend backend) {
+    this.keyStore = keyStore;
+    this.backend = backend;
+  }
+
+  @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+    int record = record(context);
+    byte[] staticKey = new byte[16];
+    try {
+      return deriveSessionKey(record, staticKey, context.sequenceCounter(), usage);
+    } finally {
+      Arrays.fill(staticKey, (byte) 0x00);
+    }
+  }
+
+  @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    int record = record(context);
+    byte[] staticKey = new byte[16];
+    try {
+      Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+      for (KeyUsage usage : usages) {
+        keys.put(usage, deriveSessionKey(record, staticKey, context.sequenceCounter(), usage));
+      }
+      return keys;
+    } finally {
+      Arrays.fill(staticKey, (byte) 0x00);
+    }
+  }
+
+  private Key deriveSessionKey(int record, byte[] staticKey, byte[] sequenceCounter, KeyUsage usage) {
+    keyStore.staticKey(record, usage, staticKey);
+    CipherEngine engine = backend.desEde(staticKey);
+    try {
+      return Scp02KeyDerivation.deriveSessionKey(engine, usage, sequenceCounter);
+    } finally {
+      engine.release();
+    }
+  }
+
+  private int record(KeyContext context) {
+    if (!DerivationType.SCP_02.equals(context.derivationType())) {
+      throw new IllegalArgumentException("unsupported derivation type " + context.derivationType());
+    }
+    byte[] cardId = context.keyDiversificationData();
+    if (cardId == null) {
+      throw new IllegalArgumentException("key diversification data is required");
+    }
+    int record = keyStore.lookup(cardId);
+    if (record < 0) {
+      throw new IllegalArgumentException("unknown card " + HEX.fromByteArray(cardId));
+    }
+    byte keyVersionNumber = keyStore.keyVersionNumber(record);
+    if (context.keyVersionNumber() != 0 && context.keyVersionNumber() != keyVersionNumber) {
+      throw new IllegalArgumentException(String.format("key version number mismatch: card %02X, store %02X"
+          , context.keyVersionNumber(), keyVersionNumber));
+    }
+    return record;
+  }
+}
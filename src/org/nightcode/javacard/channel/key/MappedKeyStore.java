@@ -0,0 +1,237 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only, memory-mapped file of static key sets, one per card, indexed by a fixed length
+ * card identifier (e.g. the key diversification data) with an open-addressing hash table. Opening
+ * a store maps the file without reading it, pages are loaded by the OS on first access, and a
+ * lookup probes a few slots off-heap. The file layout is:
+ * <pre>
+ * header: magic 'JCKS'(4) version(2) idLength(2) slotCount(4) recordCount(4)
+ * slots:  slotCount x { used(1) id(idLength) kvn(1) enc(16) mac(16) dek(16) }
+ * </pre>
+ * {@code slotCount} is a power of two and slots are probed linearly from the FNV-1a hash of the id.
+ * A single mapping limits the file to 2 GiB, i.e. about 35 million cards with 10 byte identifiers.
+ */
+public final class MappedKeyStore {
+
+  /**
+   * Creates a key store file.
+   */
+  public static final class Writer implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int idLength;
+    private final int slotCount;
+    private final int capacity;
+    private int recordCount;
+
+    private Writer(Path path, int idLength, int capacity) throws IOException {
+      if (idLength <= 0 || idLength > 0xFF) {
+        throw new IllegalArgumentException("idLength must be between 1 and 255");
+      }
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("capacity must be greater than zero");
+      }
+      long slots = Long.highestOneBit(Math.max(2L * capacity - 1, 1)) << 1;
+      long size = HEADER_LENGTH + slots * recordLength(idLength);
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("capacity [" + capacity + "] exceeds the maximum store size");
+      }
+      this.idLength = idLength;
+      this.slotCount = (int) slots;
+      this.capacity = capacity;
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+          , StandardOpenOption.READ, StandardOpenOption.WRITE);
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Adds or replaces the static keys (16 bytes each) of the card.
+     */
+    public void put(byte[] id, byte keyVersionNumber, byte[] enc, byte[] mac, byte[] dek) {
+      if (id.length != idLength) {
+        throw new IllegalArgumentException("id length must be " + idLength);
+      }
+      checkKey(enc);
+      checkKey(mac);
+      checkKey(dek);
+      int slot = MappedKeyStore.find(buffer, idLength, slotCount, id);
+      int offset = offset(slot, idLength);
+      if (buffer.get(offset) == 0) {
+        if (recordCount == capacity) {
+          throw new IllegalStateException("key store is full");
+        }
+        recordCount++;
+      }
+      buffer.position(offset);
+      buffer.put((byte) 1).put(id).put(keyVersionNumber).put(enc).put(mac).put(dek);
+    }
+
+    /**
+     * Writes the header and closes the file.
+     */
+    @Override public void close() throws IOException {
+      buffer.putInt(0, MAGIC);
+      buffer.putShort(4, VERSION);
+      buffer.putShort(6, (short) idLength);
+      buffer.putInt(8, slotCount);
+      buffer.putInt(12, recordCount);
+      buffer.force();
+      channel.close();
+    }
+
+    private static void checkKey(byte[] key) {
+      if (key.length != KEY_LENGTH) {
+        throw new IllegalArgumentException("static key length must be 16");
+      }
+    }
+  }
+
+  private static final int MAGIC = 0x4A434B53;
+  private static final short VERSION = 1;
+  private static final int HEADER_LENGTH = 16;
+  private static final int KEY_LENGTH = 16;
+
+  public static Writer create(Path path, int idLength, int capacity) throws IOException {
+    return new Writer(path, idLength, capacity);
+  }
+
+  public static MappedKeyStore open(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE || channel.size() < HEADER_LENGTH) {
+        throw new IOException("invalid key store size " + channel.size());
+      }
+      return new MappedKeyStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int idLength;
+  private final int slotCount;
+  private final int recordCount;
+
+  private MappedKeyStore(ByteBuffer buffer) throws IOException {
+    if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) {
+      throw new IOException("not a key store file");
+    }
+    this.buffer = buffer;
+    idLength = buffer.getShort(6);
+    slotCount = buffer.getInt(8);
+    recordCount = buffer.getInt(12);
+    if (Integer.bitCount(slotCount) != 1
+        || buffer.capacity() != HEADER_LENGTH + (long) slotCount * recordLength(idLength)) {
+      throw new IOException("corrupted key store file");
+    }
+  }
+
+  public int idLength() {
+    return idLength;
+  }
+
+  public int size() {
+    return recordCount;
+  }
+
+  /**
+   * Returns the record of the card or -1 if the store does not contain it.
+   */
+  int lookup(byte[] id) {
+    if (id.length != idLength) {
+      return -1;
+    }
+    int slot = find(buffer, idLength, slotCount, id);
+    return (buffer.get(offset(slot, idLength)) != 0) ? slot : -1;
+  }
+
+  byte keyVersionNumber(int record) {
+    return buffer.get(offset(record, idLength) + 1 + idLength);
+  }
+
+  /**
+   * Copies the 16 byte static key of the usage to {@code dst}.
+   */
+  void staticKey(int record, KeyUsage usage, byte[] dst) {
+    int index;
+    switch (usage) {
+      case ENC:
+        index = 0;
+        break;
+      case MAC:
+      case R_MAC:
+        index = 1;
+        break;
+      case DEK:
+        index = 2;
+        break;
+      default:
+        throw new IllegalArgumentException("unsupported key usage '" + usage + "'");
+    }
+    int offset = offset(record, idLength) + 2 + idLength + index * KEY_LENGTH;
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      dst[i] = buffer.get(offset + i);
+    }
+  }
+
+  /**
+   * Returns the slot holding {@code id} or the empty slot where it would be inserted.
+   */
+  private static int find(ByteBuffer buffer, int idLength, int slotCount, byte[] id) {
+    int mask = slotCount - 1;
+    int slot = hash(id) & mask;
+    for (int n = 0; n < slotCount; n++) {
+      int offset = offset(slot, idLength);
+      if (buffer.get(offset) == 0 || matches(buffer, offset + 1, id)) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    throw new IllegalStateException("key store is full");
+  }
+
+  private static int hash(byte[] id) {
+    int hash = 0x811C9DC5;
+    for (byte b : id) {
+      hash = (hash ^ (b & 0xFF)) * 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean matches(ByteBuffer buffer, int offset, byte[] id) {
+    for (int i = 0; i < id.length; i++) {
+      if (buffer.get(offset + i) != id[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int offset(int slot, int idLength) {
+    return HEADER_LENGTH + slot * recordLength(idLength);
+  }
+
+  private static int recordLength(int idLength) {
+    return 2 + idLength + 3 * KEY_LENGTH;
+  }
+}
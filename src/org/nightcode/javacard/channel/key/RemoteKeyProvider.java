@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.channel.key.KeyServiceProtocol.Request;
+import org.nightcode.javacard.channel.key.KeyServiceProtocol.Response;
+import org.nightcode.javacard.util.JcCryptoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link KeyProvider} client of an out-of-process key derivation service listening on a local
+ * socket, see {@link KeyServiceProtocol} for the wire format. Requests of concurrent sessions are
+ * coalesced into one frame per batch window (or per {@code maxBatchSize} requests), so many parallel
+ * handshakes cost a few round trips instead of one per key per card. Responses are matched by
+ * request id and may arrive in any order.
+ */
+public final class RemoteKeyProvider implements AsyncKeyProvider, Closeable {
+
+  public static final class Builder {
+    private InetSocketAddress address;
+    private long batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(200);
+    private int maxBatchSize = 256;
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private Builder() {
+      // do nothing
+    }
+
+    public Builder address(InetSocketAddress val) {
+      address = val;
+      return this;
+    }
+
+    public Builder batchWindow(long duration, TimeUnit unit) {
+      batchWindowNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    /**
+     * Connects to the key derivation service.
+     */
+    public RemoteKeyProvider build() throws IOException {
+      return new RemoteKeyProvider(this);
+    }
+
+    public Builder maxBatchSize(int val) {
+      maxBatchSize = val;
+      return this;
+    }
+
+    /**
+     * Sets how long the synchronous methods wait for the service.
+     */
+    public Builder timeout(long duration, TimeUnit unit) {
+      timeoutNanos = unit.toNanos(duration);
+      return this;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(RemoteKeyProvider.class.getName());
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final long batchWindowNanos;
+  private final int maxBatchSize;
+  private final long timeoutNanos;
+
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Map<Integer, CompletableFuture<Key>> pending = new ConcurrentHashMap<>();
+  private final AtomicInteger nextId = new AtomicInteger();
+  private final AtomicLong frameCount = new AtomicLong();
+
+  private final Thread sender;
+  private final Thread receiver;
+
+  private volatile boolean closed;
+
+  private RemoteKeyProvider(Builder builder) throws IOException {
+    if (builder.address == null) {
+      throw new IllegalArgumentException("address must be set");
+    }
+    if (builder.maxBatchSize <= 0 || builder.maxBatchSize > 0xFFFF) {
+      throw new IllegalArgumentException("maxBatchSize must be between 1 and 65535");
+    }
+    batchWindowNanos = builder.batchWindowNanos;
+    maxBatchSize = builder.maxBatchSize;
+    timeoutNanos = builder.timeoutNanos;
+
+    socket = new Socket();
+    socket.setTcpNoDelay(true);
+    socket.connect(builder.address);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+    sender = new Thread(this::send, "remote-key-provider-sender");
+    sender.setDaemon(true);
+    receiver = new Thread(this::receive, "remote-key-provider-receiver");
+    receiver.setDaemon(true);
+    sender.start();
+    receiver.start();
+  }
+
+  @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+    CompletableFuture<Key> future = submit(context, usage);
+    return await(future, Collections.singletonList(future));
+  }
+
+  @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    Map<KeyUsage, CompletableFuture<Key>> futures = submitAll(context, usages);
+    return await(collect(futures), futures.values());
+  }
+
+  @Override public CompletionStage<Map<KeyUsage, Key>> deriveSessionKeysAsync(KeyContext context,
+      Set<KeyUsage> usages) {
+    return collect(submitAll(context, usages));
+  }
+
+  /**
+   * Closes the connection; pending and subsequent requests fail.
+   */
+  @Override public void close() throws IOException {
+    closed = true;
+    sender.interrupt();
+    socket.close();
+    failPending(new IOException("key provider closed"));
+  }
+
+  /**
+   * Returns the number of request frames sent to the service.
+   */
+  public long frameCount() {
+    return frameCount.get();
+  }
+
+  int pendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Waits for {@code future}; if the wait is given up the {@code requests} are cancelled,
+   * which removes them from the pending requests.
+   */
+  private <T> T await(CompletableFuture<T> future, Collection<CompletableFuture<Key>> requests) {
+    try {
+      return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException ex) {
+      cancel(requests);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("session key derivation interrupted", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("session key derivation failed", cause);
+    } catch (TimeoutException ex) {
+      cancel(requests);
+      throw new IllegalStateException("session key derivation timed out", ex);
+    }
+  }
+
+  private static void cancel(Collection<CompletableFuture<Key>> requests) {
+    for (CompletableFuture<Key> request : requests) {
+      request.cancel(false);
+    }
+  }
+
+  private static CompletableFuture<Map<KeyUsage, Key>> collect(Map<KeyUsage, CompletableFuture<Key>> futures) {
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+      Map<KeyUsage, Key> keys = new EnumMap<>(KeyUsage.class);
+      for (Map.Entry<KeyUsage, CompletableFuture<Key>> entry : futures.entrySet()) {
+        keys.put(entry.getKey(), entry.getValue().join());
+      }
+      return keys;
+    });
+  }
+
+  private void failPending(Throwable cause) {
+    for (Integer id : pending.keySet()) {
+      CompletableFuture<Key> future = pending.remove(id);
+      if (future != null) {
+        future.completeExceptionally(cause);
+      }
+    }
+  }
+
+  private void receive() {
+    try {
+      while (!closed) {
+        for (Response response : KeyServiceProtocol.readResponses(in)) {
+          CompletableFuture<Key> future = pending.remove(response.id);
+          if (future == null) {
+            continue;
+          }
+          if (response.status == KeyServiceProtocol.STATUS_OK) {
+            future.complete(new SecretKeySpec(JcCryptoUtils.toKey24(response.payload), "DESede"));
+          } else {
+            future.completeExceptionally(new IllegalStateException(
+                new String(response.payload, StandardCharsets.UTF_8)));
+          }
+        }
+      }
+    } catch (IOException ex) {
+      if (!closed) {
+        LOGGER.log(Level.WARNING, "key derivation service connection lost", ex);
+        closed = true;
+        sender.interrupt();
+      }
+      failPending(ex);
+    }
+  }
+
+  private void send() {
+    List<Request> batch = new ArrayList<>(maxBatchSize);
+    try {
+      while (!closed) {
+        Request first = queue.take();
+        batch.add(first);
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Request next = (remaining > 0) ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        // counted before the write, the responses may complete the requests before it returns
+        frameCount.incrementAndGet();
+        KeyServiceProtocol.writeRequests(out, batch);
+        batch.clear();
+      }
+    } catch (InterruptedException ex) {
+      // closed
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "key derivation service connection lost", ex);
+      closed = true;
+      failPending(ex);
+    }
+  }
+
+  private Map<KeyUsage, CompletableFuture<Key>> submitAll(KeyContext context, Set<KeyUsage> usages) {
+    Map<KeyUsage, CompletableFuture<Key>> futures = new EnumMap<>(KeyUsage.class);
+    for (KeyUsage usage : usages) {
+      futures.put(usage, submit(context, usage));
+    }
+    return futures;
+  }
+
+  private CompletableFuture<Key> submit(KeyContext context, KeyUsage usage) {
+    CompletableFuture<Key> future = new CompletableFuture<>();
+    if (closed) {
+      future.completeExceptionally(new IOException("key provider closed"));
+      return future;
+    }
+    try {
+      KeyServiceProtocol.checkRequest(context);
+    } catch (IllegalArgumentException ex) {
+      future.completeExceptionally(ex);
+      return future;
+    }
+    int id = nextId.getAndIncrement();
+    pending.put(id, future);
+    future.whenComplete((key, ex) -> pending.remove(id, future));
+    queue.add(new Request(id, context, usage));
+    if (closed && pending.remove(id) != null) {
+      future.completeExceptionally(new IOException("key provider closed"));
+    }
+    return future;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.util.JcCryptoUtils;
+
+import java.security.Key;
+
+import javax.crypto.spec.SecretKeySpec;
+
+final class Scp02KeyDerivation {
+
+  /**
+   * Derives the SCP02 session key of {@code usage} with the static key engine: the CBC encryption of
+   * {@code constant | counter | 0..0} with zero ICV, which equals {@code E(block1) | E(E(block1))}
+   * because the second block is zero. The engine must not be used concurrently.
+   */
+  static Key deriveSessionKey(CipherEngine staticKey, KeyUsage usage, byte[] sequenceCounter) {
+    byte[] key = new byte[16];
+    System.arraycopy(usage.keyConstant(), 0, key, 0, 2);
+    System.arraycopy(sequenceCounter, 0, key, 2, 2);
+    staticKey.encrypt(key, 0, CipherEngine.BLOCK_SIZE, key, 0);
+    staticKey.encrypt(key, 0, CipherEngine.BLOCK_SIZE, key, CipherEngine.BLOCK_SIZE);
+    return new SecretKeySpec(JcCryptoUtils.toKey24(key), "DESede");
+  }
+
+  private Scp02KeyDerivation() {
+    // do nothing
+  }
+}
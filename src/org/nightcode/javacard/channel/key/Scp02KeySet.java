@@ -16,12 +16,20 @@ package org.nightcode.javacard.channel.key;
 
 import org.nightcode.javacard.common.CardProperties;
 
-import java.security.Key;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
 
 public class Scp02KeySet extends KeySet {
 
+  /**
+   * Keys every session needs for the cryptograms and the C-MAC; DEK and R-MAC
+   * session keys are derived on first use.
+   */
+  private static final Set<KeyUsage> SESSION_KEY_USAGES
+      = Collections.unmodifiableSet(EnumSet.of(KeyUsage.ENC, KeyUsage.MAC));
+
   private final KeyProvider keyProvider;
 
   Scp02KeySet(KeyProvider keyProvider) {
@@ -29,19 +37,42 @@ public class Scp02KeySet extends KeySet {
   }
 
   @Override public SessionKeys deriveSessionKeys(CardProperties cardProperties, byte[] sequenceCounter) {
-    KeyContext context = KeyContext.builder()
+    return deriveSessionKeys(KeyContext.builder()
         .derivationType(DerivationType.SCP_02)
         .cardProperties(cardProperties)
+        .keyVersionNumber(cardProperties.keyVersionNumber())
         .sequenceCounter(sequenceCounter)
-        .build();
+        .build());
+  }
 
-    Map<KeyUsage, Key> keys = new HashMap<>();
+  @Override public SessionKeys deriveSessionKeys(CardProperties cardProperties, byte[] keyDiversificationData
+      , byte keyVersionNumber, byte[] sequenceCounter) {
+    return deriveSessionKeys(KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .cardProperties(cardProperties)
+        .keyDiversificationData(keyDiversificationData)
+        .keyVersionNumber(keyVersionNumber)
+        .sequenceCounter(sequenceCounter)
+        .build());
+  }
 
-    keys.put(KeyUsage.ENC, keyProvider.deriveSessionKey(context, KeyUsage.ENC));
-    keys.put(KeyUsage.MAC, keyProvider.deriveSessionKey(context, KeyUsage.MAC));
-    keys.put(KeyUsage.DEK, keyProvider.deriveSessionKey(context, KeyUsage.DEK));
-    keys.put(KeyUsage.R_MAC, keyProvider.deriveSessionKey(context, KeyUsage.R_MAC));
+  @Override public CompletionStage<SessionKeys> deriveSessionKeysAsync(CardProperties cardProperties
+      , byte[] keyDiversificationData, byte keyVersionNumber, byte[] sequenceCounter) {
+    if (!(keyProvider instanceof AsyncKeyProvider)) {
+      return super.deriveSessionKeysAsync(cardProperties, keyDiversificationData, keyVersionNumber, sequenceCounter);
+    }
+    KeyContext context = KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .cardProperties(cardProperties)
+        .keyDiversificationData(keyDiversificationData)
+        .keyVersionNumber(keyVersionNumber)
+        .sequenceCounter(sequenceCounter)
+        .build();
+    return ((AsyncKeyProvider) keyProvider).deriveSessionKeysAsync(context, SESSION_KEY_USAGES)
+        .thenApply(keys -> new SessionKeysImpl(keys, keyProvider, context));
+  }
 
-    return new SessionKeysImpl(keys);
+  private SessionKeys deriveSessionKeys(KeyContext context) {
+    return new SessionKeysImpl(keyProvider.deriveSessionKeys(context, SESSION_KEY_USAGES), keyProvider, context);
   }
 }
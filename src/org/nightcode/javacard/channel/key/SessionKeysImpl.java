@@ -16,25 +16,65 @@ package org.nightcode.javacard.channel.key;
 
 import java.security.Key;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import javax.annotation.Nullable;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Session keys that are derived on demand. Keys passed to the constructor are
+ * available immediately, any other key is derived by the {@link KeyProvider}
+ * the first time it is requested, at most once even under concurrent access.
+ */
 class SessionKeysImpl implements SessionKeys {
 
-  private final Map<KeyUsage, Key> keys;
+  private final AtomicReferenceArray<Key> keys = new AtomicReferenceArray<>(KeyUsage.values().length);
+  private final AtomicReferenceArray<Key> desKeys = new AtomicReferenceArray<>(KeyUsage.values().length);
+
+  @Nullable private final KeyProvider keyProvider;
+  @Nullable private final KeyContext context;
 
   SessionKeysImpl(Map<KeyUsage, Key> keys) {
-    this.keys = new HashMap<>(keys);
+    this(keys, null, null);
+  }
+
+  SessionKeysImpl(Map<KeyUsage, Key> keys, @Nullable KeyProvider keyProvider, @Nullable KeyContext context) {
+    for (Map.Entry<KeyUsage, Key> entry : keys.entrySet()) {
+      this.keys.set(entry.getKey().ordinal(), entry.getValue());
+    }
+    this.keyProvider = keyProvider;
+    this.context = context;
   }
 
   @Override public Key getDes(KeyUsage usage) {
-    Key desEde = getDesEde(usage);
-    return new SecretKeySpec(Arrays.copyOf(desEde.getEncoded(), 8), "DES");
+    int index = usage.ordinal();
+    Key key = desKeys.get(index);
+    if (key == null) {
+      Key desEde = getDesEde(usage);
+      if (desEde == null) {
+        return null;
+      }
+      key = new SecretKeySpec(Arrays.copyOf(desEde.getEncoded(), 8), "DES");
+      if (!desKeys.compareAndSet(index, null, key)) {
+        key = desKeys.get(index);
+      }
+    }
+    return key;
   }
 
   @Override public Key getDesEde(KeyUsage usage) {
-    return keys.get(usage);
+    int index = usage.ordinal();
+    Key key = keys.get(index);
+    if (key == null && keyProvider != null) {
+      synchronized (this) {
+        key = keys.get(index);
+        if (key == null) {
+          key = keyProvider.deriveSessionKey(context, usage);
+          keys.set(index, key);
+        }
+      }
+    }
+    return key;
   }
 }
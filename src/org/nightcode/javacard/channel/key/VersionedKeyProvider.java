@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A registry of key providers by key version number that allows live key rotation. The card's key
+ * version number reported in the INITIALIZE UPDATE response selects the provider, key version
+ * number 0 selects the current version. Readers see an immutable snapshot through a single volatile
+ * read and never lock; {@link #publish}, {@link #setCurrent} and {@link #retire} copy the snapshot.
+ * Asynchronous derivations are forwarded to the selected provider if it is an {@link AsyncKeyProvider}.
+ */
+public final class VersionedKeyProvider implements AsyncKeyProvider {
+
+  private static final class Snapshot {
+    private final KeyProvider[] providers;
+    private final int current;
+
+    Snapshot(KeyProvider[] providers, int current) {
+      this.providers = providers;
+      this.current = current;
+    }
+  }
+
+  private volatile Snapshot snapshot = new Snapshot(new KeyProvider[256], -1);
+
+  @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+    return provider(context.keyVersionNumber()).deriveSessionKey(context, usage);
+  }
+
+  @Override public Map<KeyUsage, Key> deriveSessionKeys(KeyContext context, Set<KeyUsage> usages) {
+    return provider(context.keyVersionNumber()).deriveSessionKeys(context, usages);
+  }
+
+  /**
+   * Derives the session keys with the selected provider, without blocking if it is an
+   * {@link AsyncKeyProvider} and on the calling thread otherwise.
+   */
+  @Override public CompletionStage<Map<KeyUsage, Key>> deriveSessionKeysAsync(KeyContext context,
+      Set<KeyUsage> usages) {
+    CompletableFuture<Map<KeyUsage, Key>> result = new CompletableFuture<>();
+    try {
+      KeyProvider keyProvider = provider(context.keyVersionNumber());
+      if (keyProvider instanceof AsyncKeyProvider) {
+        return ((AsyncKeyProvider) keyProvider).deriveSessionKeysAsync(context, usages);
+      }
+      result.complete(keyProvider.deriveSessionKeys(context, usages));
+    } catch (RuntimeException ex) {
+      result.completeExceptionally(ex);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the current key version number or -1 if no version is current.
+   */
+  public int current() {
+    return snapshot.current;
+  }
+
+  /**
+   * Adds or replaces the key provider of the version. The first published version becomes current.
+   */
+  public synchronized void publish(byte keyVersionNumber, KeyProvider keyProvider) {
+    if (keyVersionNumber == 0) {
+      throw new IllegalArgumentException("key version number 0 is reserved for the current version");
+    }
+    if (keyProvider == null) {
+      throw new NullPointerException("keyProvider");
+    }
+    Snapshot current = snapshot;
+    KeyProvider[] providers = Arrays.copyOf(current.providers, current.providers.length);
+    providers[keyVersionNumber & 0xFF] = keyProvider;
+    snapshot = new Snapshot(providers, (current.current < 0) ? (keyVersionNumber & 0xFF) : current.current);
+  }
+
+  /**
+   * Removes the key provider of the version; the current version can't be retired.
+   */
+  public synchronized void retire(byte keyVersionNumber) {
+    Snapshot current = snapshot;
+    if ((keyVersionNumber & 0xFF) == current.current) {
+      throw new IllegalStateException(String.format("key version number %02X is current", keyVersionNumber));
+    }
+    KeyProvider[] providers = Arrays.copyOf(current.providers, current.providers.length);
+    providers[keyVersionNumber & 0xFF] = null;
+    snapshot = new Snapshot(providers, current.current);
+  }
+
+  /**
+   * Makes a published version current, i.e. used for key version number 0.
+   */
+  public synchronized void setCurrent(byte keyVersionNumber) {
+    Snapshot current = snapshot;
+    if (current.providers[keyVersionNumber & 0xFF] == null) {
+      throw new IllegalArgumentException(String.format("unknown key version number %02X", keyVersionNumber));
+    }
+    snapshot = new Snapshot(current.providers, keyVersionNumber & 0xFF);
+  }
+
+  private KeyProvider provider(byte keyVersionNumber) {
+    Snapshot current = snapshot;
+    int version = (keyVersionNumber == 0) ? current.current : (keyVersionNumber & 0xFF);
+    KeyProvider keyProvider = (version >= 0) ? current.providers[version] : null;
+    if (keyProvider == null) {
+      throw new IllegalArgumentException(String.format("unknown key version number %02X", keyVersionNumber));
+    }
+    return keyProvider;
+  }
+}
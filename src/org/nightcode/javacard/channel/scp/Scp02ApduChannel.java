@@ -16,72 +16,45 @@ package org.nightcode.javacard.channel.scp;
 
 import org.nightcode.javacard.JavaCardException;
 import org.nightcode.javacard.channel.ApduChannel;
+import org.nightcode.javacard.channel.BufferedApduChannel;
 import org.nightcode.javacard.channel.CardChannelContext;
-import org.nightcode.javacard.channel.key.KeyUsage;
-import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.channel.ScriptExecutionException;
+import org.nightcode.javacard.channel.SwPolicy;
 import org.nightcode.javacard.common.SecurityLevel;
 import org.nightcode.javacard.util.Hexs;
-import org.nightcode.javacard.util.Iso7816D4;
-import org.nightcode.javacard.util.JcCryptoUtils;
 
 import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.Key;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-import javax.crypto.Cipher;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
-final class Scp02ApduChannel implements ApduChannel {
-
-  private static final int CMAC_LENGTH = 8;
-  private static final int ENC_LENGTH = 8;
-
-  private static final int SWS_LENGTH = 2;
+final class Scp02ApduChannel implements BufferedApduChannel {
 
   private static final Hexs HEX = Hexs.hex();
 
-  private final ApduChannel channel;
-  private final SessionKeys sessionKeys;
-  private final EnumSet<SecurityLevel> securityLevel;
-  private final Scp02ParameterI i;
-  private final int maxDataLength;
-
-  private volatile byte[] icv;
-  private volatile byte[] rIcv;
-  private volatile byte[] rMac;
+  private static final int MAX_SHORT_COMMAND_LENGTH = 261;
 
-  private final Cipher desCipher;
-  private final Cipher desCbcCipher;
+  private final ApduChannel channel;
+  private final Scp02Codec codec;
 
-  Scp02ApduChannel(CardChannelContext context, EnumSet<SecurityLevel> securityLevel) {
-    this(context, securityLevel, null);
-  }
+  private ByteBuffer commandBuffer = ByteBuffer.allocate(Scp02Codec.wrappedLength(MAX_SHORT_COMMAND_LENGTH));
+  private ByteBuffer responseBuffer = ByteBuffer.allocate(MIN_RESPONSE_CAPACITY + Scp02Codec.CMAC_LENGTH);
 
-  Scp02ApduChannel(CardChannelContext context, EnumSet<SecurityLevel> securityLevel, byte[] icv) {
+  /**
+   * Creates a channel that secures commands with the ciphers of {@code cryptoContext}. The context
+   * stays owned by the caller, which releases it once no channel of the session uses it.
+   */
+  Scp02ApduChannel(CardChannelContext context, Scp02CryptoContext cryptoContext, EnumSet<SecurityLevel> securityLevel,
+      byte[] icv) {
     this.channel = context.channel();
-    this.i = Scp02ParameterI.of(context.getCardRecognitionData());
-    this.sessionKeys = context.getSessionKeys();
-    this.securityLevel = securityLevel;
-    this.icv = icv;
-
-    int maxLength = context.getMaxLength();
-    if (securityLevel.contains(SecurityLevel.C_MAC)) {
-      maxLength -= CMAC_LENGTH;
-      if (securityLevel.contains(SecurityLevel.C_DECRYPTION)) {
-        maxLength -= ENC_LENGTH;
-      }
-    }
-    this.maxDataLength = maxLength;
-
-    try {
-      desCipher = Cipher.getInstance(JcCryptoUtils.DES_ECB_NO_PADDING);
-      desCbcCipher = Cipher.getInstance(JcCryptoUtils.DES_EDE_CBC_NO_PADDING);
-    } catch (GeneralSecurityException ex) {
-      throw new RuntimeException("unsupported cryptographic algorithm", ex);
-    }
+    this.codec = new Scp02Codec(cryptoContext, securityLevel, Scp02ParameterI.of(context.getCardRecognitionData())
+        , context.getMaxLength(), icv);
   }
 
   @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
@@ -94,132 +67,151 @@ final class Scp02ApduChannel implements ApduChannel {
     }
   }
 
-  byte[] getIcv() {
-    return icv;
-  }
-
-  void setRicv(byte[] rIcv) {
-    this.rIcv = rIcv;
-  }
-
-  private byte[] commandEncryption(Key key, byte[] data) throws GeneralSecurityException {
-    desCbcCipher.init(Cipher.ENCRYPT_MODE, key, JcCryptoUtils.ZERO_IV_PARAMETER_SPEC);
-    return desCbcCipher.doFinal(data);
+  @Override public int transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+    int commandStart = command.position();
+    int start = response.position();
+    int limit = response.limit();
+    try {
+      codec.wrap(command);
+      int length;
+      if (channel instanceof BufferedApduChannel) {
+        length = ((BufferedApduChannel) channel).transmit(command, response);
+      } else {
+        byte[] apdu = new byte[command.remaining()];
+        command.get(apdu);
+        byte[] responseApdu = channel.transmit(new CommandAPDU(apdu)).getBytes();
+        response.put(responseApdu);
+        length = responseApdu.length;
+      }
+      response.limit(start + length).position(start);
+      codec.unwrap(response);
+      length = response.limit() - start;
+      response.limit(limit).position(start + length);
+      return length;
+    } catch (Exception ex) {
+      throw new IOException(String.format("APDU [%s] transmit problem: %s"
+          , HEX.fromByteBuffer(command, commandStart, command.limit() - commandStart), ex.getMessage()), ex);
+    }
   }
 
-  private byte[] icvEncryption(Key key, byte[] icv) throws GeneralSecurityException {
-    desCipher.init(Cipher.ENCRYPT_MODE, key);
-    return desCipher.doFinal(icv);
+  /**
+   * Transmits the commands one by one through the buffered path and returns their status words.
+   * The command and the response buffer of the channel are reused for all commands.
+   */
+  int[] transmitAll(List<CommandAPDU> commands, SwPolicy policy) throws ScriptExecutionException {
+    boolean abortOnUnexpected = policy.abortOnUnexpected();
+    int[] sws = new int[commands.size()];
+    for (int n = 0; n < sws.length; n++) {
+      CommandAPDU request = commands.get(n);
+      byte[] apdu = request.getBytes();
+      ByteBuffer command = commandBuffer(apdu.length);
+      command.put(apdu).flip();
+      ByteBuffer response = responseBuffer(request.getNe());
+      int length;
+      try {
+        length = transmit(command, response);
+      } catch (IOException ex) {
+        throw new ScriptExecutionException(n, ex);
+      }
+      int sw = ((response.get(length - 2) & 0xFF) << 8) | (response.get(length - 1) & 0xFF);
+      sws[n] = sw;
+      if (abortOnUnexpected && !policy.isExpected(sw)) {
+        return Arrays.copyOf(sws, n + 1);
+      }
+    }
+    return sws;
   }
 
-  private ResponseAPDU unwrap(ResponseAPDU origin) throws JavaCardException {
-    if (securityLevel.contains(SecurityLevel.R_MAC)) {
-      byte[] data = origin.getData();
-      if (data.length < 8) {
-        throw new JavaCardException("received invalid APDU response %s", Hexs.hex().fromByteArray(data));
+  /**
+   * Transmits the commands, pipelined by {@link Scp02ScriptPipeline} if {@code depth} is greater
+   * than 1, and returns the responses including the one that aborted the script.
+   */
+  List<ResponseAPDU> transmitScript(List<CommandAPDU> commands, SwPolicy policy, int depth, Executor executor)
+      throws ScriptExecutionException {
+    if (depth != 1) {
+      return new Scp02ScriptPipeline(channel, codec, depth, executor).execute(commands, policy);
+    }
+    boolean abortOnUnexpected = policy.abortOnUnexpected();
+    List<ResponseAPDU> responses = new ArrayList<>(commands.size());
+    for (int n = 0; n < commands.size(); n++) {
+      ResponseAPDU response;
+      try {
+        response = transmit(commands.get(n));
+      } catch (IOException ex) {
+        throw new ScriptExecutionException(n, ex);
       }
-      int rDataLength = data.length - 8;
-      byte[] buffer = new byte[Iso7816D4.paddedLength(rMac.length + 1 + rDataLength + SWS_LENGTH)];
-      int offset = 0;
-      System.arraycopy(rMac, 0, buffer, offset, rMac.length);
-      offset += rMac.length;
-      buffer[offset++] = (byte) rDataLength;
-      System.arraycopy(data, 0, buffer, offset, rDataLength);
-      offset += rDataLength;
-      buffer[offset++] = (byte) origin.getSW1();
-      buffer[offset++] = (byte) origin.getSW2();
-      buffer[offset] = (byte) 0x80;
-
-      Key sessionMacKey = sessionKeys.getDesEde(KeyUsage.R_MAC);
-
-      byte[] rmac = JcCryptoUtils.macAlgorithm3(sessionMacKey, rIcv, buffer);
-      rIcv = rmac;
-
-      byte[] cardRmac = new byte[8];
-      System.arraycopy(data, rDataLength, cardRmac, 0, cardRmac.length);
-      if (!Arrays.equals(rmac, cardRmac)) {
-        throw new JavaCardException("invalid RMAC value %s, expected %s"
-            , HEX.fromByteArray(cardRmac), HEX.fromByteArray(rmac));
+      responses.add(response);
+      if (abortOnUnexpected && !policy.isExpected(response.getSW())) {
+        break;
       }
-
-      return new ResponseAPDU(Arrays.copyOfRange(buffer, rMac.length + 1, offset));
     }
+    return responses;
+  }
 
-    return origin;
+  byte[] getIcv() {
+    return codec.getIcv();
   }
 
-  private CommandAPDU wrap(CommandAPDU origin) throws IOException, GeneralSecurityException {
-    byte[] apdu = origin.getBytes();
-    int nc = origin.getNc();
-    if (securityLevel.contains(SecurityLevel.R_MAC)) {
-      if (nc == 0) {
-        rMac = Arrays.copyOf(apdu, 4);
-      } else {
-        rMac = Arrays.copyOf(apdu, 5 + nc);
-      }
-      rMac[0] &= (byte) 0xF8;
-    }
+  void setInitialIcv(byte[] icv) {
+    codec.setInitialIcv(icv);
+  }
 
-    if (!securityLevel.contains(SecurityLevel.C_MAC)) {
-      return origin;
-    }
+  void setRicv(byte[] rIcv) {
+    codec.setRicv(rIcv);
+  }
 
-    if (nc > maxDataLength) {
-      throw new IOException(String.format("APDU command DATA length %d MUST be <= %d", nc, maxDataLength));
-    }
+  void wrap(ByteBuffer command) throws IOException {
+    codec.wrap(command);
+  }
 
-    byte[] buffer = new byte[Iso7816D4.paddedLength(5 + nc)];
-    System.arraycopy(apdu, 0, buffer, 0, 4);
-    buffer[4] = (byte) nc;
-    if (nc > 0) {
-      System.arraycopy(apdu, 5, buffer, 5, nc);
-    }
-    buffer[5 + nc] = (byte) 0x80;
+  void wrap(int cla, int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer out) throws IOException {
+    codec.wrap(cla, ins, p1, p2, data, ne, out);
+  }
 
-    if (i.cMacOnModifiedApdu()) {
-      buffer[0] |= 0x04;
-      buffer[4] += CMAC_LENGTH;
-    }
+  void unwrap(ByteBuffer response) throws JavaCardException {
+    codec.unwrap(response);
+  }
 
-    if (icv == null) {
-      icv = new byte[8];
-    } else if (i.icvEncryptionForCMacSession()) {
-      Key key = sessionKeys.getDes(KeyUsage.MAC);
-      icv = icvEncryption(key, icv);
+  private ResponseAPDU unwrap(ResponseAPDU origin) throws JavaCardException {
+    byte[] apdu = origin.getBytes();
+    ByteBuffer buffer = ByteBuffer.wrap(apdu);
+    codec.unwrap(buffer);
+    if (buffer.limit() == apdu.length) {
+      return origin;
     }
+    return new ResponseAPDU(Arrays.copyOf(apdu, buffer.limit()));
+  }
 
-    Key sessionMacKey = sessionKeys.getDesEde(KeyUsage.MAC);
-    byte[] cmac = JcCryptoUtils.macAlgorithm3(sessionMacKey, icv, buffer);
-    icv = cmac;
+  private CommandAPDU wrap(CommandAPDU origin) throws IOException {
+    byte[] apdu = origin.getBytes();
+    ByteBuffer buffer = commandBuffer(apdu.length);
+    buffer.put(apdu).flip();
 
-    if (i.cMacOnUnmodifiedApdu()) {
-      buffer[0] |= 0x04;
-      buffer[4] += CMAC_LENGTH;
-    }
+    codec.wrap(buffer);
+    return new CommandAPDU(buffer.array(), 0, buffer.limit());
+  }
 
-    byte[] commandData;
-    if (nc > 0 && securityLevel.contains(SecurityLevel.C_DECRYPTION)) {
-      Key sessionEncKey = sessionKeys.getDesEde(KeyUsage.ENC);
-      byte[] paddedData = Iso7816D4.pad(apdu, 5, nc);
-      commandData = commandEncryption(sessionEncKey, paddedData);
-      buffer[4] += paddedData.length - nc;
-    } else {
-      commandData = origin.getData();
+  /**
+   * Returns the cleared command buffer, grown to wrap a command of {@code commandLength} bytes.
+   */
+  private ByteBuffer commandBuffer(int commandLength) {
+    int capacity = Scp02Codec.wrappedLength(commandLength);
+    if (commandBuffer.capacity() < capacity) {
+      commandBuffer = ByteBuffer.allocate(capacity);
     }
+    commandBuffer.clear();
+    return commandBuffer;
+  }
 
-    int offset = 0;
-    byte[] command = new byte[5 + commandData.length + CMAC_LENGTH + ((origin.getNe() > 0) ? 1 : 0)];
-    System.arraycopy(buffer, 0, command, offset, 5);
-    offset += 5;
-    if (commandData.length > 0) {
-      System.arraycopy(commandData, 0, command, offset, commandData.length);
-      offset += commandData.length;
-    }
-    System.arraycopy(cmac, 0, command, offset, cmac.length);
-    if (origin.getNe() > 0) {
-      command[offset + cmac.length] = (byte) origin.getNe();
+  /**
+   * Returns the cleared response buffer, grown to receive {@code ne} data bytes with an R-MAC.
+   */
+  private ByteBuffer responseBuffer(int ne) {
+    int capacity = Math.max(ne + 2 + Scp02Codec.CMAC_LENGTH, MIN_RESPONSE_CAPACITY);
+    if (responseBuffer.capacity() < capacity) {
+      responseBuffer = ByteBuffer.allocate(capacity);
     }
-
-    return new CommandAPDU(command);
+    responseBuffer.clear();
+    return responseBuffer;
   }
 }
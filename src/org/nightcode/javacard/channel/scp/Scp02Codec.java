@@ -0,0 +1,497 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.JavaCardException;
+import org.nightcode.javacard.common.Apdu;
+import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.util.Hexs;
+import org.nightcode.javacard.util.Iso7816D4;
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * SCP02 command wrapping and response unwrapping performed in place on
+ * caller-owned (heap or direct) buffers. The codec keeps the C-MAC and R-MAC
+ * chaining state of a secure channel session and is not thread-safe.
+ * Extended length commands are supported if the card's maximum length of the
+ * command data field exceeds 255 bytes. A secured command is encoded with
+ * extended length if the command was, if its secured data field exceeds 255
+ * bytes or if Ne exceeds 256. The C-MAC input contains the Lc field encoded
+ * like the secured command, the R-MAC input like the unsecured command, and
+ * response data longer than 255 bytes is counted as {@code 00 | Li1 | Li2}.
+ */
+final class Scp02Codec {
+
+  static final int CMAC_LENGTH = 8;
+  static final int ENC_LENGTH = 8;
+
+  private static final int HEADER_LENGTH = 4;
+  private static final int OFFSET_CLA = 0;
+  private static final int OFFSET_LC = 4;
+  private static final int OFFSET_CDATA = 5;
+  private static final int OFFSET_CDATA_EXTENDED = 7;
+  private static final int SWS_LENGTH = 2;
+  private static final int MAX_SHORT_NC = 255;
+  private static final int MAX_SHORT_NE = 256;
+  private static final int MAX_EXTENDED_NC = 65535;
+  private static final int MAX_EXTENDED_NE = 65536;
+
+  private static final Hexs HEX = Hexs.hex();
+
+  /**
+   * The chaining state after a command was wrapped: the C-MAC of the command, which is the ICV
+   * of the next one, and the unsecured command for the R-MAC of its response.
+   */
+  static final class Checkpoint {
+    private final byte[] icv;
+    private final boolean initialIcv;
+    private final byte[] rMacHeader;
+
+    private Checkpoint(@Nullable byte[] icv, boolean initialIcv, byte[] rMacHeader) {
+      this.icv = icv;
+      this.initialIcv = initialIcv;
+      this.rMacHeader = rMacHeader;
+    }
+  }
+
+  private final Scp02CryptoContext cryptoContext;
+  private final EnumSet<SecurityLevel> securityLevel;
+  private final Scp02ParameterI i;
+  private final int maxDataLength;
+  private final boolean extendedLength;
+
+  private final MacAlgorithm3 rMacAlgorithm;
+
+  private final byte[] header = new byte[OFFSET_CDATA_EXTENDED];
+  private byte[] rMacHeader = new byte[OFFSET_CDATA + MAX_SHORT_NC];
+  private int rMacHeaderLength;
+
+  private byte[] icv;
+  private boolean initialIcv;
+  private byte[] rIcv;
+
+  Scp02Codec(Scp02CryptoContext cryptoContext, EnumSet<SecurityLevel> securityLevel, Scp02ParameterI i,
+      int maxLength, @Nullable byte[] icv) {
+    this.cryptoContext = cryptoContext;
+    this.securityLevel = securityLevel;
+    this.i = i;
+    this.icv = (icv != null) ? Arrays.copyOf(icv, CMAC_LENGTH) : null;
+    this.extendedLength = maxLength > MAX_SHORT_NC;
+
+    if (securityLevel.contains(SecurityLevel.C_MAC)) {
+      maxLength -= CMAC_LENGTH;
+      if (securityLevel.contains(SecurityLevel.C_DECRYPTION)) {
+        maxLength -= ENC_LENGTH;
+      }
+    }
+    this.maxDataLength = maxLength;
+
+    rMacAlgorithm = securityLevel.contains(SecurityLevel.R_MAC) ? cryptoContext.rMac() : null;
+  }
+
+  byte[] getIcv() {
+    return icv;
+  }
+
+  /**
+   * Sets the ICV of the first C-MAC of an implicitly initiated session; unlike the ICV chained
+   * from a previous command it is never encrypted.
+   */
+  void setInitialIcv(byte[] icv) {
+    this.icv = Arrays.copyOf(icv, CMAC_LENGTH);
+    initialIcv = true;
+  }
+
+  void setRicv(byte[] rIcv) {
+    this.rIcv = Arrays.copyOf(rIcv, CMAC_LENGTH);
+  }
+
+  /**
+   * Captures the chaining state after the last wrapped command. Wrapping may continue
+   * on another thread while the response of that command is unwrapped with
+   * {@link #unwrap(ByteBuffer, Checkpoint)}.
+   */
+  Checkpoint checkpoint() {
+    byte[] header = securityLevel.contains(SecurityLevel.R_MAC)
+        ? Arrays.copyOf(rMacHeader, rMacHeaderLength) : rMacHeader;
+    return new Checkpoint((icv != null) ? icv.clone() : null, initialIcv, header);
+  }
+
+  /**
+   * Rolls the C-MAC chaining back to the checkpoint, e.g. when commands wrapped ahead of the
+   * transport are discarded. Must not be called concurrently with {@code wrap}.
+   */
+  void restore(Checkpoint checkpoint) {
+    icv = (checkpoint.icv != null) ? checkpoint.icv.clone() : null;
+    initialIcv = checkpoint.initialIcv;
+  }
+
+  /**
+   * Returns the maximum number of bytes the secured form of a command with
+   * {@code length} bytes may occupy.
+   */
+  static int wrappedLength(int length) {
+    return length + 3 + ENC_LENGTH + CMAC_LENGTH;
+  }
+
+  /**
+   * Wraps a short or extended length command APDU located between the buffer's position and
+   * limit. On return the buffer's limit is set to the end of the secured command; the
+   * position is not modified. The buffer's capacity must be at least
+   * {@link #wrappedLength(int)} bytes past the position.
+   */
+  void wrap(ByteBuffer command) throws IOException {
+    final int start = command.position();
+    final int length = command.limit() - start;
+    if (length < HEADER_LENGTH) {
+      throw new IllegalArgumentException("APDU command must be at least 4 bytes long");
+    }
+
+    int nc = 0;
+    int ne = 0;
+    int dataOffset = OFFSET_CDATA;
+    boolean extended = false;
+    if (length == HEADER_LENGTH + 1) {
+      ne = shortNe(command.get(start + OFFSET_LC));
+    } else if (length > HEADER_LENGTH + 1 && command.get(start + OFFSET_LC) != 0) {
+      nc = command.get(start + OFFSET_LC) & 0xFF;
+      if (length == OFFSET_CDATA + nc + 1) {
+        ne = shortNe(command.get(start + length - 1));
+      } else if (length != OFFSET_CDATA + nc) {
+        throw new IllegalArgumentException("invalid APDU command length " + length);
+      }
+    } else if (length == OFFSET_CDATA_EXTENDED) {
+      extended = true;
+      ne = extendedNe(command, start + OFFSET_CDATA);
+    } else if (length > OFFSET_CDATA_EXTENDED) {
+      extended = true;
+      dataOffset = OFFSET_CDATA_EXTENDED;
+      nc = ((command.get(start + OFFSET_CDATA) & 0xFF) << 8) | (command.get(start + OFFSET_CDATA + 1) & 0xFF);
+      if (nc != 0 && length == OFFSET_CDATA_EXTENDED + nc + 2) {
+        ne = extendedNe(command, start + length - 2);
+      } else if (nc == 0 || length != OFFSET_CDATA_EXTENDED + nc) {
+        throw new IllegalArgumentException("invalid APDU command length " + length);
+      }
+    } else if (length != HEADER_LENGTH) {
+      throw new IllegalArgumentException("invalid APDU command length " + length);
+    }
+
+    for (int j = 0; j < HEADER_LENGTH; j++) {
+      header[j] = command.get(start + j);
+    }
+    captureRMacHeader(command, start + dataOffset, nc, extended);
+    if (!securityLevel.contains(SecurityLevel.C_MAC)) {
+      return;
+    }
+
+    int end = secure(command, start + dataOffset, nc, ne, extended, command, start, command.capacity());
+    command.limit(end);
+  }
+
+  /**
+   * Wraps the command {@code cla ins p1 p2} whose data field is the content of
+   * {@code data} between its position and limit. The data is read (and MACed) straight
+   * from {@code data} and the secured command is written to {@code out} starting at
+   * its position; on return the position of {@code data} equals its limit and the
+   * position of {@code out} is advanced past the secured command.
+   *
+   * @param ne the maximum number of expected response bytes (1..65536), 0 if the command has no Le field
+   */
+  void wrap(int cla, int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer out) throws IOException {
+    final int dataStart = data.position();
+    final int nc = data.limit() - dataStart;
+    int maxNc = extendedLength ? MAX_EXTENDED_NC : MAX_SHORT_NC;
+    if (nc > maxNc) {
+      throw new IllegalArgumentException("APDU command DATA length " + nc + " exceeds " + maxNc);
+    }
+    int maxNe = extendedLength ? MAX_EXTENDED_NE : MAX_SHORT_NE;
+    if (ne < 0 || ne > maxNe) {
+      throw new IllegalArgumentException("ne [" + ne + "] must be between 0 and " + maxNe);
+    }
+    header[0] = (byte) cla;
+    header[1] = (byte) ins;
+    header[2] = (byte) p1;
+    header[3] = (byte) p2;
+    captureRMacHeader(data, dataStart, nc, false);
+
+    final int start = out.position();
+    int end;
+    if (securityLevel.contains(SecurityLevel.C_MAC)) {
+      end = secure(data, dataStart, nc, ne, false, out, start, out.limit());
+    } else {
+      boolean extended = nc > MAX_SHORT_NC || ne > MAX_SHORT_NE;
+      int plainLength = HEADER_LENGTH + ((nc > 0) ? lcLength(extended) + nc : 0) + leLength(ne, extended, nc > 0);
+      if (out.limit() - start < plainLength) {
+        throw new BufferOverflowException();
+      }
+      for (int j = 0; j < HEADER_LENGTH; j++) {
+        out.put(start + j, header[j]);
+      }
+      end = start + HEADER_LENGTH;
+      if (nc > 0) {
+        end = putLength(out, end, nc, extended, true);
+        copy(data, dataStart, nc, out, end);
+        end += nc;
+      }
+      end = putLe(out, end, ne, extended, nc > 0);
+    }
+    data.position(data.limit());
+    out.position(end);
+  }
+
+  /**
+   * Writes the secured form of the command {@link #header} | Lc | data | Le to {@code out}
+   * between {@code outStart} and {@code outEnd} and returns the end index. The data may
+   * already be in place. The limit of {@code out} is set to {@code outEnd}.
+   */
+  private int secure(ByteBuffer data, int dataIndex, int nc, int ne, boolean extended, ByteBuffer out,
+      int outStart, int outEnd) throws IOException {
+    if (nc > maxDataLength) {
+      throw new IOException(String.format("APDU command DATA length %d MUST be <= %d", nc, maxDataLength));
+    }
+    boolean encryption = nc > 0 && securityLevel.contains(SecurityLevel.C_DECRYPTION);
+    int dataLength = encryption ? Iso7816D4.paddedLength(nc) : nc;
+    extended |= dataLength + CMAC_LENGTH > MAX_SHORT_NC || ne > MAX_SHORT_NE;
+    if (extended && !extendedLength) {
+      throw new IOException("extended length APDU commands are not supported by the card");
+    }
+    int headerLength = HEADER_LENGTH + lcLength(extended);
+    if (outEnd - outStart < headerLength + dataLength + CMAC_LENGTH + leLength(ne, extended, true)) {
+      throw new BufferOverflowException();
+    }
+    out.limit(outEnd);
+    int lc = nc;
+
+    if (i.cMacOnModifiedApdu()) {
+      header[OFFSET_CLA] |= Apdu.GP_SECURED_MASK;
+      lc += CMAC_LENGTH;
+    }
+    putLength(header, OFFSET_LC, lc, extended);
+
+    if (icv == null) {
+      icv = new byte[CMAC_LENGTH];
+    } else if (!initialIcv && i.icvEncryptionForCMacSession()) {
+      cryptoContext.encryptIcv(icv);
+    }
+    initialIcv = false;
+
+    cryptoContext.cMac(icv, header, headerLength, data, dataIndex, nc);
+
+    if (i.cMacOnUnmodifiedApdu()) {
+      header[OFFSET_CLA] |= Apdu.GP_SECURED_MASK;
+      lc += CMAC_LENGTH;
+    }
+
+    int dataOffset = outStart + headerLength;
+    if (out != data || dataOffset != dataIndex) {
+      copy(data, dataIndex, nc, out, dataOffset);
+    }
+    if (encryption) {
+      out.put(dataOffset + nc, (byte) 0x80);
+      for (int j = dataOffset + nc + 1; j < dataOffset + dataLength; j++) {
+        out.put(j, (byte) 0x00);
+      }
+      cryptoContext.encrypt(out, dataOffset, dataLength);
+      lc += dataLength - nc;
+    }
+    putLength(header, OFFSET_LC, lc, extended);
+    for (int j = 0; j < headerLength; j++) {
+      out.put(outStart + j, header[j]);
+    }
+
+    int offset = dataOffset + dataLength;
+    for (int j = 0; j < CMAC_LENGTH; j++) {
+      out.put(offset++, icv[j]);
+    }
+    return putLe(out, offset, ne, extended, true);
+  }
+
+  /**
+   * Verifies and strips the R-MAC of a response located between the buffer's
+   * position and limit. On return the buffer's limit is set to the end of the
+   * unwrapped response (data followed by the status word).
+   */
+  void unwrap(ByteBuffer response) throws JavaCardException {
+    unwrap(response, rMacHeader, rMacHeaderLength);
+  }
+
+  /**
+   * Unwraps the response of the command wrapped before {@code checkpoint} was captured.
+   * Uses no state shared with {@code wrap}.
+   */
+  void unwrap(ByteBuffer response, Checkpoint checkpoint) throws JavaCardException {
+    unwrap(response, checkpoint.rMacHeader, checkpoint.rMacHeader.length);
+  }
+
+  private void unwrap(ByteBuffer response, byte[] command, int commandLength) throws JavaCardException {
+    if (!securityLevel.contains(SecurityLevel.R_MAC)) {
+      return;
+    }
+    final int start = response.position();
+    final int end = response.limit();
+    int dataLength = end - start - SWS_LENGTH;
+    if (dataLength < CMAC_LENGTH) {
+      throw new JavaCardException("received invalid APDU response %s"
+          , HEX.fromByteArray(toArray(response, start, Math.max(dataLength, 0))));
+    }
+    int rDataLength = dataLength - CMAC_LENGTH;
+    byte sw1 = response.get(end - 2);
+    byte sw2 = response.get(end - 1);
+
+    if (rIcv == null) {
+      rIcv = new byte[CMAC_LENGTH];
+    }
+    rMacAlgorithm.init(rIcv);
+    rMacAlgorithm.update(command, 0, commandLength);
+    if (rDataLength > MAX_SHORT_NC) {
+      rMacAlgorithm.update((byte) 0x00);
+      rMacAlgorithm.update((byte) (rDataLength >> 8));
+    }
+    rMacAlgorithm.update((byte) rDataLength);
+    rMacAlgorithm.update(response, start, rDataLength);
+    rMacAlgorithm.update(sw1);
+    rMacAlgorithm.update(sw2);
+    rMacAlgorithm.doFinalPadded(rIcv, 0);
+
+    int macOffset = start + rDataLength;
+    int diff = 0;
+    for (int j = 0; j < CMAC_LENGTH; j++) {
+      diff |= rIcv[j] ^ response.get(macOffset + j);
+    }
+    if (diff != 0) {
+      throw new JavaCardException("invalid RMAC value %s, expected %s"
+          , HEX.fromByteArray(toArray(response, macOffset, CMAC_LENGTH)), HEX.fromByteArray(rIcv));
+    }
+
+    response.put(macOffset, sw1);
+    response.put(macOffset + 1, sw2);
+    response.limit(macOffset + SWS_LENGTH);
+  }
+
+  /**
+   * Keeps the unsecured header and data of the command for the R-MAC of its response.
+   */
+  private void captureRMacHeader(ByteBuffer data, int dataIndex, int nc, boolean extended) {
+    if (!securityLevel.contains(SecurityLevel.R_MAC)) {
+      return;
+    }
+    System.arraycopy(header, 0, rMacHeader, 0, HEADER_LENGTH);
+    rMacHeader[OFFSET_CLA] &= (byte) 0xF8;
+    if (nc == 0) {
+      rMacHeaderLength = HEADER_LENGTH;
+      return;
+    }
+    extended |= nc > MAX_SHORT_NC;
+    int dataOffset = HEADER_LENGTH + lcLength(extended);
+    if (rMacHeader.length < dataOffset + nc) {
+      rMacHeader = Arrays.copyOf(rMacHeader, dataOffset + nc);
+    }
+    putLength(rMacHeader, OFFSET_LC, nc, extended);
+    for (int j = 0; j < nc; j++) {
+      rMacHeader[dataOffset + j] = data.get(dataIndex + j);
+    }
+    rMacHeaderLength = dataOffset + nc;
+  }
+
+  private static int lcLength(boolean extended) {
+    return extended ? 3 : 1;
+  }
+
+  private static int leLength(int ne, boolean extended, boolean hasLc) {
+    if (ne == 0) {
+      return 0;
+    }
+    if (!extended) {
+      return 1;
+    }
+    return hasLc ? 2 : 3;
+  }
+
+  private static int shortNe(byte le) {
+    return (le == 0) ? MAX_SHORT_NE : (le & 0xFF);
+  }
+
+  private static int extendedNe(ByteBuffer command, int index) {
+    int ne = ((command.get(index) & 0xFF) << 8) | (command.get(index + 1) & 0xFF);
+    return (ne == 0) ? MAX_EXTENDED_NE : ne;
+  }
+
+  /**
+   * Writes Lc at {@code offset} of the header, as {@code 00 | Lc1 | Lc2} if extended.
+   */
+  private static void putLength(byte[] buffer, int offset, int length, boolean extended) {
+    if (extended) {
+      buffer[offset] = 0x00;
+      buffer[offset + 1] = (byte) (length >> 8);
+      buffer[offset + 2] = (byte) length;
+    } else {
+      buffer[offset] = (byte) length;
+    }
+  }
+
+  private static int putLength(ByteBuffer buffer, int index, int length, boolean extended, boolean lc) {
+    if (extended) {
+      if (lc) {
+        buffer.put(index++, (byte) 0x00);
+      }
+      buffer.put(index++, (byte) (length >> 8));
+    }
+    buffer.put(index++, (byte) length);
+    return index;
+  }
+
+  /**
+   * Writes the Le field of {@code ne} expected bytes; an extended Le without Lc field starts with 00.
+   */
+  private static int putLe(ByteBuffer buffer, int index, int ne, boolean extended, boolean hasLc) {
+    if (ne == 0) {
+      return index;
+    }
+    if (extended && !hasLc) {
+      buffer.put(index++, (byte) 0x00);
+    }
+    return putLength(buffer, index, ne, extended, false);
+  }
+
+  private static void copy(ByteBuffer src, int srcIndex, int length, ByteBuffer dst, int dstIndex) {
+    if (src == dst && dstIndex > srcIndex && dstIndex < srcIndex + length) {
+      for (int j = length - 1; j >= 0; j--) {
+        dst.put(dstIndex + j, src.get(srcIndex + j));
+      }
+      return;
+    }
+    ByteBuffer source = src.duplicate();
+    source.limit(srcIndex + length).position(srcIndex);
+    ByteBuffer target = dst.duplicate();
+    target.limit(dstIndex + length).position(dstIndex);
+    target.put(source);
+  }
+
+  private static byte[] toArray(ByteBuffer buffer, int index, int length) {
+    byte[] result = new byte[length];
+    for (int j = 0; j < length; j++) {
+      result[j] = buffer.get(index + j);
+    }
+    return result;
+  }
+}
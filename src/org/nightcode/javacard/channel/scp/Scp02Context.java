@@ -14,16 +14,33 @@
 
 package org.nightcode.javacard.channel.scp;
 
+import javax.annotation.Nullable;
+
 class Scp02Context {
 
   private final byte[] hostChallenge;
   private final byte[] cardChallenge;
   private final byte[] sequenceCounter;
+  private final byte[] keyDiversificationData;
+  private final byte keyVersionNumber;
+  private final byte[] cardCryptogram;
 
   Scp02Context(byte[] hostChallenge, byte[] cardChallenge, byte[] sequenceCounter) {
+    this(hostChallenge, cardChallenge, sequenceCounter, null, (byte) 0, null);
+  }
+
+  Scp02Context(byte[] hostChallenge, byte[] cardChallenge, byte[] sequenceCounter
+      , @Nullable byte[] keyDiversificationData, byte keyVersionNumber, @Nullable byte[] cardCryptogram) {
     this.hostChallenge = hostChallenge;
     this.cardChallenge = cardChallenge;
     this.sequenceCounter = sequenceCounter;
+    this.keyDiversificationData = keyDiversificationData;
+    this.keyVersionNumber = keyVersionNumber;
+    this.cardCryptogram = cardCryptogram;
+  }
+
+  @Nullable byte[] getCardCryptogram() {
+    return cardCryptogram;
   }
 
   byte[] getCardChallenge() {
@@ -34,6 +51,14 @@ class Scp02Context {
     return hostChallenge;
   }
 
+  @Nullable byte[] getKeyDiversificationData() {
+    return keyDiversificationData;
+  }
+
+  byte getKeyVersionNumber() {
+    return keyVersionNumber;
+  }
+
   byte[] getSequenceCounter() {
     return sequenceCounter;
   }
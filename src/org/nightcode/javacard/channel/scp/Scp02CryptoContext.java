@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.channel.key.KeyUsage;
+import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.crypto.BatchMacEngine;
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.util.Iso7816D4;
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Session scoped cryptographic context. All engines are created once from
+ * the session keys by the session's {@link CryptoBackend}, so no key setup
+ * is performed per APDU. The DEK and R-MAC engines are created, and their
+ * session keys derived, only when first used. If a {@link BatchMacEngine} is given the C-MAC is
+ * computed by that shared engine. A context that is no longer used is released, so the backend
+ * can hand its engine resources to the next session.
+ */
+final class Scp02CryptoContext {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final CryptoBackend backend;
+  private final SessionKeys sessionKeys;
+
+  private final CipherEngine encEngine;
+  private volatile CipherEngine dekEngine;
+  private final CipherEngine macEngine;
+
+  private final MacAlgorithm3 cMacAlgorithm;
+  private volatile MacAlgorithm3 rMacAlgorithm;
+
+  @Nullable private final BatchMacEngine batchMacEngine;
+  @Nullable private final BatchMacEngine.MacKey batchCMacKey;
+
+  private byte[] scratch = new byte[0];
+
+  Scp02CryptoContext(CryptoBackend backend, @Nullable BatchMacEngine batchMacEngine, SessionKeys sessionKeys) {
+    this.backend = backend;
+    this.sessionKeys = sessionKeys;
+    byte[] macKey = sessionKeys.getDesEde(KeyUsage.MAC).getEncoded();
+    encEngine = backend.desEde(sessionKeys.getDesEde(KeyUsage.ENC).getEncoded());
+    macEngine = backend.des(macKey, 0);
+    cMacAlgorithm = backend.macAlgorithm3(macKey);
+    this.batchMacEngine = batchMacEngine;
+    batchCMacKey = (batchMacEngine != null) ? BatchMacEngine.macKey(macKey) : null;
+  }
+
+  /**
+   * Calculates the C-MAC of the first {@code headerLength} bytes of {@code header} followed by
+   * {@code length} bytes of {@code data} starting at absolute index {@code index}, with ISO/IEC 7816-4
+   * padding. The data is MACed directly from the buffer. {@code icv} holds the initial chaining value
+   * and receives the MAC. The buffer's position and limit are not modified.
+   */
+  void cMac(byte[] icv, byte[] header, int headerLength, ByteBuffer data, int index, int length) {
+    if (batchMacEngine == null) {
+      cMacAlgorithm.init(icv);
+      cMacAlgorithm.update(header, 0, headerLength);
+      cMacAlgorithm.update(data, index, length);
+      cMacAlgorithm.doFinalPadded(icv, 0);
+      return;
+    }
+    int paddedLength = Iso7816D4.paddedLength(headerLength + length);
+    byte[] input = scratch(paddedLength);
+    System.arraycopy(header, 0, input, 0, headerLength);
+    ByteBuffer region = data.duplicate();
+    region.limit(index + length).position(index);
+    region.get(input, headerLength, length);
+    input[headerLength + length] = (byte) 0x80;
+    for (int j = headerLength + length + 1; j < paddedLength; j++) {
+      input[j] = 0x00;
+    }
+    batchMacEngine.mac(batchCMacKey, icv, input, 0, paddedLength, icv, 0);
+  }
+
+  /**
+   * Calculates an authentication cryptogram: the last block of the S-ENC CBC encryption (zero ICV)
+   * of the ISO/IEC 7816-4 padded concatenation of {@code parts}, without concatenating them.
+   */
+  byte[] cryptogram(byte[]... parts) {
+    byte[] chain = new byte[CipherEngine.BLOCK_SIZE];
+    byte[] block = new byte[CipherEngine.BLOCK_SIZE];
+    int n = 0;
+    for (byte[] part : parts) {
+      for (byte b : part) {
+        block[n++] = b;
+        if (n == CipherEngine.BLOCK_SIZE) {
+          encEngine.cbcChain(chain, block, 0, CipherEngine.BLOCK_SIZE);
+          n = 0;
+        }
+      }
+    }
+    block[n++] = (byte) 0x80;
+    while (n < CipherEngine.BLOCK_SIZE) {
+      block[n++] = 0x00;
+    }
+    encEngine.cbcChain(chain, block, 0, CipherEngine.BLOCK_SIZE);
+    return chain;
+  }
+
+  /**
+   * Calculates the C-MAC of {@code data} with zero ICV and ISO/IEC 7816-4 padding.
+   */
+  byte[] mac(byte[] data) {
+    byte[] mac = new byte[CipherEngine.BLOCK_SIZE];
+    cMac(mac, data, data.length, EMPTY, 0, 0);
+    return mac;
+  }
+
+  MacAlgorithm3 rMac() {
+    MacAlgorithm3 algorithm = rMacAlgorithm;
+    if (algorithm == null) {
+      algorithm = backend.macAlgorithm3(sessionKeys.getDesEde(KeyUsage.R_MAC).getEncoded());
+      rMacAlgorithm = algorithm;
+    }
+    return algorithm;
+  }
+
+  /**
+   * Returns the engines to the backend. The context must not be used afterwards.
+   */
+  void release() {
+    encEngine.release();
+    macEngine.release();
+    cMacAlgorithm.release();
+    CipherEngine dek = dekEngine;
+    if (dek != null) {
+      dek.release();
+    }
+    MacAlgorithm3 rMac = rMacAlgorithm;
+    if (rMac != null) {
+      rMac.release();
+    }
+  }
+
+  SessionKeys sessionKeys() {
+    return sessionKeys;
+  }
+
+  /**
+   * Encrypts {@code length} bytes of {@code buffer} starting at absolute index {@code index} in place
+   * with the S-ENC key in CBC mode and zero ICV. The buffer's position and limit are not modified.
+   */
+  void encrypt(ByteBuffer buffer, int index, int length) {
+    if (buffer.hasArray()) {
+      int offset = buffer.arrayOffset() + index;
+      encEngine.encryptCbc(null, buffer.array(), offset, length, buffer.array(), offset);
+      return;
+    }
+    byte[] data = scratch(length);
+    ByteBuffer region = buffer.duplicate();
+    region.limit(index + length).position(index);
+    region.get(data, 0, length);
+    encEngine.encryptCbc(null, data, 0, length, data, 0);
+    region.position(index);
+    region.put(data, 0, length);
+  }
+
+  /**
+   * Encrypts sensitive data with the DEK session key in ECB mode.
+   */
+  byte[] encryptData(byte[] data) {
+    byte[] result = new byte[data.length];
+    dek().encrypt(data, 0, data.length, result, 0);
+    return result;
+  }
+
+  /**
+   * Encrypts the 8 byte ICV in place with the first half of the C-MAC session key.
+   */
+  void encryptIcv(byte[] icv) {
+    macEngine.encrypt(icv, 0, CipherEngine.BLOCK_SIZE, icv, 0);
+  }
+
+  private CipherEngine dek() {
+    CipherEngine engine = dekEngine;
+    if (engine == null) {
+      engine = backend.desEde(sessionKeys.getDesEde(KeyUsage.DEK).getEncoded());
+      dekEngine = engine;
+    }
+    return engine;
+  }
+
+  private byte[] scratch(int length) {
+    if (scratch.length < length) {
+      scratch = new byte[length];
+    }
+    return scratch;
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.channel.key.KeySet;
+import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.common.CardProperties;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Session keys derived speculatively for the sequence counter a card is expected to report next.
+ * SCP02 cards increment the counter by one per session, so the keys of the next session are
+ * derived once a handshake succeeded and are used only if the card, its key version and the
+ * counter reported by the next INITIALIZE UPDATE match the prediction, see
+ * {@link Scp02KeyPredictions}.
+ */
+final class Scp02KeyPrediction {
+
+  private static final Logger LOGGER = Logger.getLogger(Scp02KeyPrediction.class.getName());
+
+  private final byte[] keyDiversificationData;
+  private final byte keyVersionNumber;
+  private final byte[] sequenceCounter;
+  private final CompletableFuture<SessionKeys> sessionKeys;
+
+  private Scp02KeyPrediction(byte[] keyDiversificationData, byte keyVersionNumber, byte[] sequenceCounter
+      , CompletableFuture<SessionKeys> sessionKeys) {
+    this.keyDiversificationData = keyDiversificationData;
+    this.keyVersionNumber = keyVersionNumber;
+    this.sequenceCounter = sequenceCounter;
+    this.sessionKeys = sessionKeys;
+  }
+
+  /**
+   * Starts deriving, on {@code executor}, the session keys of the session following {@code last}.
+   */
+  static Scp02KeyPrediction next(KeySet keySet, CardProperties cardProperties, Scp02Context last, Executor executor) {
+    byte[] keyDiversificationData = last.getKeyDiversificationData();
+    byte keyVersionNumber = last.getKeyVersionNumber();
+    byte[] sequenceCounter = nextSequenceCounter(last.getSequenceCounter());
+    CompletableFuture<SessionKeys> sessionKeys = CompletableFuture.supplyAsync(() -> keySet.deriveSessionKeys(
+        cardProperties, keyDiversificationData, keyVersionNumber, sequenceCounter), executor);
+    return new Scp02KeyPrediction(keyDiversificationData, keyVersionNumber, sequenceCounter, sessionKeys);
+  }
+
+  byte[] keyDiversificationData() {
+    return keyDiversificationData;
+  }
+
+  byte keyVersionNumber() {
+    return keyVersionNumber;
+  }
+
+  /**
+   * Cancels the derivation unless it has already started.
+   */
+  void cancel() {
+    sessionKeys.cancel(false);
+  }
+
+  static byte[] nextSequenceCounter(byte[] sequenceCounter) {
+    int next = ((((sequenceCounter[0] & 0xFF) << 8) | (sequenceCounter[1] & 0xFF)) + 1) & 0xFFFF;
+    return new byte[] {(byte) (next >>> 8), (byte) next};
+  }
+
+  /**
+   * Returns the speculatively derived session keys if the prediction matches the values reported
+   * by the card, otherwise discards them and returns {@code null}.
+   */
+  @Nullable SessionKeys sessionKeys(Scp02Context reported) {
+    CompletableFuture<SessionKeys> matching = sessionKeysAsync(reported);
+    if (matching == null) {
+      return null;
+    }
+    try {
+      return matching.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ex) {
+      LOGGER.log(Level.FINE, "speculative session keys derivation failed", ex.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Returns the pending speculative derivation if the prediction matches the values reported
+   * by the card, otherwise cancels it and returns {@code null}.
+   */
+  @Nullable CompletableFuture<SessionKeys> sessionKeysAsync(Scp02Context reported) {
+    if (keyVersionNumber != reported.getKeyVersionNumber()
+        || !Arrays.equals(sequenceCounter, reported.getSequenceCounter())
+        || !Arrays.equals(keyDiversificationData, reported.getKeyDiversificationData())) {
+      cancel();
+      LOGGER.log(Level.FINER, "sequence counter prediction missed, speculative session keys discarded");
+      return null;
+    }
+    return sessionKeys;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.nightcode.javacard.channel.scp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Speculative session key derivations of recently seen cards, keyed by the key diversification
+ * data and the key version number the card reports in INITIALIZE UPDATE. Shared through the
+ * {@link org.nightcode.javacard.channel.CardChannelContext}s of a terminal or a service, it lets
+ * the session of a reconnected card use the keys a previous session, usually another session
+ * object, derived for the card's next sequence counter. At most {@code capacity} cards are kept,
+ * the prediction of the least recently used card is cancelled when the capacity is exceeded.
+ */
+public final class Scp02KeyPredictions {
+
+  private final Map<ByteBuffer, Scp02KeyPrediction> predictions;
+
+  public Scp02KeyPredictions(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity [" + capacity + "] must be greater than 0");
+    }
+    predictions = new LinkedHashMap<ByteBuffer, Scp02KeyPrediction>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Scp02KeyPrediction> eldest) {
+        if (size() > capacity) {
+          eldest.getValue().cancel();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the number of cards with a pending prediction.
+   */
+  public synchronized int size() {
+    return predictions.size();
+  }
+
+  /**
+   * Cancels and removes all predictions.
+   */
+  public synchronized void clear() {
+    for (Scp02KeyPrediction prediction : predictions.values()) {
+      prediction.cancel();
+    }
+    predictions.clear();
+  }
+
+  /**
+   * Stores the prediction of its card, a previous prediction of the card is cancelled.
+   */
+  synchronized void put(Scp02KeyPrediction prediction) {
+    Scp02KeyPrediction replaced = predictions.put(key(prediction.keyDiversificationData()
+        , prediction.keyVersionNumber()), prediction);
+    if (replaced != null) {
+      replaced.cancel();
+    }
+  }
+
+  /**
+   * Removes and returns the prediction of the card, {@code null} if there is none.
+   */
+  @Nullable synchronized Scp02KeyPrediction remove(@Nullable byte[] keyDiversificationData, byte keyVersionNumber) {
+    return predictions.remove(key(keyDiversificationData, keyVersionNumber));
+  }
+
+  private static ByteBuffer key(@Nullable byte[] keyDiversificationData, byte keyVersionNumber) {
+    byte[] key = (keyDiversificationData != null)
+        ? Arrays.copyOf(keyDiversificationData, keyDiversificationData.length + 1) : new byte[1];
+    key[key.length - 1] = keyVersionNumber;
+    return ByteBuffer.wrap(key);
+  }
+}
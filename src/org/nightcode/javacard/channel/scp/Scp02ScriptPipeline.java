@@ -0,0 +1,282 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.JavaCardException;
+import org.nightcode.javacard.channel.ApduChannel;
+import org.nightcode.javacard.channel.BufferedApduChannel;
+import org.nightcode.javacard.channel.ScriptExecutionException;
+import org.nightcode.javacard.channel.SwPolicy;
+import org.nightcode.javacard.util.Hexs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Executes a script of commands with the wrapping of the next commands overlapped with the
+ * exchange of the current one. The C-MAC chain depends only on the previous C-MAC, so a wrapper
+ * task on an executor secures up to {@code depth} commands ahead of the transport, which runs on
+ * the calling thread. The executor only runs ahead: whenever no wrapped command is ready the
+ * calling thread wraps the next one itself, so the script progresses even if the executor runs
+ * tasks on the caller or not at all. If the script is aborted the wrapped but not transmitted
+ * commands are discarded and the codec is rolled back to the chaining state after the last
+ * transmitted command. The command buffers are reused from a ring of {@code depth + 1} buffers.
+ */
+final class Scp02ScriptPipeline {
+
+  private static final Hexs HEX = Hexs.hex();
+
+  private static final int MAX_SHORT_COMMAND_LENGTH = 261;
+
+  private static final class Wrapped {
+    private final ByteBuffer command;
+    private final int ne;
+    private final Scp02Codec.Checkpoint checkpoint;
+    @Nullable private final IOException failure;
+
+    Wrapped(ByteBuffer command, int ne, Scp02Codec.Checkpoint checkpoint) {
+      this.command = command;
+      this.ne = ne;
+      this.checkpoint = checkpoint;
+      this.failure = null;
+    }
+
+    Wrapped(IOException failure) {
+      this.command = null;
+      this.ne = 0;
+      this.checkpoint = null;
+      this.failure = failure;
+    }
+  }
+
+  private final ApduChannel channel;
+  private final Scp02Codec codec;
+  private final int depth;
+  private final Executor executor;
+
+  private final Object wrapLock = new Object();
+  private final AtomicBoolean runningAhead = new AtomicBoolean();
+
+  // guarded by wrapLock
+  private final ByteBuffer[] commandBuffers;
+  private List<CommandAPDU> commands;
+  private BlockingQueue<Wrapped> queue;
+  private int nextToWrap;
+  private boolean stopped;
+
+  // only accessed by the transmitting thread
+  private ByteBuffer responseBuffer = ByteBuffer.allocate(BufferedApduChannel.MIN_RESPONSE_CAPACITY
+      + Scp02Codec.CMAC_LENGTH);
+
+  Scp02ScriptPipeline(ApduChannel channel, Scp02Codec codec, int depth, Executor executor) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("depth [" + depth + "] must be greater than zero");
+    }
+    this.channel = channel;
+    this.codec = codec;
+    this.depth = depth;
+    this.executor = executor;
+    this.commandBuffers = new ByteBuffer[depth + 1];
+  }
+
+  /**
+   * Transmits the commands until all are done or the policy aborts the script, and returns the
+   * responses including the one that aborted the script.
+   *
+   * @throws ScriptExecutionException if a command could not be wrapped, exchanged or unwrapped
+   */
+  List<ResponseAPDU> execute(List<CommandAPDU> commands, SwPolicy policy) throws ScriptExecutionException {
+    List<ResponseAPDU> responses = new ArrayList<>(commands.size());
+    if (commands.isEmpty()) {
+      return responses;
+    }
+    synchronized (wrapLock) {
+      this.commands = commands;
+      this.queue = new ArrayBlockingQueue<>(depth);
+      nextToWrap = 0;
+      stopped = false;
+    }
+
+    boolean abortOnUnexpected = policy.abortOnUnexpected();
+    Scp02Codec.Checkpoint last = null;
+    boolean completed = false;
+    try {
+      for (int n = 0; n < commands.size(); n++) {
+        runAhead();
+        Wrapped wrapped = next();
+        if (wrapped.failure != null) {
+          throw new ScriptExecutionException(n, wrapped.failure);
+        }
+        last = wrapped.checkpoint;
+        ResponseAPDU response;
+        try {
+          response = transmit(wrapped);
+        } catch (IOException | JavaCardException ex) {
+          throw new ScriptExecutionException(n, ex);
+        }
+        responses.add(response);
+        if (abortOnUnexpected && !policy.isExpected(response.getSW())) {
+          break;
+        }
+      }
+      completed = responses.size() == commands.size();
+      return responses;
+    } finally {
+      stop();
+      if (!completed && last != null) {
+        codec.restore(last);
+      }
+    }
+  }
+  /**
+   * Returns the next wrapped command, wrapping it on the calling thread if the wrapper task
+   * has not done so yet.
+   */
+  private Wrapped next() {
+    Wrapped wrapped;
+    while ((wrapped = queue.poll()) == null) {
+      wrapNext();
+    }
+    return wrapped;
+  }
+
+  /**
+   * Schedules the wrapper task unless it is already scheduled or there is nothing to wrap.
+   */
+  private void runAhead() {
+    if (!runningAhead.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          while (wrapNext()) {
+            // wrap until the queue is full
+          }
+        } finally {
+          runningAhead.set(false);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      runningAhead.set(false);
+    }
+  }
+
+  /**
+   * Stops wrapping and discards the wrapped commands. Waits for a wrapping in progress, so the
+   * codec is not modified after the method returns.
+   */
+  private void stop() {
+    synchronized (wrapLock) {
+      stopped = true;
+      queue.clear();
+    }
+  }
+
+  /**
+   * Wraps the next command of the script into the queue.
+   *
+   * @return {@code false} if there is nothing to wrap or no room in the queue
+   */
+  private boolean wrapNext() {
+    synchronized (wrapLock) {
+      if (stopped || nextToWrap == commands.size() || queue.remainingCapacity() == 0) {
+        return false;
+      }
+      CommandAPDU request = commands.get(nextToWrap);
+      byte[] apdu = request.getBytes();
+      int slot = nextToWrap++ % commandBuffers.length;
+      ByteBuffer command = commandBuffers[slot];
+      if (command == null || command.capacity() < Scp02Codec.wrappedLength(apdu.length)) {
+        command = ByteBuffer.allocate(Scp02Codec.wrappedLength(Math.max(apdu.length, MAX_SHORT_COMMAND_LENGTH)));
+        commandBuffers[slot] = command;
+      }
+      command.clear();
+      command.put(apdu).flip();
+      Wrapped wrapped;
+      try {
+        codec.wrap(command);
+        wrapped = new Wrapped(command, request.getNe(), codec.checkpoint());
+      } catch (IOException ex) {
+        wrapped = new Wrapped(ex);
+      } catch (RuntimeException ex) {
+        wrapped = new Wrapped(new IOException(ex.getMessage(), ex));
+      }
+      if (wrapped.failure != null) {
+        stopped = true;
+      }
+      // only the consumer removes elements and the capacity was checked under the lock
+      queue.add(wrapped);
+      return !stopped;
+    }
+  }
+
+  /**
+   * Transmits the wrapped command, through the buffered path if the channel provides it, and
+   * unwraps the response. A command buffer of the ring is reused only after its command has been
+   * transmitted: at most {@code depth} commands are queued while one is exchanged.
+   */
+  private ResponseAPDU transmit(Wrapped wrapped) throws IOException, JavaCardException {
+    ByteBuffer command = wrapped.command;
+    int commandLength = command.limit();
+    if (channel instanceof BufferedApduChannel) {
+      int capacity = Math.max(wrapped.ne + 2 + Scp02Codec.CMAC_LENGTH, BufferedApduChannel.MIN_RESPONSE_CAPACITY);
+      if (responseBuffer.capacity() < capacity) {
+        responseBuffer = ByteBuffer.allocate(capacity);
+      }
+      ByteBuffer response = responseBuffer;
+      response.clear();
+      int length;
+      try {
+        length = ((BufferedApduChannel) channel).transmit(command, response);
+      } catch (IOException ex) {
+        throw transmitProblem(command, commandLength, ex);
+      }
+      response.limit(length).position(0);
+      codec.unwrap(response, wrapped.checkpoint);
+      return new ResponseAPDU(Arrays.copyOf(response.array(), response.limit()));
+    }
+    ResponseAPDU origin;
+    try {
+      origin = channel.transmit(new CommandAPDU(command.array(), 0, commandLength));
+    } catch (IOException ex) {
+      throw transmitProblem(command, commandLength, ex);
+    }
+    byte[] apdu = origin.getBytes();
+    ByteBuffer buffer = ByteBuffer.wrap(apdu);
+    codec.unwrap(buffer, wrapped.checkpoint);
+    if (buffer.limit() == apdu.length) {
+      return origin;
+    }
+    return new ResponseAPDU(Arrays.copyOf(apdu, buffer.limit()));
+  }
+
+  private static IOException transmitProblem(ByteBuffer command, int commandLength, IOException ex) {
+    return new IOException(String.format("APDU [%s] transmit problem: %s"
+        , HEX.fromByteArray(command.array(), 0, commandLength), ex.getMessage()), ex);
+  }
+}
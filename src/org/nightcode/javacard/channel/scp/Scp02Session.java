@@ -15,87 +15,360 @@
 package org.nightcode.javacard.channel.scp;
 
 import org.nightcode.javacard.JavaCardException;
+import org.nightcode.javacard.channel.BufferedApduChannel;
 import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.channel.ScriptExecutionException;
 import org.nightcode.javacard.channel.SecureChannelSession;
+import org.nightcode.javacard.channel.SwPolicy;
+import org.nightcode.javacard.channel.key.AsyncKeyProvider;
 import org.nightcode.javacard.channel.key.KeySet;
-import org.nightcode.javacard.channel.key.KeyUsage;
 import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.common.Aid;
 import org.nightcode.javacard.common.Apdu;
 import org.nightcode.javacard.common.SecurityLevel;
 import org.nightcode.javacard.util.ApduPreconditions;
 import org.nightcode.javacard.util.ByteArrayGenerator;
 import org.nightcode.javacard.util.Hexs;
-import org.nightcode.javacard.util.Iso7816D4;
-import org.nightcode.javacard.util.JcCryptoUtils;
-import org.nightcode.javacard.util.JcUtils;
 import org.nightcode.javacard.util.SecureRandomByteArrayGenerator;
+import org.nightcode.tools.ber.BerFrame;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.Key;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.crypto.Cipher;
+import javax.annotation.Nullable;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
-public class Scp02Session implements SecureChannelSession {
+public class Scp02Session implements SecureChannelSession, BufferedApduChannel {
 
   private static final Logger LOGGER = Logger.getLogger(Scp02Session.class.getName());
 
   private static final Hexs HEX = Hexs.hex();
 
+  private static final int TAG_E0_KEY_INFORMATION_TEMPLATE = 0xE0;
+  private static final int TAG_C0_KEY_INFORMATION_DATA = 0xC0;
+
   private final CardChannelContext context;
   private final ByteArrayGenerator byteArrayGenerator;
 
   private volatile Scp02ApduChannel channel;
-
-  private final Cipher desEdeCipher;
+  private volatile Scp02CryptoContext cryptoContext;
+  private final Scp02KeyPredictions keyPredictions;
 
   public Scp02Session(CardChannelContext context) {
-    this(context, new SecureRandomByteArrayGenerator());
+    this(context, (context.byteArrayGenerator() != null)
+        ? context.byteArrayGenerator() : new SecureRandomByteArrayGenerator());
   }
 
   Scp02Session(CardChannelContext context, ByteArrayGenerator byteArrayGenerator) {
     this.context = context;
     this.byteArrayGenerator = byteArrayGenerator;
-
-    try {
-      desEdeCipher = Cipher.getInstance(JcCryptoUtils.DES_EDE_ECB_NO_PADDING);
-    } catch (GeneralSecurityException ex) {
-      throw new RuntimeException(ex);
-    }
+    this.keyPredictions = (context.keyPredictions() != null) ? context.keyPredictions() : new Scp02KeyPredictions(1);
   }
 
   @Override public byte[] encryptData(byte[] data) throws GeneralSecurityException {
-    Key dek = context.getSessionKeys().getDesEde(KeyUsage.DEK);
-    desEdeCipher.init(Cipher.ENCRYPT_MODE, dek);
-    return desEdeCipher.doFinal(data);
+    return cryptoContext().encryptData(data);
   }
 
   @Override public void openSecureChannel(EnumSet<SecurityLevel> securityLevel)
       throws IOException, JavaCardException {
-    if (securityLevel.contains(SecurityLevel.C_DECRYPTION) && !securityLevel.contains(SecurityLevel.C_MAC)) {
-      throw new IllegalArgumentException("C_DECRYPTION must be combined with C_MAC");
-    }
+    checkSecurityLevel(securityLevel);
 
     byte hostKeyVersionNumber = context.getCardProperties().keyVersionNumber();
 
     Scp02Context scp02Context = initializeUpdate(hostKeyVersionNumber);
-    byte[] icv = externalAuthenticate(scp02Context, securityLevel);
+    open(scp02Context, securityLevel);
+  }
+
+  /**
+   * Opens a secure channel like {@link #openSecureChannel} without waiting for the session keys.
+   * INITIALIZE UPDATE is sent on the calling thread, the session keys are derived without blocking
+   * if the key provider is an {@link AsyncKeyProvider}, and the card cryptogram verification and
+   * EXTERNAL AUTHENTICATE run on {@code executor} once the keys are available.
+   */
+  public CompletionStage<Void> openSecureChannelAsync(EnumSet<SecurityLevel> securityLevel, Executor executor) {
+    try {
+      checkSecurityLevel(securityLevel);
+
+      KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+      Scp02Context scp02Context = sendInitializeUpdate(context.getCardProperties().keyVersionNumber());
+
+      Scp02KeyPrediction prediction = keyPredictions.remove(scp02Context.getKeyDiversificationData()
+          , scp02Context.getKeyVersionNumber());
+      CompletionStage<SessionKeys> sessionKeys = (prediction != null) ? prediction.sessionKeysAsync(scp02Context) : null;
+      if (sessionKeys != null) {
+        sessionKeys = sessionKeys.exceptionally(ex -> deriveSessionKeys(keySet, scp02Context));
+      } else {
+        sessionKeys = keySet.deriveSessionKeysAsync(context.getCardProperties()
+            , scp02Context.getKeyDiversificationData(), scp02Context.getKeyVersionNumber()
+            , scp02Context.getSequenceCounter());
+      }
+      return sessionKeys.thenAcceptAsync(keys -> {
+        try {
+          verifyCardCryptogram(scp02Context, keys);
+          predictNextSessionKeys(keySet, scp02Context);
+          open(scp02Context, securityLevel);
+        } catch (IOException | JavaCardException ex) {
+          throw new CompletionException(ex);
+        }
+      }, executor);
+    } catch (IOException | JavaCardException | RuntimeException ex) {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(ex);
+      return result;
+    }
+  }
 
-    channel = new Scp02ApduChannel(context, securityLevel, icv);
-    channel.setRicv(icv);
+  /**
+   * Opens a secure channel with implicit initiation, i.e. without INITIALIZE UPDATE and
+   * EXTERNAL AUTHENTICATE. The key diversification data (tag 'CF') and the sequence counter are
+   * read with GET DATA, the key version number is the one of the card properties or, if that is
+   * 0, the one of the first key in the key information template. The session is initiated by the
+   * first C-MACed command.
+   *
+   * @throws JavaCardException if the card's i-parameter does not allow implicit initiation
+   */
+  public void openImplicitSecureChannel(EnumSet<SecurityLevel> securityLevel) throws IOException, JavaCardException {
+    checkImplicitInitiation(securityLevel);
+    byte[] keyDiversificationData = getKeyDiversificationData();
+    byte keyVersionNumber = context.getCardProperties().keyVersionNumber();
+    if (keyVersionNumber == 0) {
+      keyVersionNumber = getKeyVersionNumber();
+    }
+    openImplicitSecureChannel(securityLevel, keyDiversificationData, keyVersionNumber, getSequenceCounter());
+  }
+
+  /**
+   * Opens a secure channel with implicit initiation for the card's known key diversification data,
+   * key version number and sequence counter, saving all round trips of the handshake. The ICV of
+   * the first C-MAC is zero or, if the i-parameter says so, the C-MAC over the AID of the selected
+   * Security Domain.
+   *
+   * @param keyDiversificationData the 10 bytes INITIALIZE UPDATE would report, {@code null} if the
+   *     card has none
+   * @throws JavaCardException if the card's i-parameter does not allow implicit initiation
+   */
+  public void openImplicitSecureChannel(EnumSet<SecurityLevel> securityLevel, @Nullable byte[] keyDiversificationData
+      , byte keyVersionNumber, byte[] sequenceCounter) throws JavaCardException {
+    Scp02ParameterI i = checkImplicitInitiation(securityLevel);
+    if (sequenceCounter.length != 2) {
+      throw new IllegalArgumentException("sequence counter length must be 2 bytes");
+    }
+
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    context.setSessionKeys(keySet.deriveSessionKeys(context.getCardProperties(), keyDiversificationData
+        , keyVersionNumber, sequenceCounter));
+
+    Scp02ApduChannel implicitChannel = new Scp02ApduChannel(context, cryptoContext(), securityLevel, null);
+    if (i.icvSetToMacOverAid()) {
+      Aid aid = (context.getSdAid() != null) ? context.getSdAid() : Apdu.DEFAULT_ISD_AID;
+      implicitChannel.setInitialIcv(cryptoContext().mac(aid.array()));
+    }
+    channel = implicitChannel;
+  }
+
+  /**
+   * Transmits a script of commands through the opened secure channel, wrapping up to {@code depth}
+   * commands on {@code executor} while the card processes the current one. If the policy aborts the
+   * script at an unexpected status word, the secure channel continues after that command as if the
+   * commands had been transmitted one by one. The executor is optional for progress, commands not
+   * wrapped ahead are wrapped on the calling thread.
+   *
+   * @return the responses of the transmitted commands, the last one is the aborting response if any
+   * @throws ScriptExecutionException if a command could not be exchanged, see
+   *     {@link ScriptExecutionException#index()}
+   */
+  public List<ResponseAPDU> transmitScript(List<CommandAPDU> commands, SwPolicy policy, int depth,
+      Executor executor) throws ScriptExecutionException {
+    return openedChannel().transmitScript(commands, policy, depth, executor);
+  }
+
+  /**
+   * Closes the secure channel, forgets the session keys and returns the cipher engines to the
+   * crypto backend for reuse by the next session. Must not be called concurrently with a transmit.
+   */
+  @Override public void reset() {
+    Scp02CryptoContext current = cryptoContext;
+    channel = null;
+    cryptoContext = null;
+    if (context.keyPredictions() == null) {
+      keyPredictions.clear();
+    }
+    context.setSessionKeys(null);
+    if (current != null) {
+      current.release();
+    }
   }
 
   @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
     return channel.transmit(request);
   }
 
+  /**
+   * Transmits the script through the buffered path of the opened secure channel: the channel is
+   * checked once and the command and response buffers are reused for all commands.
+   */
+  @Override public int[] transmitAll(List<CommandAPDU> commands, SwPolicy policy) throws ScriptExecutionException {
+    return openedChannel().transmitAll(commands, policy);
+  }
+
+  /**
+   * Wraps the command in place, transmits it and unwraps the response in place.
+   * The command buffer's capacity must provide {@link #wrappedLength(int)} bytes past its position.
+   */
+  @Override public int transmit(ByteBuffer command, ByteBuffer response) throws IOException {
+    return openedChannel().transmit(command, response);
+  }
+
+  /**
+   * Returns the number of bytes a buffer must provide past its position to
+   * wrap a command of {@code commandLength} bytes in place.
+   */
+  public static int wrappedLength(int commandLength) {
+    return Scp02Codec.wrappedLength(commandLength);
+  }
+
+  /**
+   * Wraps the command APDU located between the buffer's position and limit in place
+   * and sets the limit to the end of the secured command.
+   */
+  public void wrap(ByteBuffer command) throws IOException {
+    openedChannel().wrap(command);
+  }
+
+  /**
+   * Wraps the command {@code cla ins p1 p2} whose data field is the content of {@code data}
+   * between its position and limit, e.g. a slice of a memory-mapped CAP file. The data is
+   * MACed and, if required, encrypted straight from the source and the secured command is
+   * written to {@code command} at its position, which is advanced past the command.
+   *
+   * @param ne the maximum number of expected response bytes (1..256), 0 if the command has no Le field
+   */
+  public void wrap(int cla, int ins, int p1, int p2, ByteBuffer data, int ne, ByteBuffer command)
+      throws IOException {
+    openedChannel().wrap(cla, ins, p1, p2, data, ne, command);
+  }
+
+  /**
+   * Unwraps the response APDU located between the buffer's position and limit in place
+   * and sets the limit to the end of the unwrapped response.
+   */
+  public void unwrap(ByteBuffer response) throws JavaCardException {
+    openedChannel().unwrap(response);
+  }
+
   Scp02Context initializeUpdate(byte keyVersionNumber) throws IOException, JavaCardException {
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    Scp02Context scp02Context = sendInitializeUpdate(keyVersionNumber);
+
+    Scp02KeyPrediction prediction = keyPredictions.remove(scp02Context.getKeyDiversificationData()
+        , scp02Context.getKeyVersionNumber());
+    SessionKeys sessionKeys = (prediction != null) ? prediction.sessionKeys(scp02Context) : null;
+    if (sessionKeys == null) {
+      sessionKeys = deriveSessionKeys(keySet, scp02Context);
+    }
+    verifyCardCryptogram(scp02Context, sessionKeys);
+    predictNextSessionKeys(keySet, scp02Context);
+    return scp02Context;
+  }
+
+  byte[] externalAuthenticate(Scp02Context scp02Context, EnumSet<SecurityLevel> securityLevel)
+      throws IOException, JavaCardException {
+    int p1 = 0;
+    for (SecurityLevel level : securityLevel) {
+      p1 |= level.bitMask();
+    }
+
+    Scp02ApduChannel initialSecuredChannel
+        = new Scp02ApduChannel(context, cryptoContext(), EnumSet.of(SecurityLevel.C_MAC), null);
+
+    byte[] hostCryptogram = generateCryptogram(scp02Context.getSequenceCounter(), scp02Context.getCardChallenge()
+        , scp02Context.getHostChallenge());
+
+    CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_EXTERNAL_AUTHENTICATE
+        , p1, Apdu.P2_EXTERNAL_AUTHENTICATE, hostCryptogram);
+    ResponseAPDU response = initialSecuredChannel.transmit(request);
+
+    int sw = response.getSW();
+    if (response.getSW() == Apdu.SW_AUTHENTICATION_OF_HOST_CRYPTOGRAM_FAILED) {
+      throw new JavaCardException("[SW=0x%04X] EXTERNAL AUTHENTICATE authentication of host cryptogram failed", sw);
+    }
+
+    ApduPreconditions.checkSw("EXTERNAL AUTHENTICATE failed", sw, 0x9000);
+
+    return initialSecuredChannel.getIcv();
+  }
+
+  /**
+   * Reads the Sequence Counter of the default Key Version Number (tag 'C1') with GET DATA.
+   */
+  byte[] getSequenceCounter() throws IOException, JavaCardException {
+    CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_GET_DATA, 0x00, Apdu.P2_GET_DATA_SEQUENCE_COUNTER, 256);
+    ResponseAPDU response = context.channel().transmit(request);
+    ApduPreconditions.checkSw("GET DATA sequence counter failed", response.getSW(), 0x9000);
+
+    byte[] data = response.getData();
+    if (data.length == 4 && data[0] == Apdu.P2_GET_DATA_SEQUENCE_COUNTER && data[1] == 0x02) {
+      return Arrays.copyOfRange(data, 2, 4);
+    }
+    if (data.length == 2) {
+      return data;
+    }
+    throw new JavaCardException("invalid GET DATA sequence counter response: %s", HEX.fromByteArray(data));
+  }
+
+  /**
+   * Reads the Key Diversification Data (tag 'CF') with GET DATA, returns {@code null} if the card
+   * has none.
+   */
+  @Nullable byte[] getKeyDiversificationData() throws IOException, JavaCardException {
+    CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_GET_DATA, 0x00
+        , Apdu.P2_GET_DATA_KEY_DIVERSIFICATION_DATA, 256);
+    ResponseAPDU response = context.channel().transmit(request);
+    if (response.getSW() == Apdu.SW_REFERENCED_DATA_NOT_FOUND) {
+      return null;
+    }
+    ApduPreconditions.checkSw("GET DATA key diversification data failed", response.getSW(), 0x9000);
+
+    byte[] data = response.getData();
+    if (data.length == 12 && data[0] == Apdu.P2_GET_DATA_KEY_DIVERSIFICATION_DATA && data[1] == 0x0A) {
+      return Arrays.copyOfRange(data, 2, 12);
+    }
+    if (data.length == 10) {
+      return data;
+    }
+    throw new JavaCardException("invalid GET DATA key diversification data response: %s", HEX.fromByteArray(data));
+  }
+
+  /**
+   * Reads the Key Version Number of the first key in the Key Information Template (tag 'E0')
+   * with GET DATA.
+   */
+  byte getKeyVersionNumber() throws IOException, JavaCardException {
+    CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_GET_DATA, 0x00, Apdu.P2_KEY_INFORMATION_TEMPLATE, 256);
+    ResponseAPDU response = context.channel().transmit(request);
+    ApduPreconditions.checkSw("GET DATA key information template failed", response.getSW(), 0x9000);
+
+    BerFrame template = BerFrame.parseFrom(response.getData()).getTag(TAG_E0_KEY_INFORMATION_TEMPLATE);
+    byte[] keyInformation = (template != null) ? template.getContent(TAG_C0_KEY_INFORMATION_DATA) : null;
+    if (keyInformation == null || keyInformation.length < 2) {
+      throw new JavaCardException("invalid GET DATA key information template response: %s"
+          , HEX.fromByteArray(response.getData()));
+    }
+    return keyInformation[1];
+  }
+
+  private Scp02Context sendInitializeUpdate(byte keyVersionNumber) throws IOException, JavaCardException {
     byte[] hostChallenge = byteArrayGenerator.generate(8);
 
     CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_INITIALIZE_UPDATE
@@ -154,17 +427,21 @@ public class Scp02Session implements SecureChannelSession {
       throw new JavaCardException("key version mismatch: %s != %s", keyVersionNumber, cardKeyVersionNumber);
     }
 
-    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
-    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    return new Scp02Context(hostChallenge, cardChallenge, sequenceCounter, keyDiversificationData
+        , cardKeyVersionNumber, cardCryptogram);
+  }
+
+  private SessionKeys deriveSessionKeys(KeySet keySet, Scp02Context scp02Context) {
+    return keySet.deriveSessionKeys(context.getCardProperties(), scp02Context.getKeyDiversificationData()
+        , scp02Context.getKeyVersionNumber(), scp02Context.getSequenceCounter());
+  }
+
+  private void verifyCardCryptogram(Scp02Context scp02Context, SessionKeys sessionKeys) throws JavaCardException {
     context.setSessionKeys(sessionKeys);
 
-    Key encKey = sessionKeys.getDesEde(KeyUsage.ENC);
-    byte[] calculatedCardCryptogram;
-    try {
-      calculatedCardCryptogram = generateCryptogram(encKey, hostChallenge, sequenceCounter, cardChallenge);
-    } catch (GeneralSecurityException ex) {
-      throw new JavaCardException("can't calculate card cryptogram", ex);
-    }
+    byte[] cardCryptogram = scp02Context.getCardCryptogram();
+    byte[] calculatedCardCryptogram = generateCryptogram(scp02Context.getHostChallenge()
+        , scp02Context.getSequenceCounter(), scp02Context.getCardChallenge());
     if (!Arrays.equals(cardCryptogram, calculatedCardCryptogram)) {
       throw new JavaCardException("Card Cryptogram verification failed: "
           + "    \nCard cryptogram:       %s    \nCalculated cryptogram: %s"
@@ -172,50 +449,74 @@ public class Scp02Session implements SecureChannelSession {
       );
     }
     LOGGER.log(Level.INFO, "verified Card Cryptogram: " + HEX.fromByteArray(cardCryptogram));
-
-    return new Scp02Context(hostChallenge, cardChallenge, sequenceCounter);
   }
 
-  byte[] externalAuthenticate(Scp02Context scp02Context, EnumSet<SecurityLevel> securityLevel)
-      throws IOException, JavaCardException {
-    int p1 = 0;
-    for (SecurityLevel level : securityLevel) {
-      p1 |= level.bitMask();
+  private void checkSecurityLevel(EnumSet<SecurityLevel> securityLevel) {
+    if (securityLevel.contains(SecurityLevel.C_DECRYPTION) && !securityLevel.contains(SecurityLevel.C_MAC)) {
+      throw new IllegalArgumentException("C_DECRYPTION must be combined with C_MAC");
     }
+  }
 
-    Scp02ApduChannel initialSecuredChannel = new Scp02ApduChannel(context, EnumSet.of(SecurityLevel.C_MAC));
-
-    Key encKey = context.getSessionKeys().getDesEde(KeyUsage.ENC);
-    byte[] hostCryptogram;
-    try {
-      hostCryptogram = generateCryptogram(encKey, scp02Context.getSequenceCounter(), scp02Context.getCardChallenge()
-          , scp02Context.getHostChallenge());
-    } catch (GeneralSecurityException ex) {
-      throw new JavaCardException("can't generate host cryptogram", ex);
+  private Scp02ParameterI checkImplicitInitiation(EnumSet<SecurityLevel> securityLevel) throws JavaCardException {
+    if (!securityLevel.contains(SecurityLevel.C_MAC) || securityLevel.size() != 1) {
+      throw new IllegalArgumentException("implicit initiation supports C_MAC only");
     }
+    Scp02ParameterI i = Scp02ParameterI.of(context.getCardRecognitionData());
+    if (!i.initiationModeImplicit()) {
+      throw new JavaCardException("implicit initiation is not supported by the card");
+    }
+    return i;
+  }
 
-    CommandAPDU request = new CommandAPDU(Apdu.CLA_GP, Apdu.INS_EXTERNAL_AUTHENTICATE
-        , p1, Apdu.P2_EXTERNAL_AUTHENTICATE, hostCryptogram);
-    ResponseAPDU response = initialSecuredChannel.transmit(request);
-
-    int sw = response.getSW();
-    if (response.getSW() == Apdu.SW_AUTHENTICATION_OF_HOST_CRYPTOGRAM_FAILED) {
-      throw new JavaCardException("[SW=0x%04X] EXTERNAL AUTHENTICATE authentication of host cryptogram failed", sw);
+  /**
+   * Starts deriving the session keys of the card's next session if speculative derivation is
+   * enabled. The prediction is kept in the context's shared {@link Scp02KeyPredictions} or, if it
+   * has none, for this session object only.
+   */
+  private void predictNextSessionKeys(KeySet keySet, Scp02Context verified) {
+    Executor executor = context.keyDerivationExecutor();
+    if (executor != null) {
+      keyPredictions.put(Scp02KeyPrediction.next(keySet, context.getCardProperties(), verified, executor));
     }
+  }
 
-    ApduPreconditions.checkSw("EXTERNAL AUTHENTICATE failed", sw, 0x9000);
+  private void open(Scp02Context scp02Context, EnumSet<SecurityLevel> securityLevel)
+      throws IOException, JavaCardException {
+    byte[] icv = externalAuthenticate(scp02Context, securityLevel);
 
-    return initialSecuredChannel.getIcv();
+    Scp02ApduChannel securedChannel = new Scp02ApduChannel(context, cryptoContext(), securityLevel, icv);
+    securedChannel.setRicv(icv);
+    channel = securedChannel;
   }
 
-  private byte[] generateCryptogram(Key key, byte[]... blocks) throws GeneralSecurityException {
-    byte[] buffer = JcUtils.joinArrays(blocks);
-    buffer = Iso7816D4.pad(buffer);
+  private Scp02ApduChannel openedChannel() {
+    Scp02ApduChannel current = channel;
+    if (current == null) {
+      throw new IllegalStateException("secure channel is not opened");
+    }
+    return current;
+  }
 
-    Cipher cipher = Cipher.getInstance(JcCryptoUtils.DES_EDE_CBC_NO_PADDING);
-    cipher.init(Cipher.ENCRYPT_MODE, key, JcCryptoUtils.ZERO_IV_PARAMETER_SPEC);
+  /**
+   * Returns the crypto context of the current session keys. A context of previous session keys is
+   * released together with the channel that uses it.
+   */
+  private Scp02CryptoContext cryptoContext() {
+    SessionKeys sessionKeys = context.getSessionKeys();
+    Scp02CryptoContext current = cryptoContext;
+    if (current == null || current.sessionKeys() != sessionKeys) {
+      Scp02CryptoContext previous = current;
+      current = new Scp02CryptoContext(context.cryptoBackend(), context.batchMacEngine(), sessionKeys);
+      cryptoContext = current;
+      if (previous != null) {
+        channel = null;
+        previous.release();
+      }
+    }
+    return current;
+  }
 
-    byte[] result = cipher.doFinal(buffer, 0, buffer.length);
-    return Arrays.copyOfRange(result, result.length - 8, result.length);
+  private byte[] generateCryptogram(byte[]... blocks) {
+    return cryptoContext().cryptogram(blocks);
   }
 }
@@ -20,9 +20,10 @@ public interface Apdu {
   byte CLA_COMMAND_CHAINING = (byte) 0x10;
   byte CLA_GP =               (byte) 0x80;
 
-  byte INS_GET_DATA = (byte) 0xCA;
-  byte INS_SELECT =   (byte) 0xA4;
-  byte INS_PUT_DATA = (byte) 0xDA;
+  byte INS_GET_DATA =     (byte) 0xCA;
+  byte INS_GET_RESPONSE = (byte) 0xC0;
+  byte INS_SELECT =       (byte) 0xA4;
+  byte INS_PUT_DATA =     (byte) 0xDA;
 
   byte INS_DELETE =                (byte) 0xE4;
   byte INS_EXTERNAL_AUTHENTICATE = (byte) 0x82;
@@ -47,6 +48,8 @@ public interface Apdu {
   byte P2_SELECT_FIRST_OR_ONLY     = (byte) 0x00;
   byte P2_SELECT_NEXT_OCCURRENCE   = (byte) 0x02;
   byte P2_GET_DATA_CARD_DATA       = (byte) 0x66;
+  byte P2_GET_DATA_SEQUENCE_COUNTER = (byte) 0xC1;
+  byte P2_GET_DATA_KEY_DIVERSIFICATION_DATA = (byte) 0xCF;
 
   byte GP_SECURED_MASK = (byte) 0x04;
 
@@ -61,5 +64,8 @@ public interface Apdu {
   int SW_REFERENCED_DATA_NOT_FOUND                = 0x6A88;
   int SW_INCORRECT_CLA_PARAMETER                  = 0x6E00;
 
+  int SW1_BYTES_AVAILABLE = 0x61;
+  int SW1_WRONG_LE =        0x6C;
+
   Aid DEFAULT_ISD_AID = Aid.parse("A000000151000000");
 }
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * Base engine that derives the CBC operations from single block
+ * primitives; used by the lightweight (non JCA) backends.
+ */
+abstract class AbstractCipherEngine implements CipherEngine {
+
+  static void checkDesKey(byte[] key, int offset) {
+    if (offset < 0 || offset + BLOCK_SIZE > key.length) {
+      throw new IllegalArgumentException("Wrong key length [" + key.length + "]");
+    }
+  }
+
+  static void checkDesEdeKey(byte[] key) {
+    if (key.length != 16 && key.length != 24) {
+      throw new IllegalArgumentException("Wrong key length [" + key.length + "]");
+    }
+  }
+
+  static void checkLength(int length) {
+    if (length < 0 || (length & (BLOCK_SIZE - 1)) != 0) {
+      throw new IllegalArgumentException("input length [" + length + "] must be a multiple of 8");
+    }
+  }
+
+  private final byte[] block = new byte[BLOCK_SIZE];
+
+  @Override public void encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    checkLength(length);
+    for (int i = 0; i < length; i += BLOCK_SIZE) {
+      encryptBlock(in, inOffset + i, out, outOffset + i);
+    }
+  }
+
+  @Override public void decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    checkLength(length);
+    for (int i = 0; i < length; i += BLOCK_SIZE) {
+      decryptBlock(in, inOffset + i, out, outOffset + i);
+    }
+  }
+
+  @Override public void encryptCbc(@Nullable byte[] iv, byte[] in, int inOffset, int length, byte[] out,
+      int outOffset) {
+    checkLength(length);
+    byte[] chain = block;
+    if (iv == null) {
+      Arrays.fill(chain, (byte) 0);
+    } else {
+      System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+    }
+    for (int i = 0; i < length; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; j++) {
+        chain[j] ^= in[inOffset + i + j];
+      }
+      encryptBlock(chain, 0, chain, 0);
+      System.arraycopy(chain, 0, out, outOffset + i, BLOCK_SIZE);
+    }
+  }
+
+  @Override public void cbcChain(byte[] chain, byte[] in, int inOffset, int length) {
+    checkLength(length);
+    for (int i = 0; i < length; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; j++) {
+        chain[j] ^= in[inOffset + i + j];
+      }
+      encryptBlock(chain, 0, chain, 0);
+    }
+  }
+
+  /**
+   * Encrypts one block; {@code in} and {@code out} may overlap.
+   */
+  abstract void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+  /**
+   * Decrypts one block; {@code in} and {@code out} may overlap.
+   */
+  abstract void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * ISO/IEC 9797-1 MAC algorithm 3 engine shared by many secure channel
+ * sessions. Sessions submit their MAC jobs concurrently and whichever caller
+ * takes the combiner role computes every pending job in one pass (flat
+ * combining). Within a pass the DES rounds of up to four lanes are
+ * interleaved; each lane uses its own key.
+ */
+public final class BatchMacEngine {
+
+  public static final int DEFAULT_LANES = 64;
+
+  /**
+   * Key schedules of a MAC algorithm 3 key.
+   */
+  public static final class MacKey {
+    final int[] chainKey;
+    final int[] finalKey;
+
+    MacKey(byte[] key) {
+      AbstractCipherEngine.checkDesEdeKey(key);
+      chainKey = TableDes.workingKey(true, key, 0);
+      finalKey = TableDes.join(TableDes.workingKey(false, key, 8)
+          , TableDes.workingKey(true, key, (key.length == 24) ? 16 : 0));
+    }
+  }
+
+  private static final class Job {
+    MacKey key;
+    long chain;
+    byte[] input;
+    int offset;
+    int blocks;
+    byte[] out;
+    int outOffset;
+    RuntimeException failure;
+    volatile boolean done;
+  }
+
+  private final AtomicReferenceArray<Job> slots;
+  private final AtomicBoolean combining = new AtomicBoolean();
+  private final ThreadLocal<Job> jobs = ThreadLocal.withInitial(Job::new);
+
+  // combiner state, only accessed by the thread holding the combiner role
+  private final Job[] batch;
+  private final long[] chains;
+  private final long[] lanes;
+  private final int[] active;
+
+  public BatchMacEngine() {
+    this(DEFAULT_LANES);
+  }
+
+  public BatchMacEngine(int lanes) {
+    if (lanes <= 0) {
+      throw new IllegalArgumentException("lanes [" + lanes + "] must be greater than 0");
+    }
+    this.slots = new AtomicReferenceArray<>(lanes);
+    this.batch = new Job[lanes];
+    this.chains = new long[lanes];
+    this.lanes = new long[lanes];
+    this.active = new int[lanes];
+  }
+
+  /**
+   * Prepares the key schedules of a 16 or 24 bytes MAC algorithm 3 {@code key}.
+   */
+  public static MacKey macKey(byte[] key) {
+    return new MacKey(key);
+  }
+
+  /**
+   * Calculates MAC of {@code length} bytes of {@code input} starting at offset {@code offset}
+   * and writes it to {@code out} starting at offset {@code outOffset}. The input MUST be
+   * already padded. {@code out} may be the same array as {@code iv}. The method returns
+   * when the MAC has been computed, possibly by another thread.
+   *
+   * @param key the prepared MAC key
+   * @param iv initial chaining value or {@code null} for zero ICV
+   * @param input a padded input
+   * @param offset start offset in the input
+   * @param length number of bytes to use, multiple of 8
+   * @param out the output buffer
+   * @param outOffset start offset in the output buffer
+   */
+  public void mac(MacKey key, @Nullable byte[] iv, byte[] input, int offset, int length, byte[] out,
+      int outOffset) {
+    if (key == null) {
+      throw new NullPointerException("key");
+    }
+    if (length <= 0 || (length & (CipherEngine.BLOCK_SIZE - 1)) != 0) {
+      throw new IllegalArgumentException("input length [" + length + "] must be a positive multiple of 8");
+    }
+    if (offset < 0 || offset + length > input.length) {
+      throw new IllegalArgumentException(String.format("(offset + length) must be less than %s", input.length));
+    }
+    if (outOffset < 0 || outOffset + CipherEngine.BLOCK_SIZE > out.length) {
+      throw new IllegalArgumentException("output buffer too short");
+    }
+
+    Job job = jobs.get();
+    job.key = key;
+    job.chain = (iv != null) ? TableDes.getLong(iv, 0) : 0L;
+    job.input = input;
+    job.offset = offset;
+    job.blocks = length / CipherEngine.BLOCK_SIZE;
+    job.out = out;
+    job.outOffset = outOffset;
+    job.done = false;
+
+    while (!publish(job)) {
+      tryCombine();
+    }
+    while (!job.done) {
+      if (!tryCombine()) {
+        Thread.yield();
+      }
+    }
+    RuntimeException failure = job.failure;
+    if (failure != null) {
+      job.failure = null;
+      throw new IllegalStateException("batched MAC calculation failed", failure);
+    }
+  }
+
+  private boolean publish(Job job) {
+    int length = slots.length();
+    int start = (int) (Thread.currentThread().getId() % length);
+    for (int n = 0; n < length; n++) {
+      int index = (start + n) % length;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, job)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean tryCombine() {
+    if (!combining.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      int count = 0;
+      for (int i = 0; i < slots.length(); i++) {
+        Job job = slots.get(i);
+        if (job != null) {
+          // only the combiner empties slots
+          slots.set(i, null);
+          batch[count++] = job;
+        }
+      }
+      if (count > 0) {
+        RuntimeException failure = null;
+        try {
+          process(count);
+        } catch (RuntimeException ex) {
+          failure = ex;
+        } finally {
+          completeUnfinished(count, failure);
+        }
+      }
+      return true;
+    } finally {
+      combining.set(false);
+    }
+  }
+
+  private void process(int count) {
+    int maxBlocks = 0;
+    for (int i = 0; i < count; i++) {
+      chains[i] = batch[i].chain;
+      maxBlocks = Math.max(maxBlocks, batch[i].blocks);
+    }
+
+    for (int step = 0; step < maxBlocks; step++) {
+      int n = 0;
+      for (int i = 0; i < count; i++) {
+        Job job = batch[i];
+        if (step < job.blocks) {
+          active[n] = i;
+          lanes[n++] = chains[i] ^ TableDes.getLong(job.input, job.offset + step * CipherEngine.BLOCK_SIZE);
+        }
+      }
+      encryptLanes(n, false);
+      for (int j = 0; j < n; j++) {
+        chains[active[j]] = lanes[j];
+      }
+    }
+
+    for (int i = 0; i < count; i++) {
+      active[i] = i;
+      lanes[i] = chains[i];
+    }
+    encryptLanes(count, true);
+
+    for (int i = 0; i < count; i++) {
+      Job job = batch[i];
+      TableDes.putLong(lanes[i], job.out, job.outOffset);
+      job.key = null;
+      job.input = null;
+      job.out = null;
+      batch[i] = null;
+      job.done = true;
+    }
+  }
+
+  /**
+   * Completes the jobs of the batch that {@link #process} left unfinished, so their callers
+   * do not wait forever.
+   */
+  private void completeUnfinished(int count, @Nullable RuntimeException failure) {
+    for (int i = 0; i < count; i++) {
+      Job job = batch[i];
+      if (job != null) {
+        job.key = null;
+        job.input = null;
+        job.out = null;
+        job.failure = (failure != null) ? failure : new IllegalStateException("MAC calculation aborted");
+        batch[i] = null;
+        job.done = true;
+      }
+    }
+  }
+
+  private void encryptLanes(int n, boolean last) {
+    int j = 0;
+    for (; j + 4 <= n; j += 4) {
+      TableDes.process4(key(j, last), key(j + 1, last), key(j + 2, last), key(j + 3, last), lanes, j);
+    }
+    for (; j < n; j++) {
+      lanes[j] = TableDes.process(key(j, last), lanes[j]);
+    }
+  }
+
+  private int[] key(int lane, boolean last) {
+    MacKey key = batch[active[lane]].key;
+    return last ? key.finalKey : key.chainKey;
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Backend based on the BouncyCastle lightweight DES engine. Triple DES is
+ * composed from three keyed DES engines, which unlike {@code DESedeEngine}
+ * process blocks without allocating.
+ */
+public final class BouncyCastleCryptoBackend implements CryptoBackend {
+
+  public static final String NAME = "bc";
+
+  private static final class BcCipherEngine extends AbstractCipherEngine {
+    private final BlockCipher[] encryptors;
+    private final BlockCipher[] decryptors;
+
+    BcCipherEngine(BlockCipher[] encryptors, BlockCipher[] decryptors) {
+      this.encryptors = encryptors;
+      this.decryptors = decryptors;
+    }
+
+    @Override void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+      process(encryptors, in, inOffset, out, outOffset);
+    }
+
+    @Override void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+      process(decryptors, in, inOffset, out, outOffset);
+    }
+
+    private static void process(BlockCipher[] ciphers, byte[] in, int inOffset, byte[] out, int outOffset) {
+      ciphers[0].processBlock(in, inOffset, out, outOffset);
+      for (int i = 1; i < ciphers.length; i++) {
+        ciphers[i].processBlock(out, outOffset, out, outOffset);
+      }
+    }
+  }
+
+  private static BlockCipher des(boolean encrypting, byte[] key, int offset) {
+    BlockCipher cipher = new DESEngine();
+    cipher.init(encrypting, new KeyParameter(key, offset, 8));
+    return cipher;
+  }
+
+  @Override public String name() {
+    return NAME;
+  }
+
+  @Override public CipherEngine des(byte[] key, int offset) {
+    AbstractCipherEngine.checkDesKey(key, offset);
+    return new BcCipherEngine(new BlockCipher[] {des(true, key, offset)}
+        , new BlockCipher[] {des(false, key, offset)});
+  }
+
+  @Override public CipherEngine desEde(byte[] key) {
+    AbstractCipherEngine.checkDesEdeKey(key);
+    int k3 = (key.length == 24) ? 16 : 0;
+    return new BcCipherEngine(
+        new BlockCipher[] {des(true, key, 0), des(false, key, 8), des(true, key, k3)}
+        , new BlockCipher[] {des(false, key, k3), des(true, key, 8), des(false, key, 0)});
+  }
+}
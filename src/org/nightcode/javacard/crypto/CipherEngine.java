@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import javax.annotation.Nullable;
+
+/**
+ * A DES or Triple DES block cipher bound to a key. The key schedule is computed
+ * when the engine is created. Engines are not thread-safe.
+ */
+public interface CipherEngine {
+
+  int BLOCK_SIZE = 8;
+
+  /**
+   * Encrypts {@code length} bytes in ECB mode, {@code length} must be a multiple of 8.
+   * The input and output regions may be the same.
+   */
+  void encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset);
+
+  /**
+   * Decrypts {@code length} bytes in ECB mode, {@code length} must be a multiple of 8.
+   * The input and output regions may be the same.
+   */
+  void decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset);
+
+  /**
+   * Encrypts {@code length} bytes in CBC mode, {@code length} must be a multiple of 8.
+   * The input and output regions may be the same.
+   *
+   * @param iv initial chaining value or {@code null} for zero ICV, not modified
+   */
+  void encryptCbc(@Nullable byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset);
+
+  /**
+   * Encrypts {@code length} bytes in CBC mode using {@code chain} as initial chaining value
+   * and stores the last cipher block to {@code chain}; the ciphertext itself is discarded.
+   * {@code length} must be a multiple of 8.
+   */
+  void cbcChain(byte[] chain, byte[] in, int inOffset, int length);
+
+  /**
+   * Returns the resources of the engine to its backend for reuse by other engines.
+   * The engine must not be used afterwards.
+   */
+  default void release() {
+    // do nothing
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+/**
+ * Provider of the DES based primitives used by the secure channel protocols.
+ * Implementations must be thread-safe; the engines they create are not.
+ */
+public interface CryptoBackend {
+
+  String name();
+
+  /**
+   * Creates a single DES engine for 8 bytes of {@code key} starting at {@code offset}.
+   */
+  CipherEngine des(byte[] key, int offset);
+
+  /**
+   * Creates a Triple DES (EDE) engine for a 16 or 24 bytes {@code key}.
+   */
+  CipherEngine desEde(byte[] key);
+
+  /**
+   * Creates an ISO/IEC 9797-1 MAC algorithm 3 engine for a 16 or 24 bytes {@code key}.
+   */
+  default MacAlgorithm3 macAlgorithm3(byte[] key) {
+    return new MacAlgorithm3(this, key);
+  }
+
+  /**
+   * Returns the 3 bytes key check value of a 16 or 24 bytes Triple DES {@code key}.
+   */
+  default byte[] kcv(byte[] key) {
+    byte[] block = new byte[CipherEngine.BLOCK_SIZE];
+    CipherEngine engine = desEde(key);
+    engine.encrypt(block, 0, block.length, block, 0);
+    engine.release();
+    byte[] kcv = new byte[3];
+    System.arraycopy(block, 0, kcv, 0, kcv.length);
+    return kcv;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.nightcode.javacard.util.Hexs;
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of the available crypto backends. The default backend is chosen
+ * once per JVM by the {@value #BACKEND_PROPERTY} system property: either a
+ * backend name or {@value #CALIBRATE}, which selects the backend with the best
+ * Triple DES CBC encryption and MAC algorithm 3 throughput. If the property is
+ * not set the JCA backend is used. Only backends that pass a known answer test
+ * are selected.
+ */
+public final class CryptoBackends {
+
+  public static final String BACKEND_PROPERTY = "org.nightcode.javacard.crypto.backend";
+  public static final String CALIBRATE = "calibrate";
+
+  private static final Logger LOGGER = Logger.getLogger(CryptoBackends.class.getName());
+
+  private static final int CALIBRATION_DATA_LENGTH = 128;
+  private static final int CALIBRATION_WARMUP = 20_000;
+  private static final int CALIBRATION_SAMPLES = 5;
+  private static final int CALIBRATION_ITERATIONS = 1_000;
+
+  private static final byte[] KAT_KEY = Hexs.hex().toByteArray("404142434445464748494A4B4C4D4E4F");
+  private static final byte[] KAT_INPUT = Hexs.hex().toByteArray("0102030405060708090A0B0C0D0E0F10");
+  private static final byte[] KAT_DES_EDE_CBC = Hexs.hex().toByteArray("0E9A7741E84385BE3BF906A43A70FD7C");
+  private static final byte[] KAT_MAC = Hexs.hex().toByteArray("62D6AFA876D52A58");
+  private static final byte[] KAT_KCV = Hexs.hex().toByteArray("8BAF47");
+
+  private static final List<CryptoBackend> BACKENDS = Collections.unmodifiableList(Arrays.asList(
+      new JcaCryptoBackend(), new BouncyCastleCryptoBackend(), new TableDesCryptoBackend()));
+
+  private static final class DefaultBackendHolder {
+    static final CryptoBackend DEFAULT = selectDefault();
+  }
+
+  public static List<CryptoBackend> backends() {
+    return BACKENDS;
+  }
+
+  public static CryptoBackend defaultBackend() {
+    return DefaultBackendHolder.DEFAULT;
+  }
+
+  public static CryptoBackend byName(String name) {
+    for (CryptoBackend backend : BACKENDS) {
+      if (backend.name().equalsIgnoreCase(name)) {
+        return backend;
+      }
+    }
+    throw new IllegalArgumentException("unknown crypto backend '" + name + "'");
+  }
+
+  /**
+   * Returns the fastest of the given backends; backends failing the known answer test
+   * or the calibration are skipped.
+   */
+  public static CryptoBackend calibrate(List<CryptoBackend> candidates) {
+    List<CryptoBackend> working = new ArrayList<>(candidates.size());
+    long[] times = new long[candidates.size()];
+    for (CryptoBackend backend : candidates) {
+      if (!knownAnswerTest(backend)) {
+        continue;
+      }
+      try {
+        times[working.size()] = measure(backend);
+        working.add(backend);
+      } catch (RuntimeException ex) {
+        LOGGER.log(Level.FINE, "crypto backend '" + backend.name() + "' is not usable", ex);
+      }
+    }
+    if (working.isEmpty()) {
+      throw new IllegalStateException("no usable crypto backend");
+    }
+    int best = 0;
+    for (int i = 1; i < working.size(); i++) {
+      if (times[i] < times[best]) {
+        best = i;
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      for (int i = 0; i < working.size(); i++) {
+        LOGGER.log(Level.FINE, String.format("crypto backend '%s': %d ns", working.get(i).name(), times[i]));
+      }
+    }
+    return working.get(best);
+  }
+
+  /**
+   * Checks Triple DES CBC encryption, MAC algorithm 3 and the key check value of the backend
+   * against fixed vectors.
+   */
+  static boolean knownAnswerTest(CryptoBackend backend) {
+    CipherEngine desEde = null;
+    MacAlgorithm3 macAlgorithm = null;
+    try {
+      desEde = backend.desEde(KAT_KEY);
+      byte[] out = new byte[KAT_INPUT.length];
+      desEde.encryptCbc(null, KAT_INPUT, 0, KAT_INPUT.length, out, 0);
+      if (!Arrays.equals(KAT_DES_EDE_CBC, out)) {
+        LOGGER.log(Level.WARNING, "crypto backend '" + backend.name() + "' failed the Triple DES known answer test");
+        return false;
+      }
+      macAlgorithm = backend.macAlgorithm3(KAT_KEY);
+      byte[] mac = new byte[MacAlgorithm3.BLOCK_SIZE];
+      macAlgorithm.mac(null, KAT_INPUT, 0, KAT_INPUT.length, mac, 0);
+      if (!Arrays.equals(KAT_MAC, mac)) {
+        LOGGER.log(Level.WARNING, "crypto backend '" + backend.name() + "' failed the MAC known answer test");
+        return false;
+      }
+      if (!Arrays.equals(KAT_KCV, backend.kcv(KAT_KEY))) {
+        LOGGER.log(Level.WARNING, "crypto backend '" + backend.name() + "' failed the KCV known answer test");
+        return false;
+      }
+      return true;
+    } catch (RuntimeException ex) {
+      LOGGER.log(Level.FINE, "crypto backend '" + backend.name() + "' is not usable", ex);
+      return false;
+    } finally {
+      if (desEde != null) {
+        desEde.release();
+      }
+      if (macAlgorithm != null) {
+        macAlgorithm.release();
+      }
+    }
+  }
+
+  private static CryptoBackend selectDefault() {
+    String name = System.getProperty(BACKEND_PROPERTY);
+    CryptoBackend backend;
+    if (name == null) {
+      backend = firstVerified(BACKENDS);
+    } else if (CALIBRATE.equalsIgnoreCase(name)) {
+      backend = calibrate(BACKENDS);
+    } else {
+      backend = byName(name);
+      if (!knownAnswerTest(backend)) {
+        throw new IllegalStateException("crypto backend '" + name + "' failed the known answer test");
+      }
+    }
+    LOGGER.log(Level.CONFIG, "selected crypto backend '" + backend.name() + "'");
+    return backend;
+  }
+
+  private static CryptoBackend firstVerified(List<CryptoBackend> candidates) {
+    for (CryptoBackend backend : candidates) {
+      if (knownAnswerTest(backend)) {
+        return backend;
+      }
+    }
+    throw new IllegalStateException("no usable crypto backend");
+  }
+
+  private static long measure(CryptoBackend backend) {
+    byte[] data = new byte[CALIBRATION_DATA_LENGTH];
+    byte[] mac = new byte[MacAlgorithm3.BLOCK_SIZE];
+    CipherEngine desEde = backend.desEde(KAT_KEY);
+    MacAlgorithm3 macAlgorithm = backend.macAlgorithm3(KAT_KEY);
+    try {
+      for (int i = 0; i < CALIBRATION_WARMUP; i++) {
+        run(desEde, macAlgorithm, data, mac);
+      }
+      long best = Long.MAX_VALUE;
+      for (int s = 0; s < CALIBRATION_SAMPLES; s++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_ITERATIONS; i++) {
+          run(desEde, macAlgorithm, data, mac);
+        }
+        best = Math.min(best, System.nanoTime() - start);
+      }
+      return best;
+    } finally {
+      desEde.release();
+      macAlgorithm.release();
+    }
+  }
+
+  private static void run(CipherEngine desEde, MacAlgorithm3 macAlgorithm, byte[] data, byte[] mac) {
+    desEde.encryptCbc(mac, data, 0, data.length, data, 0);
+    macAlgorithm.mac(mac, data, 0, data.length, mac, 0);
+  }
+
+  private CryptoBackends() {
+    // do nothing
+  }
+}
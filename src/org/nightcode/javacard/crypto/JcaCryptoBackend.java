@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backend based on the JCA {@link Cipher} of the installed security providers.
+ * Ciphers are initialized once per engine and reused, since a JCA cipher returns
+ * to its initialized state after each {@code doFinal}. Released engines return their
+ * ciphers to a striped pool per transformation, so the provider lookup of
+ * {@link Cipher#getInstance(String)} is paid only when the pool is empty; a pooled
+ * cipher is re-initialized with the key of the engine that acquires it.
+ */
+public final class JcaCryptoBackend implements CryptoBackend {
+
+  public static final String NAME = "jca";
+
+  private static final IvParameterSpec ZERO_IV_PARAMETER_SPEC = new IvParameterSpec(new byte[CipherEngine.BLOCK_SIZE]);
+
+  private static final int DEFAULT_POOL_SIZE = 64;
+
+  /**
+   * A bounded, lock-free pool of ciphers of one transformation. The probe start depends
+   * on the calling thread, so concurrent threads mostly hit different slots.
+   */
+  private static final class CipherPool {
+    private final String transformation;
+    private final AtomicReferenceArray<Cipher> slots;
+
+    CipherPool(String transformation, int maxPooled) {
+      this.transformation = transformation;
+      this.slots = new AtomicReferenceArray<>(maxPooled);
+    }
+
+    Cipher acquire() throws GeneralSecurityException {
+      int length = slots.length();
+      int start = probeStart(length);
+      for (int n = 0; n < length; n++) {
+        int index = (start + n) % length;
+        Cipher cipher = slots.get(index);
+        if (cipher != null && slots.compareAndSet(index, cipher, null)) {
+          return cipher;
+        }
+      }
+      return Cipher.getInstance(transformation);
+    }
+
+    int pooled() {
+      int pooled = 0;
+      for (int i = 0; i < slots.length(); i++) {
+        if (slots.get(i) != null) {
+          pooled++;
+        }
+      }
+      return pooled;
+    }
+
+    void release(Cipher cipher) {
+      int length = slots.length();
+      int start = probeStart(length);
+      for (int n = 0; n < length; n++) {
+        int index = (start + n) % length;
+        if (slots.get(index) == null && slots.compareAndSet(index, null, cipher)) {
+          return;
+        }
+      }
+    }
+
+    private static int probeStart(int length) {
+      return (int) (Thread.currentThread().getId() % length);
+    }
+  }
+
+  private static final class JcaCipherEngine implements CipherEngine {
+    private final CipherPool ecbPool;
+    private final CipherPool cbcPool;
+
+    private final Cipher ecbEncryptor;
+    private final Cipher ecbDecryptor;
+    private final Cipher cbcEncryptor;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private byte[] scratch = new byte[256];
+
+    private boolean released;
+
+    JcaCipherEngine(CipherPool ecbPool, CipherPool cbcPool, Key key) throws GeneralSecurityException {
+      this.ecbPool = ecbPool;
+      this.cbcPool = cbcPool;
+      ecbEncryptor = ecbPool.acquire();
+      ecbDecryptor = ecbPool.acquire();
+      cbcEncryptor = cbcPool.acquire();
+      try {
+        ecbEncryptor.init(Cipher.ENCRYPT_MODE, key);
+        ecbDecryptor.init(Cipher.DECRYPT_MODE, key);
+        cbcEncryptor.init(Cipher.ENCRYPT_MODE, key, ZERO_IV_PARAMETER_SPEC);
+      } catch (GeneralSecurityException | RuntimeException ex) {
+        release();
+        throw ex;
+      }
+    }
+
+    @Override public void encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      try {
+        ecbEncryptor.doFinal(in, inOffset, length, out, outOffset);
+      } catch (GeneralSecurityException ex) {
+        throw new RuntimeException("encryption failed", ex);
+      }
+    }
+
+    @Override public void decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      try {
+        ecbDecryptor.doFinal(in, inOffset, length, out, outOffset);
+      } catch (GeneralSecurityException ex) {
+        throw new RuntimeException("decryption failed", ex);
+      }
+    }
+
+    @Override public void encryptCbc(@Nullable byte[] iv, byte[] in, int inOffset, int length, byte[] out,
+        int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      if (length == 0) {
+        return;
+      }
+      try {
+        if (iv == null) {
+          cbcEncryptor.doFinal(in, inOffset, length, out, outOffset);
+          return;
+        }
+        // the cipher is initialized with zero ICV, the first block carries the chaining value
+        for (int j = 0; j < BLOCK_SIZE; j++) {
+          block[j] = (byte) (in[inOffset + j] ^ iv[j]);
+        }
+        cbcEncryptor.update(block, 0, BLOCK_SIZE, out, outOffset);
+        cbcEncryptor.doFinal(in, inOffset + BLOCK_SIZE, length - BLOCK_SIZE, out, outOffset + BLOCK_SIZE);
+      } catch (GeneralSecurityException ex) {
+        throw new RuntimeException("encryption failed", ex);
+      }
+    }
+
+    @Override public void cbcChain(byte[] chain, byte[] in, int inOffset, int length) {
+      AbstractCipherEngine.checkLength(length);
+      if (length == 0) {
+        return;
+      }
+      if (scratch.length < length) {
+        scratch = new byte[length];
+      }
+      encryptCbc(chain, in, inOffset, length, scratch, 0);
+      System.arraycopy(scratch, length - BLOCK_SIZE, chain, 0, BLOCK_SIZE);
+    }
+
+    @Override public void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      ecbPool.release(ecbEncryptor);
+      ecbPool.release(ecbDecryptor);
+      cbcPool.release(cbcEncryptor);
+      Arrays.fill(scratch, (byte) 0);
+    }
+  }
+
+  private final CipherPool desEcb;
+  private final CipherPool desCbc;
+  private final CipherPool desEdeEcb;
+  private final CipherPool desEdeCbc;
+
+  public JcaCryptoBackend() {
+    this(DEFAULT_POOL_SIZE);
+  }
+
+  /**
+   * Creates a backend that keeps up to {@code maxPooled} released ciphers per transformation.
+   */
+  public JcaCryptoBackend(int maxPooled) {
+    if (maxPooled <= 0) {
+      throw new IllegalArgumentException("maxPooled [" + maxPooled + "] must be greater than zero");
+    }
+    desEcb = new CipherPool("DES/ECB/NoPadding", maxPooled);
+    desCbc = new CipherPool("DES/CBC/NoPadding", maxPooled);
+    desEdeEcb = new CipherPool("DESede/ECB/NoPadding", maxPooled);
+    desEdeCbc = new CipherPool("DESede/CBC/NoPadding", maxPooled);
+  }
+
+  @Override public String name() {
+    return NAME;
+  }
+
+  @Override public CipherEngine des(byte[] key, int offset) {
+    AbstractCipherEngine.checkDesKey(key, offset);
+    try {
+      return new JcaCipherEngine(desEcb, desCbc, new SecretKeySpec(key, offset, 8, "DES"));
+    } catch (GeneralSecurityException ex) {
+      throw new RuntimeException("unsupported cryptographic algorithm", ex);
+    }
+  }
+
+  @Override public CipherEngine desEde(byte[] key) {
+    AbstractCipherEngine.checkDesEdeKey(key);
+    byte[] key24 = new byte[24];
+    System.arraycopy(key, 0, key24, 0, 16);
+    System.arraycopy(key, (key.length == 24) ? 16 : 0, key24, 16, 8);
+    try {
+      return new JcaCipherEngine(desEdeEcb, desEdeCbc, new SecretKeySpec(key24, "DESede"));
+    } catch (GeneralSecurityException ex) {
+      throw new RuntimeException("unsupported cryptographic algorithm", ex);
+    } finally {
+      Arrays.fill(key24, (byte) 0);
+    }
+  }
+
+  /**
+   * Returns the number of pooled DESede ECB ciphers.
+   */
+  int pooledDesEdeCiphers() {
+    return desEdeEcb.pooled();
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+/**
+ * Table driven DES core. The eight combined S-box/P-permutation tables are
+ * computed once from the standard S-boxes; a Triple DES block is processed
+ * with a single initial and final permutation.
+ */
+final class TableDes {
+
+  private static final byte[][] S_BOXES = {
+      {14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+          0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+          4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+          15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13},
+      {15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+          3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+          0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+          13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9},
+      {10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+          13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+          13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+          1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12},
+      {7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+          13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+          10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+          3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14},
+      {2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+          14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+          4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+          11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3},
+      {12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+          10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+          9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+          4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13},
+      {4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+          13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+          1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+          6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12},
+      {13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+          1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+          7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+          2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11}
+  };
+
+  private static final byte[] P = {
+      16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+      2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25
+  };
+
+  private static final byte[] PC1 = {
+      56, 48, 40, 32, 24, 16, 8, 0, 57, 49, 41, 33, 25, 17,
+      9, 1, 58, 50, 42, 34, 26, 18, 10, 2, 59, 51, 43, 35,
+      62, 54, 46, 38, 30, 22, 14, 6, 61, 53, 45, 37, 29, 21,
+      13, 5, 60, 52, 44, 36, 28, 20, 12, 4, 27, 19, 11, 3
+  };
+
+  private static final byte[] PC2 = {
+      13, 16, 10, 23, 0, 4, 2, 27, 14, 5, 20, 9,
+      22, 18, 11, 3, 25, 7, 15, 6, 26, 19, 12, 1,
+      40, 51, 30, 36, 46, 54, 29, 39, 50, 44, 32, 47,
+      43, 48, 38, 55, 33, 52, 45, 41, 49, 35, 28, 31
+  };
+
+  private static final byte[] TOTAL_ROTATIONS = {1, 2, 4, 6, 8, 10, 12, 14, 15, 17, 19, 21, 23, 25, 27, 28};
+
+  private static final int[] SP1 = new int[64];
+  private static final int[] SP2 = new int[64];
+  private static final int[] SP3 = new int[64];
+  private static final int[] SP4 = new int[64];
+  private static final int[] SP5 = new int[64];
+  private static final int[] SP6 = new int[64];
+  private static final int[] SP7 = new int[64];
+  private static final int[] SP8 = new int[64];
+
+  static {
+    int[][] sp = {SP1, SP2, SP3, SP4, SP5, SP6, SP7, SP8};
+    for (int n = 0; n < 8; n++) {
+      for (int x = 0; x < 64; x++) {
+        int row = ((x >>> 4) & 0x02) | (x & 0x01);
+        int column = (x >>> 1) & 0x0F;
+        int sOut = S_BOXES[n][(row << 4) | column] << (28 - 4 * n);
+        int pOut = 0;
+        for (int i = 0; i < 32; i++) {
+          if ((sOut & (1 << (32 - P[i]))) != 0) {
+            pOut |= 1 << (31 - i);
+          }
+        }
+        // the round function keeps both halves rotated left by one bit
+        sp[n][x] = (pOut << 1) | (pOut >>> 31);
+      }
+    }
+  }
+
+  /**
+   * Computes the 32 subkey words of a single DES key.
+   */
+  static int[] workingKey(boolean encrypting, byte[] key, int offset) {
+    int[] newKey = new int[32];
+    boolean[] pc1m = new boolean[56];
+    boolean[] pcr = new boolean[56];
+
+    for (int j = 0; j < 56; j++) {
+      int l = PC1[j];
+      pc1m[j] = (key[offset + (l >>> 3)] & (0x80 >>> (l & 0x07))) != 0;
+    }
+
+    for (int i = 0; i < 16; i++) {
+      int m = encrypting ? i << 1 : (15 - i) << 1;
+      int n = m + 1;
+      for (int j = 0; j < 28; j++) {
+        int l = j + TOTAL_ROTATIONS[i];
+        pcr[j] = pc1m[(l < 28) ? l : l - 28];
+      }
+      for (int j = 28; j < 56; j++) {
+        int l = j + TOTAL_ROTATIONS[i];
+        pcr[j] = pc1m[(l < 56) ? l : l - 28];
+      }
+      for (int j = 0; j < 24; j++) {
+        if (pcr[PC2[j]]) {
+          newKey[m] |= 0x800000 >>> j;
+        }
+        if (pcr[PC2[j + 24]]) {
+          newKey[n] |= 0x800000 >>> j;
+        }
+      }
+    }
+
+    for (int i = 0; i != 32; i += 2) {
+      int i1 = newKey[i];
+      int i2 = newKey[i + 1];
+      newKey[i] = ((i1 & 0x00fc0000) << 6) | ((i1 & 0x00000fc0) << 10)
+          | ((i2 & 0x00fc0000) >>> 10) | ((i2 & 0x00000fc0) >>> 6);
+      newKey[i + 1] = ((i1 & 0x0003f000) << 12) | ((i1 & 0x0000003f) << 16)
+          | ((i2 & 0x0003f000) >>> 4) | (i2 & 0x0000003f);
+    }
+    return newKey;
+  }
+
+  /**
+   * Concatenates working keys so that {@link #process} applies them in order.
+   */
+  static int[] join(int[]... workingKeys) {
+    int[] result = new int[32 * workingKeys.length];
+    for (int i = 0; i < workingKeys.length; i++) {
+      System.arraycopy(workingKeys[i], 0, result, 32 * i, 32);
+    }
+    return result;
+  }
+
+  /**
+   * Processes one block with one (DES) or three (Triple DES) consecutive working keys.
+   */
+  static long process(int[] workingKey, long block) {
+    int left = (int) (block >>> 32);
+    int right = (int) block;
+    int work;
+
+    work = ((left >>> 4) ^ right) & 0x0f0f0f0f;
+    right ^= work;
+    left ^= work << 4;
+    work = ((left >>> 16) ^ right) & 0x0000ffff;
+    right ^= work;
+    left ^= work << 16;
+    work = ((right >>> 2) ^ left) & 0x33333333;
+    left ^= work;
+    right ^= work << 2;
+    work = ((right >>> 8) ^ left) & 0x00ff00ff;
+    left ^= work;
+    right ^= work << 8;
+    right = (right << 1) | (right >>> 31);
+    work = (left ^ right) & 0xaaaaaaaa;
+    left ^= work;
+    right ^= work;
+    left = (left << 1) | (left >>> 31);
+
+    for (int base = 0; base < workingKey.length; base += 32) {
+      if (base > 0) {
+        work = left;
+        left = right;
+        right = work;
+      }
+      for (int k = base; k < base + 32; k += 4) {
+        int fval;
+        work = (right << 28) | (right >>> 4);
+        work ^= workingKey[k];
+        fval = SP7[work & 0x3f] | SP5[(work >>> 8) & 0x3f] | SP3[(work >>> 16) & 0x3f] | SP1[(work >>> 24) & 0x3f];
+        work = right ^ workingKey[k + 1];
+        fval |= SP8[work & 0x3f] | SP6[(work >>> 8) & 0x3f] | SP4[(work >>> 16) & 0x3f] | SP2[(work >>> 24) & 0x3f];
+        left ^= fval;
+
+        work = (left << 28) | (left >>> 4);
+        work ^= workingKey[k + 2];
+        fval = SP7[work & 0x3f] | SP5[(work >>> 8) & 0x3f] | SP3[(work >>> 16) & 0x3f] | SP1[(work >>> 24) & 0x3f];
+        work = left ^ workingKey[k + 3];
+        fval |= SP8[work & 0x3f] | SP6[(work >>> 8) & 0x3f] | SP4[(work >>> 16) & 0x3f] | SP2[(work >>> 24) & 0x3f];
+        right ^= fval;
+      }
+    }
+
+    right = (right << 31) | (right >>> 1);
+    work = (left ^ right) & 0xaaaaaaaa;
+    left ^= work;
+    right ^= work;
+    left = (left << 31) | (left >>> 1);
+    work = ((left >>> 8) ^ right) & 0x00ff00ff;
+    right ^= work;
+    left ^= work << 8;
+    work = ((left >>> 2) ^ right) & 0x33333333;
+    right ^= work;
+    left ^= work << 2;
+    work = ((right >>> 16) ^ left) & 0x0000ffff;
+    left ^= work;
+    right ^= work << 16;
+    work = ((right >>> 4) ^ left) & 0x0f0f0f0f;
+    left ^= work;
+    right ^= work << 4;
+
+    return ((long) right << 32) | (left & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Processes four independent blocks {@code blocks[offset..offset + 3]} in place, the
+   * block at {@code offset + n} with {@code keyN}. The rounds of the four blocks are
+   * interleaved so their dependency chains overlap. All keys must have the same length.
+   */
+  static void process4(int[] key0, int[] key1, int[] key2, int[] key3, long[] blocks, int offset) {
+    long state0 = initialPermutation(blocks[offset]);
+    long state1 = initialPermutation(blocks[offset + 1]);
+    long state2 = initialPermutation(blocks[offset + 2]);
+    long state3 = initialPermutation(blocks[offset + 3]);
+    int l0 = (int) (state0 >>> 32);
+    int r0 = (int) state0;
+    int l1 = (int) (state1 >>> 32);
+    int r1 = (int) state1;
+    int l2 = (int) (state2 >>> 32);
+    int r2 = (int) state2;
+    int l3 = (int) (state3 >>> 32);
+    int r3 = (int) state3;
+    for (int base = 0; base < key0.length; base += 32) {
+      if (base > 0) {
+        int work = l0;
+        l0 = r0;
+        r0 = work;
+        work = l1;
+        l1 = r1;
+        r1 = work;
+        work = l2;
+        l2 = r2;
+        r2 = work;
+        work = l3;
+        l3 = r3;
+        r3 = work;
+      }
+      for (int k = base; k < base + 32; k += 4) {
+        l0 ^= f(r0, key0, k);
+        l1 ^= f(r1, key1, k);
+        l2 ^= f(r2, key2, k);
+        l3 ^= f(r3, key3, k);
+        r0 ^= f(l0, key0, k + 2);
+        r1 ^= f(l1, key1, k + 2);
+        r2 ^= f(l2, key2, k + 2);
+        r3 ^= f(l3, key3, k + 2);
+      }
+    }
+    blocks[offset] = finalPermutation(l0, r0);
+    blocks[offset + 1] = finalPermutation(l1, r1);
+    blocks[offset + 2] = finalPermutation(l2, r2);
+    blocks[offset + 3] = finalPermutation(l3, r3);
+  }
+
+  /**
+   * The DES round function of two rounds' key words starting at {@code k}.
+   */
+  private static int f(int value, int[] workingKey, int k) {
+    int work = ((value << 28) | (value >>> 4)) ^ workingKey[k];
+    int fval = SP7[work & 0x3f] | SP5[(work >>> 8) & 0x3f] | SP3[(work >>> 16) & 0x3f] | SP1[(work >>> 24) & 0x3f];
+    work = value ^ workingKey[k + 1];
+    return fval | SP8[work & 0x3f] | SP6[(work >>> 8) & 0x3f] | SP4[(work >>> 16) & 0x3f] | SP2[(work >>> 24) & 0x3f];
+  }
+
+  /**
+   * Applies the initial permutation; returns the rotated halves as {@code left << 32 | right}.
+   */
+  private static long initialPermutation(long block) {
+    int left = (int) (block >>> 32);
+    int right = (int) block;
+    int work;
+
+    work = ((left >>> 4) ^ right) & 0x0f0f0f0f;
+    right ^= work;
+    left ^= work << 4;
+    work = ((left >>> 16) ^ right) & 0x0000ffff;
+    right ^= work;
+    left ^= work << 16;
+    work = ((right >>> 2) ^ left) & 0x33333333;
+    left ^= work;
+    right ^= work << 2;
+    work = ((right >>> 8) ^ left) & 0x00ff00ff;
+    left ^= work;
+    right ^= work << 8;
+    right = (right << 1) | (right >>> 31);
+    work = (left ^ right) & 0xaaaaaaaa;
+    left ^= work;
+    right ^= work;
+    left = (left << 1) | (left >>> 31);
+
+    return ((long) left << 32) | (right & 0xFFFFFFFFL);
+  }
+
+  private static long finalPermutation(int left, int right) {
+    int work;
+
+    right = (right << 31) | (right >>> 1);
+    work = (left ^ right) & 0xaaaaaaaa;
+    left ^= work;
+    right ^= work;
+    left = (left << 31) | (left >>> 1);
+    work = ((left >>> 8) ^ right) & 0x00ff00ff;
+    right ^= work;
+    left ^= work << 8;
+    work = ((left >>> 2) ^ right) & 0x33333333;
+    right ^= work;
+    left ^= work << 2;
+    work = ((right >>> 16) ^ left) & 0x0000ffff;
+    left ^= work;
+    right ^= work << 16;
+    work = ((right >>> 4) ^ left) & 0x0f0f0f0f;
+    left ^= work;
+    right ^= work << 4;
+
+    return ((long) right << 32) | (left & 0xFFFFFFFFL);
+  }
+
+  static long getLong(byte[] buffer, int offset) {
+    return ((long) (buffer[offset] & 0xFF) << 56)
+        | ((long) (buffer[offset + 1] & 0xFF) << 48)
+        | ((long) (buffer[offset + 2] & 0xFF) << 40)
+        | ((long) (buffer[offset + 3] & 0xFF) << 32)
+        | ((long) (buffer[offset + 4] & 0xFF) << 24)
+        | ((buffer[offset + 5] & 0xFF) << 16)
+        | ((buffer[offset + 6] & 0xFF) << 8)
+        | (buffer[offset + 7] & 0xFF);
+  }
+
+  static void putLong(long value, byte[] buffer, int offset) {
+    buffer[offset] = (byte) (value >>> 56);
+    buffer[offset + 1] = (byte) (value >>> 48);
+    buffer[offset + 2] = (byte) (value >>> 40);
+    buffer[offset + 3] = (byte) (value >>> 32);
+    buffer[offset + 4] = (byte) (value >>> 24);
+    buffer[offset + 5] = (byte) (value >>> 16);
+    buffer[offset + 6] = (byte) (value >>> 8);
+    buffer[offset + 7] = (byte) value;
+  }
+
+  private TableDes() {
+    // do nothing
+  }
+}
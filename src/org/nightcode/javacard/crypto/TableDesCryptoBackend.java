@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import javax.annotation.Nullable;
+
+/**
+ * Pure Java backend using the table driven {@link TableDes} core. Blocks are
+ * processed as {@code long} values and Triple DES runs the three stages with
+ * a single initial and final permutation.
+ */
+public final class TableDesCryptoBackend implements CryptoBackend {
+
+  public static final String NAME = "table";
+
+  private static final class TableCipherEngine implements CipherEngine {
+    private final int[] encryptKey;
+    private final int[] decryptKey;
+
+    TableCipherEngine(int[] encryptKey, int[] decryptKey) {
+      this.encryptKey = encryptKey;
+      this.decryptKey = decryptKey;
+    }
+
+    @Override public void encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      for (int i = 0; i < length; i += BLOCK_SIZE) {
+        TableDes.putLong(TableDes.process(encryptKey, TableDes.getLong(in, inOffset + i)), out, outOffset + i);
+      }
+    }
+
+    @Override public void decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      for (int i = 0; i < length; i += BLOCK_SIZE) {
+        TableDes.putLong(TableDes.process(decryptKey, TableDes.getLong(in, inOffset + i)), out, outOffset + i);
+      }
+    }
+
+    @Override public void encryptCbc(@Nullable byte[] iv, byte[] in, int inOffset, int length, byte[] out,
+        int outOffset) {
+      AbstractCipherEngine.checkLength(length);
+      long chain = (iv != null) ? TableDes.getLong(iv, 0) : 0L;
+      for (int i = 0; i < length; i += BLOCK_SIZE) {
+        chain = TableDes.process(encryptKey, chain ^ TableDes.getLong(in, inOffset + i));
+        TableDes.putLong(chain, out, outOffset + i);
+      }
+    }
+
+    @Override public void cbcChain(byte[] chain, byte[] in, int inOffset, int length) {
+      AbstractCipherEngine.checkLength(length);
+      long value = TableDes.getLong(chain, 0);
+      for (int i = 0; i < length; i += BLOCK_SIZE) {
+        value = TableDes.process(encryptKey, value ^ TableDes.getLong(in, inOffset + i));
+      }
+      TableDes.putLong(value, chain, 0);
+    }
+  }
+
+  @Override public String name() {
+    return NAME;
+  }
+
+  @Override public CipherEngine des(byte[] key, int offset) {
+    AbstractCipherEngine.checkDesKey(key, offset);
+    return new TableCipherEngine(TableDes.workingKey(true, key, offset), TableDes.workingKey(false, key, offset));
+  }
+
+  @Override public CipherEngine desEde(byte[] key) {
+    AbstractCipherEngine.checkDesEdeKey(key);
+    int k3 = (key.length == 24) ? 16 : 0;
+    int[] encryptKey = TableDes.join(TableDes.workingKey(true, key, 0), TableDes.workingKey(false, key, 8)
+        , TableDes.workingKey(true, key, k3));
+    int[] decryptKey = TableDes.join(TableDes.workingKey(false, key, k3), TableDes.workingKey(true, key, 8)
+        , TableDes.workingKey(false, key, 0));
+    return new TableCipherEngine(encryptKey, decryptKey);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free pool of equally sized byte buffers. Acquiring and
+ * releasing a pooled buffer does not allocate; when the pool is empty a new
+ * buffer is created and when it is full a released buffer is dropped.
+ */
+public final class ByteBufferPool {
+
+  private final AtomicReferenceArray<ByteBuffer> slots;
+  private final int bufferSize;
+  private final boolean direct;
+
+  public ByteBufferPool(int maxPooled, int bufferSize, boolean direct) {
+    if (maxPooled <= 0) {
+      throw new IllegalArgumentException("maxPooled [" + maxPooled + "] must be grate then 0");
+    }
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize [" + bufferSize + "] must be grate then 0");
+    }
+    this.slots = new AtomicReferenceArray<>(maxPooled);
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+  }
+
+  /**
+   * Returns a cleared buffer of {@link #bufferSize()} bytes.
+   */
+  public ByteBuffer acquire() {
+    int length = slots.length();
+    int start = probeStart(length);
+    for (int n = 0; n < length; n++) {
+      int index = (start + n) % length;
+      ByteBuffer buffer = slots.get(index);
+      if (buffer != null && slots.compareAndSet(index, buffer, null)) {
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+  }
+
+  public int bufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the buffer to the pool. Buffers of a different capacity or type are ignored.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+      return;
+    }
+    int length = slots.length();
+    int start = probeStart(length);
+    for (int n = 0; n < length; n++) {
+      int index = (start + n) % length;
+      if (slots.get(index) == null && slots.compareAndSet(index, null, buffer)) {
+        return;
+      }
+    }
+  }
+
+  private static int probeStart(int length) {
+    return (int) (Thread.currentThread().getId() % length);
+  }
+}
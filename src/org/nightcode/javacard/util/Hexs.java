@@ -14,6 +14,7 @@
 
 package org.nightcode.javacard.util;
 
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -72,6 +73,36 @@ public final class Hexs {
     return fromByteArrayInternal(bytes, offset, length);
   }
 
+  /**
+   * Returns a hexadecimal string representation of {@code length} bytes of {@code buffer}
+   * starting at absolute index {@code index}. The buffer's position and limit are not modified.
+   *
+   * @param buffer a buffer to convert
+   * @param index start index in the buffer
+   * @param length maximum number of bytes to use
+   * @return a hexadecimal string representation of each bytes of {@code buffer}
+   */
+  public String fromByteBuffer(ByteBuffer buffer, int index, int length) {
+    Objects.requireNonNull(buffer, "buffer");
+    if (index < 0) {
+      throw new IllegalArgumentException("index must be equal or greater than zero");
+    }
+    if (length < 0) {
+      throw new IllegalArgumentException("length must be greater than zero");
+    }
+    if (index + length > buffer.limit()) {
+      throw new IllegalArgumentException(String.format("(index + length) must be less than %s", buffer.limit()));
+    }
+    StringBuilder builder = new StringBuilder(length << 1);
+    int size = index + length;
+    for (int i = index; i < size; i++) {
+      byte b = buffer.get(i);
+      builder.append(HEX_DIGITS[(b & 0xF0) >> 4]);
+      builder.append(HEX_DIGITS[b & 0x0F]);
+    }
+    return builder.toString();
+  }
+
   /**
    * Returns a byte array representation of hexadecimal string {@code hexString}.
    *
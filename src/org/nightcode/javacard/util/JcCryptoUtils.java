@@ -14,21 +14,13 @@
 
 package org.nightcode.javacard.util;
 
+import org.nightcode.javacard.crypto.CryptoBackends;
+
 import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.util.Arrays;
 
-import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 
-import org.bouncycastle.crypto.BlockCipher;
-import org.bouncycastle.crypto.CipherParameters;
-import org.bouncycastle.crypto.Mac;
-import org.bouncycastle.crypto.engines.DESEngine;
-import org.bouncycastle.crypto.macs.ISO9797Alg3Mac;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
-
 public final class JcCryptoUtils {
 
   public static final String DES_ECB_NO_PADDING = "DES/ECB/NoPadding";
@@ -41,24 +33,29 @@ public final class JcCryptoUtils {
   public static final IvParameterSpec ZERO_IV_PARAMETER_SPEC = new IvParameterSpec(ZERO_ARRAY_8);
 
   public static byte[] desKcv(Key key) throws GeneralSecurityException {
-    Cipher cipher = Cipher.getInstance(DES_EDE_ECB_NO_PADDING);
-    cipher.init(Cipher.ENCRYPT_MODE, key);
-    return Arrays.copyOf(cipher.doFinal(ZERO_ARRAY_8), 3);
+    return CryptoBackends.defaultBackend().kcv(key.getEncoded());
   }
 
+  /**
+   * Calculates the ISO/IEC 9797-1 MAC algorithm 3 of {@code input} zero padded to a multiple
+   * of the block size (padding method 1, an empty input is padded to one block).
+   */
   public static byte[] macAlgorithm3(Key key, byte[] iv, byte[] input) {
-    CipherParameters cipherParameters = new KeyParameter(key.getEncoded());
-    if (iv != null) {
-      cipherParameters = new ParametersWithIV(cipherParameters, iv);
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(key);
+    try {
+      macAlgorithm.init(iv);
+      macAlgorithm.update(input, 0, input.length);
+      int paddedLength = Math.max(MacAlgorithm3.BLOCK_SIZE, (input.length + MacAlgorithm3.BLOCK_SIZE - 1)
+          & ~(MacAlgorithm3.BLOCK_SIZE - 1));
+      for (int i = input.length; i < paddedLength; i++) {
+        macAlgorithm.update((byte) 0x00);
+      }
+      byte[] result = new byte[DEFAULT_MAC_SIZE_BITS / 8];
+      macAlgorithm.doFinal(result, 0);
+      return result;
+    } finally {
+      macAlgorithm.release();
     }
-    BlockCipher cipher = new DESEngine();
-    Mac mac = new ISO9797Alg3Mac(cipher, DEFAULT_MAC_SIZE_BITS);
-    mac.init(cipherParameters);
-
-    mac.update(input, 0, input.length);
-    byte[] result = new byte[mac.getMacSize()];
-    mac.doFinal(result, 0);
-    return result;
   }
 
   public static byte[] toKey24(byte[] key) {
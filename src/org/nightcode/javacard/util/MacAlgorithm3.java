@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.crypto.CryptoBackends;
+
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * ISO/IEC 9797-1 MAC algorithm 3 with DES as the block cipher.
+ * The key schedule is computed once at construction, so an instance can be
+ * reused for every MAC of a session without allocating. Besides the one-shot
+ * {@link #mac} an incremental {@code init/update/doFinal} form is available.
+ * The DES primitives are provided by a {@link CryptoBackend}.
+ * Instances are not thread-safe.
+ */
+public final class MacAlgorithm3 {
+
+  public static final int BLOCK_SIZE = 8;
+
+  private final CipherEngine k1;
+  private final CipherEngine k2;
+  private final CipherEngine k3;
+
+  private final byte[] chain = new byte[BLOCK_SIZE];
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private int blockOffset;
+
+  public MacAlgorithm3(Key key) {
+    this(key.getEncoded());
+  }
+
+  public MacAlgorithm3(byte[] key) {
+    this(CryptoBackends.defaultBackend(), key);
+  }
+
+  public MacAlgorithm3(CryptoBackend backend, byte[] key) {
+    if (key.length != 16 && key.length != 24) {
+      throw new IllegalArgumentException("Wrong key length [" + key.length + "]");
+    }
+    k1 = backend.des(key, 0);
+    k2 = backend.des(key, 8);
+    k3 = (key.length == 24) ? backend.des(key, 16) : k1;
+  }
+
+  /**
+   * Calculates MAC of {@code length} bytes of {@code input} starting at offset {@code offset}
+   * and writes it to {@code out} starting at offset {@code outOffset}.
+   * The input MUST be already padded. {@code out} may be the same array as {@code iv}.
+   *
+   * @param iv initial chaining value or {@code null} for zero ICV
+   * @param input a padded input
+   * @param offset start offset in the input
+   * @param length number of bytes to use, multiple of 8
+   * @param out the output buffer
+   * @param outOffset start offset in the output buffer
+   */
+  public void mac(@Nullable byte[] iv, byte[] input, int offset, int length, byte[] out, int outOffset) {
+    if (length <= 0 || (length & (BLOCK_SIZE - 1)) != 0) {
+      throw new IllegalArgumentException("input length [" + length + "] must be a positive multiple of 8");
+    }
+    init(iv);
+    update(input, offset, length);
+    doFinal(out, outOffset);
+  }
+
+  /**
+   * Starts a new MAC calculation.
+   *
+   * @param iv initial chaining value or {@code null} for zero ICV
+   */
+  public void init(@Nullable byte[] iv) {
+    if (iv == null) {
+      Arrays.fill(chain, (byte) 0);
+    } else {
+      System.arraycopy(iv, 0, chain, 0, BLOCK_SIZE);
+    }
+    blockOffset = 0;
+  }
+
+  public void update(byte b) {
+    block[blockOffset++] = b;
+    if (blockOffset == BLOCK_SIZE) {
+      k1.cbcChain(chain, block, 0, BLOCK_SIZE);
+      blockOffset = 0;
+    }
+  }
+
+  public void update(byte[] input, int offset, int length) {
+    if (offset < 0 || length < 0 || offset + length > input.length) {
+      throw new IllegalArgumentException(String.format("(offset + length) must be less than %s", input.length));
+    }
+    int end = offset + length;
+    int i = offset;
+    while (blockOffset != 0 && i < end) {
+      update(input[i++]);
+    }
+    int aligned = (end - i) & ~(BLOCK_SIZE - 1);
+    if (aligned > 0) {
+      k1.cbcChain(chain, input, i, aligned);
+      i += aligned;
+    }
+    while (i < end) {
+      update(input[i++]);
+    }
+  }
+
+  /**
+   * Continues the MAC calculation with {@code length} bytes of {@code input} starting at absolute
+   * index {@code index}. The buffer's position and limit are not modified.
+   */
+  public void update(ByteBuffer input, int index, int length) {
+    if (index < 0 || length < 0 || index + length > input.limit()) {
+      throw new IllegalArgumentException(String.format("(index + length) must be less than %s", input.limit()));
+    }
+    if (input.hasArray()) {
+      update(input.array(), input.arrayOffset() + index, length);
+      return;
+    }
+    int end = index + length;
+    for (int i = index; i < end; i++) {
+      update(input.get(i));
+    }
+  }
+
+  /**
+   * Completes the MAC calculation of block aligned input.
+   */
+  public void doFinal(byte[] out, int outOffset) {
+    if (blockOffset != 0) {
+      throw new IllegalStateException("input length must be a multiple of 8, use doFinalPadded");
+    }
+    if (outOffset < 0 || outOffset + BLOCK_SIZE > out.length) {
+      throw new IllegalArgumentException("output buffer too short");
+    }
+    k2.decrypt(chain, 0, BLOCK_SIZE, chain, 0);
+    k3.encrypt(chain, 0, BLOCK_SIZE, out, outOffset);
+  }
+
+  /**
+   * Appends ISO/IEC 7816-4 padding to the input and completes the MAC calculation.
+   */
+  public void doFinalPadded(byte[] out, int outOffset) {
+    update((byte) 0x80);
+    while (blockOffset != 0) {
+      update((byte) 0x00);
+    }
+    doFinal(out, outOffset);
+  }
+
+  /**
+   * Releases the DES engines, see {@link CipherEngine#release()}.
+   * The instance must not be used afterwards.
+   */
+  public void release() {
+    k1.release();
+    k2.release();
+    if (k3 != k1) {
+      k3.release();
+    }
+  }
+}
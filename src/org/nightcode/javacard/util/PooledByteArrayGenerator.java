@@ -0,0 +1,192 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+/**
+ * A {@link ByteArrayGenerator} to be shared by many sessions. Arrays of the pooled size, e.g.
+ * 8 byte host challenges, are taken from a lock-free pool that a background thread refills
+ * ahead of demand in bulk, so a fetch is a single CAS. Every pooled array is handed out at most
+ * once. Other sizes, and fetches from an exhausted pool, are generated synchronously.
+ */
+public final class PooledByteArrayGenerator implements ByteArrayGenerator, AutoCloseable {
+
+  public static final class Builder {
+    private int capacity = 1024;
+    private boolean drbg;
+    private SecureRandom secureRandom;
+    private int size = 8;
+
+    private Builder() {
+      // do nothing
+    }
+
+    public PooledByteArrayGenerator build() {
+      return new PooledByteArrayGenerator(this);
+    }
+
+    public Builder capacity(int val) {
+      capacity = val;
+      return this;
+    }
+
+    /**
+     * Generates the pooled arrays with an HMAC-SHA256 DRBG (NIST SP 800-90A) seeded from
+     * {@link SecureRandom} instead of the platform {@code SecureRandom}.
+     */
+    public Builder drbg(boolean val) {
+      drbg = val;
+      return this;
+    }
+
+    public Builder secureRandom(SecureRandom val) {
+      secureRandom = val;
+      return this;
+    }
+
+    public Builder size(int val) {
+      size = val;
+      return this;
+    }
+  }
+
+  private static final int REFILL_BATCH = 64;
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final AtomicReferenceArray<byte[]> slots;
+  private final AtomicInteger available = new AtomicInteger();
+  private final int lowWatermark;
+  private final int size;
+  private final SecureRandom random;
+  private final Thread refiller;
+
+  private volatile boolean closed;
+
+  private PooledByteArrayGenerator(Builder builder) {
+    if (builder.capacity <= 0) {
+      throw new IllegalArgumentException("capacity [" + builder.capacity + "] must be grate then 0");
+    }
+    if (builder.size <= 0) {
+      throw new IllegalArgumentException("size [" + builder.size + "] must be grate then 0");
+    }
+    slots = new AtomicReferenceArray<>(builder.capacity);
+    lowWatermark = (builder.capacity + 1) / 2;
+    size = builder.size;
+    SecureRandom entropy = (builder.secureRandom != null) ? builder.secureRandom : new SecureRandom();
+    random = builder.drbg ? drbg(entropy) : entropy;
+
+    refiller = new Thread(this::refill, "byte-array-generator-refill");
+    refiller.setDaemon(true);
+    refiller.start();
+  }
+
+  @Override public byte[] generate(int size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("size [" + size + "] must be grate then 0");
+    }
+    if (size == this.size && !closed) {
+      byte[] value = poll();
+      if (value == null || available.decrementAndGet() < lowWatermark) {
+        LockSupport.unpark(refiller);
+      }
+      if (value != null) {
+        return value;
+      }
+    }
+    byte[] buffer = new byte[size];
+    random.nextBytes(buffer);
+    return buffer;
+  }
+
+  /**
+   * Returns the number of arrays currently pooled.
+   */
+  public int available() {
+    return Math.max(available.get(), 0);
+  }
+
+  /**
+   * Stops the refill thread and zeroizes the pooled arrays. The generator keeps generating
+   * arrays synchronously.
+   */
+  @Override public void close() {
+    closed = true;
+    LockSupport.unpark(refiller);
+    for (int i = 0; i < slots.length(); i++) {
+      byte[] value = slots.getAndSet(i, null);
+      if (value != null) {
+        available.decrementAndGet();
+        Arrays.fill(value, (byte) 0x00);
+      }
+    }
+  }
+
+  private static SecureRandom drbg(SecureRandom entropy) {
+    byte[] nonce = new byte[16];
+    entropy.nextBytes(nonce);
+    return new SP800SecureRandomBuilder(entropy, true).buildHMAC(new HMac(new SHA256Digest()), nonce, false);
+  }
+
+  private byte[] poll() {
+    if (available.get() <= 0) {
+      return null;
+    }
+    int length = slots.length();
+    int start = (int) (Thread.currentThread().getId() % length);
+    for (int n = 0; n < length; n++) {
+      int index = (start + n) % length;
+      byte[] value = slots.get(index);
+      if (value != null && slots.compareAndSet(index, value, null)) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  private void refill() {
+    byte[] batch = new byte[REFILL_BATCH * size];
+    int offset = batch.length;
+    while (!closed) {
+      for (int i = 0; i < slots.length() && !closed; i++) {
+        if (slots.get(i) != null) {
+          continue;
+        }
+        if (offset == batch.length) {
+          random.nextBytes(batch);
+          offset = 0;
+        }
+        slots.set(i, Arrays.copyOfRange(batch, offset, offset + size));
+        Arrays.fill(batch, offset, offset + size, (byte) 0x00);
+        offset += size;
+        available.incrementAndGet();
+      }
+      LockSupport.park(this);
+    }
+    Arrays.fill(batch, (byte) 0x00);
+    close();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import org.nightcode.javacard.AbstractJcTest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AsyncApduChannelTest extends AbstractJcTest {
+
+  @Test public void testSerializedTransmit() throws Exception {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    List<Integer> transmitted = Collections.synchronizedList(new ArrayList<>());
+    ApduChannel channel = request -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      transmitted.add(request.getP1());
+      inFlight.decrementAndGet();
+      return new ResponseAPDU(new byte[] {(byte) request.getP1(), (byte) 0x90, 0x00});
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsyncApduChannel.ExecutorApduChannel asyncChannel = AsyncApduChannel.of(channel, executor);
+      List<CompletableFuture<ResponseAPDU>> responses = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        responses.add(asyncChannel.transmitAsync(new CommandAPDU(0x80, 0xCA, i, 0x00)).toCompletableFuture());
+      }
+      for (int i = 0; i < 100; i++) {
+        ResponseAPDU response = responses.get(i).get();
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertEquals(i, response.getData()[0]);
+        Assert.assertEquals(Integer.valueOf(i), transmitted.get(i));
+      }
+      Assert.assertEquals(1, maxInFlight.get());
+      Assert.assertEquals("done", asyncChannel.submit(() -> "done").toCompletableFuture().get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testTransmitFailure() throws Exception {
+    ApduChannel channel = request -> {
+      throw new IOException("card removed");
+    };
+    AsyncApduChannel asyncChannel = AsyncApduChannel.of(channel, Runnable::run);
+    try {
+      asyncChannel.transmitAsync(new CommandAPDU(0x80, 0xCA, 0x00, 0x00)).toCompletableFuture().get();
+      Assert.fail("must throw ExecutionException");
+    } catch (ExecutionException ex) {
+      Assert.assertTrue(ex.getCause() instanceof IOException);
+      Assert.assertEquals("card removed", ex.getCause().getMessage());
+    }
+  }
+}
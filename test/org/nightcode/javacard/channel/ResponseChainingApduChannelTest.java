@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel;
+
+import org.nightcode.javacard.AbstractJcTest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseChainingApduChannelTest extends AbstractJcTest {
+
+  @Test public void testGetResponse() throws Exception {
+    byte[] data = new byte[600];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    List<String> transmitted = new ArrayList<>();
+    int[] offset = {0};
+    ApduChannel card = request -> {
+      transmitted.add(HEX.fromByteArray(request.getBytes()));
+      int length = Math.min(200, data.length - offset[0]);
+      ByteBuffer response = ByteBuffer.allocate(length + 2);
+      response.put(data, offset[0], length);
+      offset[0] += length;
+      int remaining = data.length - offset[0];
+      response.put((byte) ((remaining > 0) ? 0x61 : 0x90)).put((byte) ((remaining > 0) ? 0xC8 : 0x00));
+      return new ResponseAPDU(response.array());
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    ResponseAPDU response = channel.transmit(new CommandAPDU(HEX.toByteArray("81F2400000")));
+    Assert.assertEquals(0x9000, response.getSW());
+    Assert.assertArrayEquals(data, response.getData());
+    Assert.assertEquals(Arrays.asList("81F2400000", "01C00000C8", "01C00000C8"), transmitted);
+  }
+
+  @Test public void testWrongLe() throws Exception {
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel card = request -> {
+      transmitted.add(HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray((request.getNe() == 4) ? "010203049000" : "6C04"));
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    ByteBuffer command = ByteBuffer.wrap(HEX.toByteArray("80CA00CF00"));
+    ByteBuffer response = ByteBuffer.allocate(300);
+    int length = channel.transmit(command, response);
+    Assert.assertEquals(6, length);
+    Assert.assertEquals(6, response.position());
+    Assert.assertEquals(command.limit(), command.position());
+    Assert.assertEquals("80CA00CF00", HEX.fromByteArray(command.array()));
+    Assert.assertEquals("010203049000", HEX.fromByteBuffer(response, 0, length));
+    Assert.assertEquals(Arrays.asList("80CA00CF00", "80CA00CF04"), transmitted);
+  }
+
+  @Test public void testWrongLeExtendedLength() throws Exception {
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel card = request -> {
+      transmitted.add(HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray((request.getNe() == 4) ? "010203049000" : "6C04"));
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    ResponseAPDU response = channel.transmit(new CommandAPDU(HEX.toByteArray("80CA00CF000000")));
+    Assert.assertEquals("01020304", HEX.fromByteArray(response.getData()));
+    Assert.assertEquals(Arrays.asList("80CA00CF000000", "80CA00CF000004"), transmitted);
+  }
+
+  @Test public void testWrongLeWithoutLe() throws Exception {
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel card = request -> {
+      transmitted.add(HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray("6C04"));
+    };
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    Assert.assertEquals(0x6C04, channel.transmit(new CommandAPDU(HEX.toByteArray("80F08007"))).getSW());
+    Assert.assertEquals(1, transmitted.size());
+  }
+
+  @Test public void testResponseExceedsBuffer() throws Exception {
+    byte[] data = new byte[1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    BufferedApduChannel card = new BufferedApduChannel() {
+      @Override public ResponseAPDU transmit(CommandAPDU request) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public int transmit(ByteBuffer command, ByteBuffer response) {
+        command.position(command.limit());
+        response.put(data).put((byte) 0x90).put((byte) 0x00);
+        return data.length + 2;
+      }
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    ResponseAPDU response = channel.transmit(new CommandAPDU(HEX.toByteArray("80CA00CF000400")));
+    Assert.assertEquals(0x9000, response.getSW());
+    Assert.assertArrayEquals(data, response.getData());
+  }
+
+  @Test public void testResponseTooShort() throws Exception {
+    BufferedApduChannel card = new BufferedApduChannel() {
+      @Override public ResponseAPDU transmit(CommandAPDU request) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override public int transmit(ByteBuffer command, ByteBuffer response) {
+        command.position(command.limit());
+        response.put((byte) 0x90);
+        return 1;
+      }
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    try {
+      channel.transmit(new CommandAPDU(HEX.toByteArray("80CA00CF00")));
+      Assert.fail("must throw IOException");
+    } catch (IOException ex) {
+      Assert.assertEquals("invalid response APDU length 1", ex.getMessage());
+    }
+  }
+
+  @Test public void testGetResponseUnbounded() throws Exception {
+    int[] count = {0};
+    ApduChannel card = request -> {
+      count[0]++;
+      byte[] response = new byte[258];
+      response[256] = 0x61;
+      return new ResponseAPDU(response);
+    };
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    try {
+      channel.transmit(new CommandAPDU(HEX.toByteArray("80CA00CF00")));
+      Assert.fail("must throw IOException");
+    } catch (IOException ex) {
+      Assert.assertEquals("chained response exceeds 65544 bytes", ex.getMessage());
+    }
+    Assert.assertEquals(256, count[0]);
+  }
+
+  @Test public void testGetResponseWithoutData() throws Exception {
+    ApduChannel card = request -> new ResponseAPDU(HEX.toByteArray("6110"));
+
+    ResponseChainingApduChannel channel = new ResponseChainingApduChannel(card);
+    try {
+      channel.transmit(new CommandAPDU(HEX.toByteArray("80CA00CF00")));
+      Assert.fail("must throw IOException");
+    } catch (IOException ex) {
+      Assert.assertEquals("GET RESPONSE returned no data", ex.getMessage());
+    }
+  }
+}
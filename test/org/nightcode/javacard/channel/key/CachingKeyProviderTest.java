@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.AbstractJcTest;
+import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.common.CardProperties;
+
+import java.security.Key;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachingKeyProviderTest extends AbstractJcTest {
+
+  private static final byte[] DIVERSIFICATION_DATA = HEX.toByteArray("00001122334455667788");
+
+  private final AtomicInteger derivations = new AtomicInteger();
+  private final AtomicLong now = new AtomicLong();
+
+  private final KeyProvider countingProvider = (context, usage) -> {
+    derivations.incrementAndGet();
+    return KeyProvider.DEFAULT.deriveSessionKey(context, usage);
+  };
+
+  @Test public void testReconnectSkipsDerivation() {
+    CachingKeyProvider keyProvider = CachingKeyProvider.builder().keyProvider(countingProvider).build();
+    KeySet keySet = new Scp02KeySet(keyProvider);
+    CardProperties cardProperties = createContext(request -> null).getCardProperties();
+    byte[] sequenceCounter = {0x00, 0x1C};
+
+    SessionKeys first = keySet.deriveSessionKeys(cardProperties, DIVERSIFICATION_DATA, (byte) 0x20, sequenceCounter);
+    Assert.assertEquals(2, derivations.get());
+    Assert.assertNotNull(first.getDesEde(KeyUsage.R_MAC));
+    Assert.assertEquals(3, derivations.get());
+
+    SessionKeys second = keySet.deriveSessionKeys(cardProperties, DIVERSIFICATION_DATA, (byte) 0x20, sequenceCounter);
+    for (KeyUsage usage : EnumSet.of(KeyUsage.ENC, KeyUsage.MAC, KeyUsage.R_MAC)) {
+      Assert.assertArrayEquals(first.getDesEde(usage).getEncoded(), second.getDesEde(usage).getEncoded());
+    }
+    Assert.assertEquals(3, derivations.get());
+    Assert.assertEquals(3, keyProvider.hitCount());
+    Assert.assertEquals(3, keyProvider.missCount());
+
+    keySet.deriveSessionKeys(cardProperties, DIVERSIFICATION_DATA, (byte) 0x20, new byte[] {0x00, 0x1D});
+    keySet.deriveSessionKeys(cardProperties, DIVERSIFICATION_DATA, (byte) 0x21, sequenceCounter);
+    keySet.deriveSessionKeys(cardProperties, HEX.toByteArray("00001122334455667789"), (byte) 0x20, sequenceCounter);
+    Assert.assertEquals(9, derivations.get());
+  }
+
+  @Test public void testLeastRecentlyUsedEviction() {
+    CachingKeyProvider keyProvider = CachingKeyProvider.builder().keyProvider(countingProvider).maximumSize(2).build();
+
+    keyProvider.deriveSessionKey(keyContext(0x01), KeyUsage.ENC);
+    keyProvider.deriveSessionKey(keyContext(0x02), KeyUsage.ENC);
+    keyProvider.deriveSessionKey(keyContext(0x01), KeyUsage.ENC);
+    keyProvider.deriveSessionKey(keyContext(0x03), KeyUsage.ENC);
+
+    Assert.assertEquals(2, keyProvider.size());
+    Assert.assertEquals(1, keyProvider.evictionCount());
+    keyProvider.deriveSessionKey(keyContext(0x01), KeyUsage.ENC);
+    Assert.assertEquals(3, derivations.get());
+    keyProvider.deriveSessionKey(keyContext(0x02), KeyUsage.ENC);
+    Assert.assertEquals(4, derivations.get());
+  }
+
+  @Test public void testTimeToLive() {
+    CachingKeyProvider keyProvider = CachingKeyProvider.builder()
+        .keyProvider(countingProvider)
+        .timeToLive(1, TimeUnit.SECONDS)
+        .ticker(now::get)
+        .build();
+
+    Map<KeyUsage, Key> keys = keyProvider.deriveSessionKeys(keyContext(0x01), EnumSet.allOf(KeyUsage.class));
+    Assert.assertEquals(KeyUsage.values().length, keys.size());
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+    keyProvider.deriveSessionKeys(keyContext(0x01), EnumSet.allOf(KeyUsage.class));
+    Assert.assertEquals(KeyUsage.values().length, derivations.get());
+
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    keyProvider.deriveSessionKey(keyContext(0x01), KeyUsage.MAC);
+    Assert.assertEquals(KeyUsage.values().length + 1, derivations.get());
+
+    keyProvider.cleanUp();
+    Assert.assertEquals(1, keyProvider.size());
+    Assert.assertEquals(KeyUsage.values().length, keyProvider.evictionCount());
+  }
+
+  @Test public void testWithoutDiversificationData() {
+    CachingKeyProvider keyProvider = CachingKeyProvider.builder().keyProvider(countingProvider).build();
+    CardChannelContext context = createContext(request -> null);
+    KeySet keySet = new Scp02KeySet(keyProvider);
+
+    keySet.deriveSessionKeys(context.getCardProperties(), new byte[] {0x00, 0x1C});
+    keySet.deriveSessionKeys(context.getCardProperties(), new byte[] {0x00, 0x1C});
+
+    Assert.assertEquals(4, derivations.get());
+    Assert.assertEquals(0, keyProvider.size());
+  }
+
+  private static KeyContext keyContext(int sequenceCounter) {
+    return KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .keyDiversificationData(DIVERSIFICATION_DATA)
+        .keyVersionNumber((byte) 0x20)
+        .sequenceCounter(new byte[] {0x00, (byte) sequenceCounter})
+        .build();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.AbstractJcTest;
+import org.nightcode.javacard.util.JcCryptoUtils;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.EnumSet;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DiversifiedKeyProviderTest extends AbstractJcTest {
+
+  private static final byte[] MASTER_KEY = HEX.toByteArray("404142434445464748494A4B4C4D4E4F");
+  private static final byte[] KEY_DIVERSIFICATION_DATA = HEX.toByteArray("00010203040506070809");
+  private static final byte[] SEQUENCE_COUNTER = HEX.toByteArray("002A");
+
+  @Test public void testEmvCps11() throws GeneralSecurityException {
+    DiversifiedKeyProvider keyProvider = DiversifiedKeyProvider.builder()
+        .masterKey(MASTER_KEY)
+        .diversification(KeyDiversification.EMV_CPS_11)
+        .build();
+
+    Map<KeyUsage, Key> keys = keyProvider.deriveSessionKeys(keyContext(KEY_DIVERSIFICATION_DATA)
+        , EnumSet.allOf(KeyUsage.class));
+
+    assertSessionKey("040506070809F001040506070809" + "0F01", KeyUsage.ENC, keys.get(KeyUsage.ENC));
+    assertSessionKey("040506070809F002040506070809" + "0F02", KeyUsage.MAC, keys.get(KeyUsage.MAC));
+    assertSessionKey("040506070809F003040506070809" + "0F03", KeyUsage.DEK, keys.get(KeyUsage.DEK));
+    assertSessionKey("040506070809F002040506070809" + "0F02", KeyUsage.R_MAC, keys.get(KeyUsage.R_MAC));
+  }
+
+  @Test public void testVisa2() throws GeneralSecurityException {
+    DiversifiedKeyProvider keyProvider = DiversifiedKeyProvider.builder()
+        .masterKey(MASTER_KEY)
+        .diversification(KeyDiversification.VISA2)
+        .build();
+
+    Key enc = keyProvider.deriveSessionKey(keyContext(KEY_DIVERSIFICATION_DATA), KeyUsage.ENC);
+    Key dek = keyProvider.deriveSessionKey(keyContext(KEY_DIVERSIFICATION_DATA), KeyUsage.DEK);
+
+    assertSessionKey("000104050607F001000104050607" + "0F01", KeyUsage.ENC, enc);
+    assertSessionKey("000104050607F003000104050607" + "0F03", KeyUsage.DEK, dek);
+    Assert.assertEquals(1, keyProvider.cacheSize());
+  }
+
+  @Test public void testBoundedCache() {
+    DiversifiedKeyProvider keyProvider = DiversifiedKeyProvider.builder().masterKey(MASTER_KEY).cacheSize(2).build();
+
+    for (int i = 0; i < 5; i++) {
+      byte[] keyDiversificationData = KEY_DIVERSIFICATION_DATA.clone();
+      keyDiversificationData[9] = (byte) i;
+      keyProvider.deriveSessionKey(keyContext(keyDiversificationData), KeyUsage.MAC);
+    }
+    Assert.assertEquals(2, keyProvider.cacheSize());
+  }
+
+  @Test public void testKeyDiversificationDataRequired() {
+    DiversifiedKeyProvider keyProvider = DiversifiedKeyProvider.builder().masterKey(MASTER_KEY).build();
+    KeyContext context = KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .sequenceCounter(SEQUENCE_COUNTER)
+        .build();
+    try {
+      keyProvider.deriveSessionKey(context, KeyUsage.ENC);
+      Assert.fail("must throw IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals("10 byte key diversification data is required", ex.getMessage());
+    }
+  }
+
+  private static void assertSessionKey(String diversificationData, KeyUsage usage, Key actual)
+      throws GeneralSecurityException {
+    Cipher ecb = Cipher.getInstance("DESede/ECB/NoPadding");
+    ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(JcCryptoUtils.toKey24(MASTER_KEY), "DESede"));
+    byte[] staticKey = ecb.doFinal(HEX.toByteArray(diversificationData));
+
+    byte[] derivationData = new byte[16];
+    System.arraycopy(usage.keyConstant(), 0, derivationData, 0, 2);
+    System.arraycopy(SEQUENCE_COUNTER, 0, derivationData, 2, 2);
+    Cipher cbc = Cipher.getInstance(JcCryptoUtils.DES_EDE_CBC_NO_PADDING);
+    cbc.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(JcCryptoUtils.toKey24(staticKey), "DESede")
+        , JcCryptoUtils.ZERO_IV_PARAMETER_SPEC);
+    byte[] sessionKey = JcCryptoUtils.toKey24(cbc.doFinal(derivationData));
+
+    Assert.assertEquals(HEX.fromByteArray(sessionKey), HEX.fromByteArray(actual.getEncoded()));
+  }
+
+  private static KeyContext keyContext(byte[] keyDiversificationData) {
+    return KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .keyDiversificationData(keyDiversificationData)
+        .sequenceCounter(SEQUENCE_COUNTER)
+        .build();
+  }
+}
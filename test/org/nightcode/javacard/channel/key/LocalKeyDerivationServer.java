@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.channel.key.KeyServiceProtocol.Request;
+import org.nightcode.javacard.channel.key.KeyServiceProtocol.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in key derivation service that answers every request frame with one response frame.
+ */
+final class LocalKeyDerivationServer implements Closeable {
+
+  private final KeyProvider keyProvider;
+  private final ServerSocket serverSocket;
+  private final AtomicInteger frameCount = new AtomicInteger();
+
+  LocalKeyDerivationServer(KeyProvider keyProvider) throws IOException {
+    this.keyProvider = keyProvider;
+    serverSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "local-key-derivation-server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  InetSocketAddress address() {
+    return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+  }
+
+  int frameCount() {
+    return frameCount.get();
+  }
+
+  @Override public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  private void accept() {
+    try {
+      while (!serverSocket.isClosed()) {
+        Socket socket = serverSocket.accept();
+        Thread connection = new Thread(() -> serve(socket), "local-key-derivation-connection");
+        connection.setDaemon(true);
+        connection.start();
+      }
+    } catch (IOException ex) {
+      // closed
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      while (true) {
+        List<Request> requests = KeyServiceProtocol.readRequests(in);
+        frameCount.incrementAndGet();
+        List<Response> responses = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+          try {
+            byte[] key = keyProvider.deriveSessionKey(request.context, request.usage).getEncoded();
+            responses.add(new Response(request.id, KeyServiceProtocol.STATUS_OK, key));
+          } catch (RuntimeException ex) {
+            responses.add(Response.error(request.id, String.valueOf(ex.getMessage())));
+          }
+        }
+        KeyServiceProtocol.writeResponses(out, responses);
+      }
+    } catch (IOException ex) {
+      // connection closed
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.AbstractJcTest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.util.EnumSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MappedKeyProviderTest extends AbstractJcTest {
+
+  private static final byte[] DEFAULT_KEY = HEX.toByteArray("404142434445464748494A4B4C4D4E4F");
+  private static final byte[] SEQUENCE_COUNTER = HEX.toByteArray("002A");
+
+  @Test public void testDeriveSessionKeys() throws IOException {
+    Path path = Files.createTempFile("keys", ".jcks");
+    try {
+      try (MappedKeyStore.Writer writer = MappedKeyStore.create(path, 10, 100)) {
+        for (int i = 0; i < 100; i++) {
+          byte[] key = DEFAULT_KEY.clone();
+          key[0] = (byte) i;
+          writer.put(cardId(i), (byte) 0x20, key, key, key);
+        }
+        writer.put(cardId(42), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      }
+      MappedKeyStore keyStore = MappedKeyStore.open(path);
+      Assert.assertEquals(100, keyStore.size());
+      Assert.assertEquals(10, keyStore.idLength());
+
+      MappedKeyProvider keyProvider = new MappedKeyProvider(keyStore);
+      Map<KeyUsage, Key> keys = keyProvider.deriveSessionKeys(keyContext(cardId(42), (byte) 0x20)
+          , EnumSet.allOf(KeyUsage.class));
+      Map<KeyUsage, Key> expected = KeyProvider.DEFAULT.deriveSessionKeys(keyContext(null, (byte) 0x00)
+          , EnumSet.allOf(KeyUsage.class));
+      for (KeyUsage usage : KeyUsage.values()) {
+        Assert.assertArrayEquals(expected.get(usage).getEncoded(), keys.get(usage).getEncoded());
+      }
+
+      Key other = keyProvider.deriveSessionKey(keyContext(cardId(7), (byte) 0x00), KeyUsage.ENC);
+      Assert.assertFalse(HEX.fromByteArray(expected.get(KeyUsage.ENC).getEncoded())
+          .equals(HEX.fromByteArray(other.getEncoded())));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test public void testUnknownCard() throws IOException {
+    Path path = Files.createTempFile("keys", ".jcks");
+    try {
+      try (MappedKeyStore.Writer writer = MappedKeyStore.create(path, 10, 4)) {
+        writer.put(cardId(1), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      }
+      MappedKeyProvider keyProvider = new MappedKeyProvider(MappedKeyStore.open(path));
+      try {
+        keyProvider.deriveSessionKey(keyContext(cardId(2), (byte) 0x00), KeyUsage.ENC);
+        Assert.fail("must throw IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        Assert.assertEquals("unknown card 00010203040506070802", ex.getMessage());
+      }
+      try {
+        keyProvider.deriveSessionKey(keyContext(cardId(1), (byte) 0x21), KeyUsage.ENC);
+        Assert.fail("must throw IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        Assert.assertEquals("key version number mismatch: card 21, store 20", ex.getMessage());
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test public void testStoreFull() throws IOException {
+    Path path = Files.createTempFile("keys", ".jcks");
+    try (MappedKeyStore.Writer writer = MappedKeyStore.create(path, 10, 2)) {
+      writer.put(cardId(1), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      writer.put(cardId(2), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      writer.put(cardId(3), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      Assert.fail("must throw IllegalStateException");
+    } catch (IllegalStateException ex) {
+      Assert.assertEquals("key store is full", ex.getMessage());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test public void testInvalidKeyLength() throws IOException {
+    Path path = Files.createTempFile("keys", ".jcks");
+    try {
+      try (MappedKeyStore.Writer writer = MappedKeyStore.create(path, 10, 1)) {
+        try {
+          writer.put(cardId(1), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, new byte[8]);
+          Assert.fail("must throw IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+          Assert.assertEquals("static key length must be 16", ex.getMessage());
+        }
+        writer.put(cardId(2), (byte) 0x20, DEFAULT_KEY, DEFAULT_KEY, DEFAULT_KEY);
+      }
+      MappedKeyProvider keyProvider = new MappedKeyProvider(MappedKeyStore.open(path));
+      try {
+        keyProvider.deriveSessionKey(keyContext(cardId(1), (byte) 0x00), KeyUsage.ENC);
+        Assert.fail("must throw IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        Assert.assertEquals("unknown card 00010203040506070801", ex.getMessage());
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  private static byte[] cardId(int i) {
+    byte[] cardId = HEX.toByteArray("00010203040506070800");
+    cardId[9] = (byte) i;
+    return cardId;
+  }
+
+  private static KeyContext keyContext(byte[] cardId, byte keyVersionNumber) {
+    return KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .keyDiversificationData(cardId)
+        .keyVersionNumber(keyVersionNumber)
+        .sequenceCounter(SEQUENCE_COUNTER)
+        .build();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.AbstractJcTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RemoteKeyProviderTest extends AbstractJcTest {
+
+  @Test public void testCoalescedDerivation() throws Exception {
+    int sessions = 32;
+    try (LocalKeyDerivationServer server = new LocalKeyDerivationServer(KeyProvider.DEFAULT);
+         RemoteKeyProvider keyProvider = RemoteKeyProvider.builder()
+             .address(server.address())
+             .batchWindow(20, TimeUnit.MILLISECONDS)
+             .build()) {
+      ExecutorService executor = Executors.newFixedThreadPool(sessions);
+      try {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Map<KeyUsage, Key>>> futures = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+          KeyContext context = keyContext(i);
+          futures.add(executor.submit(() -> {
+            start.await();
+            return keyProvider.deriveSessionKeys(context, EnumSet.allOf(KeyUsage.class));
+          }));
+        }
+        start.countDown();
+
+        for (int i = 0; i < sessions; i++) {
+          Map<KeyUsage, Key> keys = futures.get(i).get(10, TimeUnit.SECONDS);
+          for (KeyUsage usage : KeyUsage.values()) {
+            Assert.assertArrayEquals(KeyProvider.DEFAULT.deriveSessionKey(keyContext(i), usage).getEncoded()
+                , keys.get(usage).getEncoded());
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      Assert.assertEquals(keyProvider.frameCount(), server.frameCount());
+      Assert.assertTrue("frames: " + server.frameCount(), server.frameCount() < sessions);
+    }
+  }
+
+  @Test public void testDerivationError() throws Exception {
+    KeyProvider failing = (context, usage) -> {
+      if (usage == KeyUsage.DEK) {
+        throw new IllegalArgumentException("DEK is not available");
+      }
+      return KeyProvider.DEFAULT.deriveSessionKey(context, usage);
+    };
+    try (LocalKeyDerivationServer server = new LocalKeyDerivationServer(failing);
+         RemoteKeyProvider keyProvider = RemoteKeyProvider.builder().address(server.address()).build()) {
+      Assert.assertNotNull(keyProvider.deriveSessionKey(keyContext(1), KeyUsage.MAC));
+      try {
+        keyProvider.deriveSessionKey(keyContext(1), KeyUsage.DEK);
+        Assert.fail("must throw IllegalStateException");
+      } catch (IllegalStateException ex) {
+        Assert.assertEquals("DEK is not available", ex.getMessage());
+      }
+    }
+  }
+
+  @Test public void testTimeoutRemovesPendingRequest() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    KeyProvider blocking = (context, usage) -> {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return KeyProvider.DEFAULT.deriveSessionKey(context, usage);
+    };
+    try (LocalKeyDerivationServer server = new LocalKeyDerivationServer(blocking);
+         RemoteKeyProvider keyProvider = RemoteKeyProvider.builder()
+             .address(server.address())
+             .timeout(50, TimeUnit.MILLISECONDS)
+             .build()) {
+      try {
+        keyProvider.deriveSessionKeys(keyContext(1), EnumSet.of(KeyUsage.ENC, KeyUsage.MAC));
+        Assert.fail("must throw IllegalStateException");
+      } catch (IllegalStateException ex) {
+        Assert.assertEquals("session key derivation timed out", ex.getMessage());
+      }
+      Assert.assertEquals(0, keyProvider.pendingCount());
+      release.countDown();
+    }
+  }
+
+  @Test public void testFieldTooLong() throws Exception {
+    try (LocalKeyDerivationServer server = new LocalKeyDerivationServer(KeyProvider.DEFAULT);
+         RemoteKeyProvider keyProvider = RemoteKeyProvider.builder().address(server.address()).build()) {
+      KeyContext context = KeyContext.builder()
+          .derivationType(DerivationType.SCP_02)
+          .keyDiversificationData(new byte[256])
+          .sequenceCounter(new byte[] {0x00, 0x01})
+          .build();
+      try {
+        keyProvider.deriveSessionKey(context, KeyUsage.MAC);
+        Assert.fail("must throw IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        Assert.assertEquals("key diversification data length [256] must not exceed 255", ex.getMessage());
+      }
+      Assert.assertEquals(0, keyProvider.pendingCount());
+      Assert.assertNotNull(keyProvider.deriveSessionKey(keyContext(1), KeyUsage.MAC));
+    }
+  }
+
+  @Test public void testMalformedRequestFrame() throws Exception {
+    byte[] frame = HEX.toByteArray("0000000B" + "0001" + "00000001" + "00" + "07" + "00" + "00" + "00");
+    try {
+      KeyServiceProtocol.readRequests(new DataInputStream(new ByteArrayInputStream(frame)));
+      Assert.fail("must throw IOException");
+    } catch (IOException ex) {
+      Assert.assertEquals("invalid key usage 7", ex.getMessage());
+    }
+  }
+
+  private static KeyContext keyContext(int sequenceCounter) {
+    return KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .keyDiversificationData(HEX.toByteArray("00001122334455667788"))
+        .sequenceCounter(new byte[] {0x00, (byte) sequenceCounter})
+        .build();
+  }
+}
@@ -21,6 +21,17 @@ import org.nightcode.javacard.util.JcCryptoUtils;
 
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -99,4 +110,67 @@ public class Scp02KeySetTest extends AbstractJcTest {
     Assert.assertEquals("1959DCECE0CC551E1A824096FEC209451959DCECE0CC551E", HEX.fromByteArray(dek.getEncoded()));
     Assert.assertEquals("CF98C95DF537D8AC05E16B8BEBC50DABCF98C95DF537D8AC", HEX.fromByteArray(rMac.getEncoded()));
   }
+
+  @Test public void testDefaultProviderBulkDerivation() {
+    CardChannelContext context = createContext(request -> null);
+    KeyContext keyContext = KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .cardProperties(context.getCardProperties())
+        .sequenceCounter(new byte[] {0x00, 0x6D})
+        .build();
+
+    Map<KeyUsage, Key> keys = KeyProvider.DEFAULT.deriveSessionKeys(keyContext, EnumSet.allOf(KeyUsage.class));
+
+    Assert.assertEquals(KeyUsage.values().length, keys.size());
+    for (KeyUsage usage : KeyUsage.values()) {
+      Assert.assertEquals(HEX.fromByteArray(KeyProvider.DEFAULT.deriveSessionKey(keyContext, usage).getEncoded())
+          , HEX.fromByteArray(keys.get(usage).getEncoded()));
+    }
+  }
+
+  @Test public void testLazySessionKeys() throws Exception {
+    CardChannelContext context = createContext(request -> null);
+    Map<KeyUsage, AtomicInteger> derivations = new EnumMap<>(KeyUsage.class);
+    for (KeyUsage usage : KeyUsage.values()) {
+      derivations.put(usage, new AtomicInteger());
+    }
+    TestKeyProvider delegate = new TestKeyProvider();
+    KeyProvider countingProvider = (keyContext, usage) -> {
+      derivations.get(usage).incrementAndGet();
+      return delegate.deriveSessionKey(keyContext, usage);
+    };
+
+    SessionKeys sessionKeys = new Scp02KeySet(countingProvider)
+        .deriveSessionKeys(context.getCardProperties(), new byte[] {0x00, 0x1C});
+
+    Assert.assertEquals(1, derivations.get(KeyUsage.ENC).get());
+    Assert.assertEquals(1, derivations.get(KeyUsage.MAC).get());
+    Assert.assertEquals(0, derivations.get(KeyUsage.DEK).get());
+    Assert.assertEquals(0, derivations.get(KeyUsage.R_MAC).get());
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<Key>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return sessionKeys.getDesEde(KeyUsage.R_MAC);
+        }));
+      }
+      start.countDown();
+      for (Future<Key> future : futures) {
+        Assert.assertSame(futures.get(0).get(5, TimeUnit.SECONDS), future.get(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(1, derivations.get(KeyUsage.R_MAC).get());
+    Assert.assertEquals(0, derivations.get(KeyUsage.DEK).get());
+    Assert.assertEquals("CF98C95DF537D8AC05E16B8BEBC50DABCF98C95DF537D8AC"
+        , HEX.fromByteArray(sessionKeys.getDesEde(KeyUsage.R_MAC).getEncoded()));
+    Assert.assertEquals("1959DCECE0CC551E", HEX.fromByteArray(sessionKeys.getDes(KeyUsage.DEK).getEncoded()));
+    Assert.assertEquals(1, derivations.get(KeyUsage.DEK).get());
+  }
 }
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.channel.key;
+
+import org.nightcode.javacard.AbstractJcTest;
+
+import java.security.Key;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VersionedKeyProviderTest extends AbstractJcTest {
+
+  private static final byte[] SEQUENCE_COUNTER = HEX.toByteArray("002A");
+
+  @Test public void testRotation() {
+    VersionedKeyProvider keyProvider = new VersionedKeyProvider();
+    Assert.assertEquals(-1, keyProvider.current());
+
+    keyProvider.publish((byte) 0x20, keyProvider((byte) 0x20));
+    Assert.assertEquals(0x20, keyProvider.current());
+    Assert.assertEquals("20", derive(keyProvider, (byte) 0x00));
+    Assert.assertEquals("20", derive(keyProvider, (byte) 0x20));
+
+    keyProvider.publish((byte) 0xA1, keyProvider((byte) 0xA1));
+    Assert.assertEquals("20", derive(keyProvider, (byte) 0x00));
+    Assert.assertEquals("A1", derive(keyProvider, (byte) 0xA1));
+
+    keyProvider.setCurrent((byte) 0xA1);
+    Assert.assertEquals("A1", derive(keyProvider, (byte) 0x00));
+    Map<KeyUsage, Key> keys = keyProvider.deriveSessionKeys(keyContext((byte) 0x20), EnumSet.allOf(KeyUsage.class));
+    Assert.assertEquals(KeyUsage.values().length, keys.size());
+    Assert.assertEquals("20", HEX.fromByteArray(keys.get(KeyUsage.DEK).getEncoded()));
+
+    keyProvider.retire((byte) 0x20);
+    try {
+      derive(keyProvider, (byte) 0x20);
+      Assert.fail("must throw IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals("unknown key version number 20", ex.getMessage());
+    }
+  }
+
+  @Test public void testRetireCurrent() {
+    VersionedKeyProvider keyProvider = new VersionedKeyProvider();
+    keyProvider.publish((byte) 0x01, keyProvider((byte) 0x01));
+    try {
+      keyProvider.retire((byte) 0x01);
+      Assert.fail("must throw IllegalStateException");
+    } catch (IllegalStateException ex) {
+      Assert.assertEquals("key version number 01 is current", ex.getMessage());
+    }
+  }
+
+  @Test public void testNoVersion() {
+    try {
+      derive(new VersionedKeyProvider(), (byte) 0x00);
+      Assert.fail("must throw IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals("unknown key version number 00", ex.getMessage());
+    }
+  }
+
+  @Test public void testDeriveSessionKeysAsync() throws Exception {
+    CompletableFuture<Map<KeyUsage, Key>> pending = new CompletableFuture<>();
+    AsyncKeyProvider asyncProvider = new AsyncKeyProvider() {
+      @Override public Key deriveSessionKey(KeyContext context, KeyUsage usage) {
+        throw new AssertionError("must not derive synchronously");
+      }
+
+      @Override public CompletionStage<Map<KeyUsage, Key>> deriveSessionKeysAsync(KeyContext context,
+          Set<KeyUsage> usages) {
+        return pending;
+      }
+    };
+    VersionedKeyProvider keyProvider = new VersionedKeyProvider();
+    keyProvider.publish((byte) 0x20, asyncProvider);
+    keyProvider.publish((byte) 0x21, keyProvider((byte) 0x21));
+
+    CompletableFuture<Map<KeyUsage, Key>> keys = keyProvider
+        .deriveSessionKeysAsync(keyContext((byte) 0x00), EnumSet.of(KeyUsage.ENC)).toCompletableFuture();
+    Assert.assertFalse(keys.isDone());
+    pending.complete(Collections.singletonMap(KeyUsage.ENC, new SecretKeySpec(new byte[] {0x20}, "DESede")));
+    Assert.assertEquals("20", HEX.fromByteArray(keys.get().get(KeyUsage.ENC).getEncoded()));
+
+    keys = keyProvider.deriveSessionKeysAsync(keyContext((byte) 0x21), EnumSet.of(KeyUsage.ENC)).toCompletableFuture();
+    Assert.assertEquals("21", HEX.fromByteArray(keys.get().get(KeyUsage.ENC).getEncoded()));
+
+    keys = keyProvider.deriveSessionKeysAsync(keyContext((byte) 0x22), EnumSet.of(KeyUsage.ENC)).toCompletableFuture();
+    try {
+      keys.get();
+      Assert.fail("must throw ExecutionException");
+    } catch (ExecutionException ex) {
+      Assert.assertEquals("unknown key version number 22", ex.getCause().getMessage());
+    }
+  }
+
+  private static String derive(KeyProvider keyProvider, byte keyVersionNumber) {
+    return HEX.fromByteArray(keyProvider.deriveSessionKey(keyContext(keyVersionNumber), KeyUsage.ENC).getEncoded());
+  }
+
+  private static KeyProvider keyProvider(byte keyVersionNumber) {
+    return (context, usage) -> new SecretKeySpec(new byte[] {keyVersionNumber}, "DESede");
+  }
+
+  private static KeyContext keyContext(byte keyVersionNumber) {
+    return KeyContext.builder()
+        .derivationType(DerivationType.SCP_02)
+        .keyVersionNumber(keyVersionNumber)
+        .sequenceCounter(SEQUENCE_COUNTER)
+        .build();
+  }
+}
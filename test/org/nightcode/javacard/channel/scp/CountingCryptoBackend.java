@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.nightcode.javacard.channel.scp;
+
+import org.nightcode.javacard.crypto.CipherEngine;
+import org.nightcode.javacard.crypto.CryptoBackend;
+import org.nightcode.javacard.crypto.TableDesCryptoBackend;
+import org.nightcode.javacard.util.Hexs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the keys of the engines it creates and counts the engines not yet released.
+ */
+final class CountingCryptoBackend implements CryptoBackend {
+
+  final AtomicInteger live = new AtomicInteger();
+  final List<String> keyings = Collections.synchronizedList(new ArrayList<>());
+
+  private final CryptoBackend delegate = new TableDesCryptoBackend();
+
+  @Override public String name() {
+    return "counting";
+  }
+
+  @Override public CipherEngine des(byte[] key, int offset) {
+    keyings.add("DES " + Hexs.hex().fromByteArray(Arrays.copyOfRange(key, offset, offset + 8)));
+    return count(delegate.des(key, offset));
+  }
+
+  @Override public CipherEngine desEde(byte[] key) {
+    keyings.add("DESede " + Hexs.hex().fromByteArray(key));
+    return count(delegate.desEde(key));
+  }
+
+  private CipherEngine count(CipherEngine engine) {
+    live.incrementAndGet();
+    return new CipherEngine() {
+      @Override public void encrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        engine.encrypt(in, inOffset, length, out, outOffset);
+      }
+
+      @Override public void decrypt(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        engine.decrypt(in, inOffset, length, out, outOffset);
+      }
+
+      @Override public void encryptCbc(byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        engine.encryptCbc(iv, in, inOffset, length, out, outOffset);
+      }
+
+      @Override public void cbcChain(byte[] chain, byte[] in, int inOffset, int length) {
+        engine.cbcChain(chain, in, inOffset, length);
+      }
+
+      @Override public void release() {
+        live.decrementAndGet();
+      }
+    };
+  }
+}
@@ -16,12 +16,26 @@ package org.nightcode.javacard.channel.scp;
 
 import org.nightcode.javacard.AbstractJcTest;
 import org.nightcode.javacard.channel.ApduChannel;
+import org.nightcode.javacard.channel.BufferedApduChannel;
 import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.channel.SwPolicy;
+import org.nightcode.javacard.channel.key.KeyProvider;
 import org.nightcode.javacard.channel.key.KeySet;
+import org.nightcode.javacard.channel.key.KeyUsage;
 import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.common.CardProperties;
 import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.crypto.BatchMacEngine;
+import org.nightcode.javacard.util.MacAlgorithm3;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
@@ -45,7 +59,31 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     context.setSessionKeys(sessionKeys);
 
     ApduChannel scpChannel
-        = new Scp02ApduChannel(context, EnumSet.of(SecurityLevel.C_MAC), HEX.toByteArray("FB3A120021F7363C"));
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC), HEX.toByteArray("FB3A120021F7363C"));
+    scpChannel.transmit(new CommandAPDU(HEX.toByteArray("80F28002024F00")));
+  }
+
+  @Test public void testTransmitCmacBatchMacEngine() throws Exception {
+    ApduChannel channel = request -> {
+      Assert.assertEquals("84F280020A4F00517FECC3E4B00186", HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray("E3114F08A0000000030000009F700101C5019E9000"));
+    };
+
+    CardChannelContext context = CardChannelContext.builder()
+        .channel(channel)
+        .cardProperties(CardProperties.builder().keyVersionNumber((byte) 0xFF).build())
+        .keyProvider(KeyProvider.DEFAULT)
+        .batchMacEngine(new BatchMacEngine())
+        .maxLength(0xFF)
+        .build();
+
+    byte[] sequenceCounter =  HEX.toByteArray("0004");
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    context.setSessionKeys(sessionKeys);
+
+    ApduChannel scpChannel
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC), HEX.toByteArray("FB3A120021F7363C"));
     scpChannel.transmit(new CommandAPDU(HEX.toByteArray("80F28002024F00")));
   }
 
@@ -62,11 +100,72 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
     context.setSessionKeys(sessionKeys);
 
-    ApduChannel scpChannel = new Scp02ApduChannel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION)
+    ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION)
         , HEX.toByteArray("AD88229B0C0773C3"));
     scpChannel.transmit(new CommandAPDU(HEX.toByteArray("80F28002024F00")));
   }
 
+  @Test public void testCryptoContextKeyedOncePerSession() throws Exception {
+    byte[] icv = HEX.toByteArray("AD88229B0C0773C3");
+    List<CommandAPDU> commands = new ArrayList<>();
+    commands.add(new CommandAPDU(HEX.toByteArray("80F28002024F00")));
+    for (int i = 0; i < 4; i++) {
+      commands.add(new CommandAPDU(0x80, 0xE2, 0x00, i, HEX.toByteArray("0102030405060708090A")));
+    }
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel card = request -> {
+      transmitted.add(HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray("9000"));
+    };
+    CountingCryptoBackend backend = new CountingCryptoBackend();
+    CardChannelContext context = CardChannelContext.builder()
+        .channel(card)
+        .cardProperties(CardProperties.builder().keyVersionNumber((byte) 0xFF).build())
+        .cryptoBackend(backend)
+        .keyProvider(KeyProvider.DEFAULT)
+        .maxLength(0xFF)
+        .build();
+    context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+        .deriveSessionKeys(context.getCardProperties(), HEX.toByteArray("0005")));
+    SessionKeys sessionKeys = context.getSessionKeys();
+
+    Scp02CryptoContext cryptoContext = new Scp02CryptoContext(backend, null, sessionKeys);
+    Scp02ApduChannel scpChannel = new Scp02ApduChannel(context, cryptoContext
+        , EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION), icv);
+    List<String> sessionKeyings = new ArrayList<>(backend.keyings);
+    for (CommandAPDU command : commands) {
+      Assert.assertEquals(0x9000, scpChannel.transmit(command).getSW());
+    }
+    Assert.assertEquals(sessionKeyings, backend.keyings);
+    cryptoContext.encryptData(new byte[16]);
+    cryptoContext.encryptData(new byte[16]);
+
+    String enc = "DESede " + HEX.fromByteArray(sessionKeys.getDesEde(KeyUsage.ENC).getEncoded());
+    String dek = "DESede " + HEX.fromByteArray(sessionKeys.getDesEde(KeyUsage.DEK).getEncoded());
+    String icvKey = "DES " + HEX.fromByteArray(sessionKeys.getDesEde(KeyUsage.MAC).getEncoded(), 0, 8);
+    Assert.assertEquals(1, Collections.frequency(backend.keyings, enc));
+    Assert.assertEquals(1, Collections.frequency(backend.keyings, dek));
+    Assert.assertEquals(sessionKeyings.size() + 1, backend.keyings.size());
+    Assert.assertTrue(sessionKeyings.contains(icvKey));
+
+    List<String> reference = new ArrayList<>();
+    CardChannelContext referenceContext = createContext(request -> {
+      reference.add(HEX.fromByteArray(request.getBytes()));
+      return new ResponseAPDU(HEX.toByteArray("9000"));
+    });
+    referenceContext.setSessionKeys(sessionKeys);
+    Scp02ApduChannel referenceChannel
+        = scp02Channel(referenceContext, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION), icv);
+    for (CommandAPDU command : commands) {
+      referenceChannel.transmit(command);
+    }
+    Assert.assertEquals("84F280021082E63A0FE0BFAD7CE78AA5C6E038A340", transmitted.get(0));
+    Assert.assertEquals(reference, transmitted);
+
+    cryptoContext.release();
+    Assert.assertEquals(0, backend.live.get());
+  }
+
   @Test public void testTransmitCmacZeroLc() throws Exception {
     ApduChannel channel = request -> {
       Assert.assertEquals("84DD0000088F37D75E12BA3CFB", HEX.fromByteArray(request.getBytes()));
@@ -81,7 +180,7 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     context.setSessionKeys(sessionKeys);
 
     ApduChannel scpChannel
-        = new Scp02ApduChannel(context, EnumSet.of(SecurityLevel.C_MAC), HEX.toByteArray("1FFFFA8673AC4B36"));
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC), HEX.toByteArray("1FFFFA8673AC4B36"));
     scpChannel.transmit(new CommandAPDU(HEX.toByteArray("80DD0000")));
   }
 
@@ -98,7 +197,7 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
     context.setSessionKeys(sessionKeys);
 
-    Scp02ApduChannel scpChannel = new Scp02ApduChannel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC)
+    Scp02ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC)
         , HEX.toByteArray("D548435F7981B2B4"));
     scpChannel.setRicv(HEX.toByteArray("D548435F7981B2B4"));
     
@@ -119,7 +218,7 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
     context.setSessionKeys(sessionKeys);
 
-    Scp02ApduChannel scpChannel = new Scp02ApduChannel(context
+    Scp02ApduChannel scpChannel = scp02Channel(context
         , EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION, SecurityLevel.R_MAC)
         , HEX.toByteArray("94373CCB68A4C173"));
     scpChannel.setRicv(HEX.toByteArray("94373CCB68A4C173"));
@@ -127,4 +226,359 @@ public class Scp02ApduChannelTest extends AbstractJcTest {
     ResponseAPDU response = scpChannel.transmit(new CommandAPDU(HEX.toByteArray("80F240000B4F09F00000008800010101")));
     Assert.assertEquals("07", HEX.fromByteArray(response.getData()));
   }
+
+  @Test public void testWrapDirectBuffer() throws Exception {
+    CardChannelContext context = createContext(request -> null);
+
+    byte[] sequenceCounter =  HEX.toByteArray("0005");
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    context.setSessionKeys(sessionKeys);
+
+    Scp02ApduChannel scpChannel = scp02Channel(context
+        , EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION), HEX.toByteArray("AD88229B0C0773C3"));
+
+    byte[] command = HEX.toByteArray("80F28002024F00");
+    ByteBuffer buffer = ByteBuffer.allocateDirect(3 + Scp02Codec.wrappedLength(command.length));
+    buffer.position(3);
+    buffer.put(command).limit(buffer.position()).position(3);
+
+    scpChannel.wrap(buffer);
+
+    Assert.assertEquals(3, buffer.position());
+    byte[] wrapped = new byte[buffer.remaining()];
+    buffer.get(wrapped);
+    Assert.assertEquals("84F280021082E63A0FE0BFAD7CE78AA5C6E038A340", HEX.fromByteArray(wrapped));
+  }
+
+  @Test public void testWrapFromDataBuffer() throws Exception {
+    CardChannelContext context = createContext(request -> null);
+
+    byte[] sequenceCounter =  HEX.toByteArray("006D");
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    context.setSessionKeys(sessionKeys);
+
+    Scp02ApduChannel scpChannel = scp02Channel(context
+        , EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.C_DECRYPTION, SecurityLevel.R_MAC)
+        , HEX.toByteArray("94373CCB68A4C173"));
+    scpChannel.setRicv(HEX.toByteArray("94373CCB68A4C173"));
+
+    byte[] source = HEX.toByteArray("FFFF4F09F00000008800010101FFFF");
+    ByteBuffer data = ByteBuffer.allocateDirect(source.length);
+    data.put(source).limit(source.length - 2).position(2);
+    ByteBuffer command = ByteBuffer.allocate(Scp02Codec.wrappedLength(5 + 11));
+    command.put((byte) 0x11);
+
+    scpChannel.wrap(0x80, 0xF2, 0x40, 0x00, data, 0, command);
+
+    Assert.assertEquals(data.limit(), data.position());
+    command.flip().position(1);
+    Assert.assertEquals("84F2400018FD4290F0AD4100E0A568E813960DF479AFA8F841D435A3E6"
+        , HEX.fromByteBuffer(command, 1, command.remaining()));
+
+    ByteBuffer response = ByteBuffer.wrap(HEX.toByteArray("0799BA9C8ECCDE3B8E9000"));
+    scpChannel.unwrap(response);
+    Assert.assertEquals("079000", HEX.fromByteBuffer(response, 0, response.limit()));
+  }
+
+  @Test public void testUnwrapDirectBuffer() throws Exception {
+    CardChannelContext context = createContext(request -> null);
+
+    byte[] sequenceCounter =  HEX.toByteArray("0064");
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    context.setSessionKeys(sessionKeys);
+
+    Scp02ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC)
+        , HEX.toByteArray("D548435F7981B2B4"));
+    scpChannel.setRicv(HEX.toByteArray("D548435F7981B2B4"));
+
+    byte[] command = HEX.toByteArray("84F28002024F00");
+    ByteBuffer commandBuffer = ByteBuffer.allocate(Scp02Codec.wrappedLength(command.length));
+    commandBuffer.put(command).flip();
+    scpChannel.wrap(commandBuffer);
+
+    byte[] response = HEX.toByteArray("E3134F08A0000001510000009F700107C5039EFE804490ADB965570A769000");
+    ByteBuffer responseBuffer = ByteBuffer.allocateDirect(response.length);
+    responseBuffer.put(response).flip();
+    scpChannel.unwrap(responseBuffer);
+
+    byte[] unwrapped = new byte[responseBuffer.remaining()];
+    responseBuffer.get(unwrapped);
+    Assert.assertEquals("E3134F08A0000001510000009F700107C5039EFE809000", HEX.fromByteArray(unwrapped));
+  }
+
+  @Test public void testTransmitBuffers() throws Exception {
+    BufferedApduChannel channel = new BufferedApduChannel() {
+      @Override public int transmit(ByteBuffer command, ByteBuffer response) {
+        byte[] request = new byte[command.remaining()];
+        command.get(request);
+        Assert.assertEquals("84F280020A4F00D3A881BA3923ADA0", HEX.fromByteArray(request));
+        byte[] data = HEX.toByteArray("E3134F08A0000001510000009F700107C5039EFE804490ADB965570A769000");
+        response.put(data);
+        return data.length;
+      }
+
+      @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
+        throw new IOException("unexpected call");
+      }
+    };
+
+    CardChannelContext context = createContext(channel);
+
+    byte[] sequenceCounter =  HEX.toByteArray("0064");
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, context.keyProvider());
+    SessionKeys sessionKeys = keySet.deriveSessionKeys(context.getCardProperties(), sequenceCounter);
+    context.setSessionKeys(sessionKeys);
+
+    Scp02ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC)
+        , HEX.toByteArray("D548435F7981B2B4"));
+    scpChannel.setRicv(HEX.toByteArray("D548435F7981B2B4"));
+
+    ByteBuffer command = ByteBuffer.allocateDirect(64);
+    command.put(HEX.toByteArray("84F28002024F00")).flip();
+    ByteBuffer response = ByteBuffer.allocateDirect(BufferedApduChannel.MIN_RESPONSE_CAPACITY);
+
+    int length = scpChannel.transmit(command, response);
+
+    Assert.assertEquals(23, length);
+    Assert.assertEquals(23, response.position());
+    Assert.assertEquals("E3134F08A0000001510000009F700107C5039EFE809000", HEX.fromByteBuffer(response, 0, length));
+  }
+
+  @Test public void testTransmitCmacExtendedLength() throws Exception {
+    for (int nc : new int[] {250, 300}) {
+      byte[] data = new byte[nc];
+      for (int i = 0; i < nc; i++) {
+        data[i] = (byte) i;
+      }
+      String[] transmitted = new String[1];
+      ApduChannel channel = request -> {
+        transmitted[0] = HEX.fromByteArray(request.getBytes());
+        return new ResponseAPDU(HEX.toByteArray("9000"));
+      };
+      CardChannelContext context = CardChannelContext.builder()
+          .channel(channel)
+          .cardProperties(CardProperties.builder().keyVersionNumber((byte) 0xFF).build())
+          .keyProvider(KeyProvider.DEFAULT)
+          .maxLength(0x1000)
+          .build();
+      context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+          .deriveSessionKeys(context.getCardProperties(), HEX.toByteArray("0004")));
+
+      ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC), null);
+      scpChannel.transmit(new CommandAPDU(0x80, 0xE2, 0x00, 0x00, data, 1024));
+
+      String header = String.format("84E2000000%04X", nc + 8);
+      MacAlgorithm3 mac = new MacAlgorithm3(context.getSessionKeys().getDesEde(KeyUsage.MAC).getEncoded());
+      byte[] cMac = new byte[8];
+      mac.init(null);
+      mac.update(HEX.toByteArray(header), 0, 7);
+      mac.update(data, 0, data.length);
+      mac.doFinalPadded(cMac, 0);
+      Assert.assertEquals(header + HEX.fromByteArray(data) + HEX.fromByteArray(cMac) + "0400", transmitted[0]);
+    }
+  }
+
+  @Test public void testTransmitExtendedLengthNotSupported() throws Exception {
+    CardChannelContext context = createContext(request -> new ResponseAPDU(HEX.toByteArray("9000")));
+    context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+        .deriveSessionKeys(context.getCardProperties(), HEX.toByteArray("0004")));
+
+    ApduChannel scpChannel = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC), null);
+    try {
+      scpChannel.transmit(new CommandAPDU(0x80, 0xCA, 0x00, 0xCF, 1024));
+      Assert.fail("must throw IOException");
+    } catch (IOException ex) {
+      Assert.assertTrue(ex.getMessage().endsWith("extended length APDU commands are not supported by the card"));
+    }
+  }
+
+  @Test public void testTransmitScript() throws Exception {
+    byte[] sequenceCounter = HEX.toByteArray("0004");
+    byte[] icv = HEX.toByteArray("FB3A120021F7363C");
+    List<CommandAPDU> script = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      script.add(new CommandAPDU(0x80, 0xE2, 0x00, i, new byte[] {0x01, 0x02, (byte) i}));
+    }
+    CommandAPDU next = new CommandAPDU(HEX.toByteArray("80F28002024F00"));
+
+    Card card = new Card(3);
+    CardChannelContext context = createContext(card);
+    context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+        .deriveSessionKeys(context.getCardProperties(), sequenceCounter));
+    card.rMac = new MacAlgorithm3(context.getSessionKeys().getDesEde(KeyUsage.R_MAC).getEncoded());
+    card.rIcv = icv.clone();
+    Scp02ApduChannel scpChannel
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    scpChannel.setRicv(icv);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      List<ResponseAPDU> responses = scpChannel.transmitScript(script, SwPolicy.NO_ERROR, 4, executor);
+      Assert.assertEquals(4, responses.size());
+      Assert.assertEquals(0x6A80, responses.get(3).getSW());
+      Assert.assertEquals("02", HEX.fromByteArray(responses.get(2).getData()));
+      Assert.assertEquals(0x9000, scpChannel.transmit(next).getSW());
+    } finally {
+      executor.shutdown();
+    }
+
+    Card reference = new Card(3);
+    CardChannelContext referenceContext = createContext(reference);
+    referenceContext.setSessionKeys(context.getSessionKeys());
+    reference.rMac = card.rMac;
+    reference.rIcv = icv.clone();
+    Scp02ApduChannel referenceChannel
+        = scp02Channel(referenceContext, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    referenceChannel.setRicv(icv);
+    for (int i = 0; i < 4; i++) {
+      referenceChannel.transmit(script.get(i));
+    }
+    referenceChannel.transmit(next);
+
+    Assert.assertEquals(reference.received, card.received);
+  }
+
+  @Test public void testTransmitScriptCallerRunsExecutor() throws Exception {
+    byte[] sequenceCounter = HEX.toByteArray("0004");
+    byte[] icv = HEX.toByteArray("FB3A120021F7363C");
+    List<CommandAPDU> script = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      script.add(new CommandAPDU(0x80, 0xE2, 0x00, i, new byte[] {0x01, 0x02, (byte) i}));
+    }
+
+    Card card = new Card(-1);
+    BufferedApduChannel bufferedCard = new BufferedApduChannel() {
+      @Override public int transmit(ByteBuffer command, ByteBuffer response) {
+        byte[] request = new byte[command.remaining()];
+        command.get(request);
+        byte[] apdu = card.transmit(new CommandAPDU(request)).getBytes();
+        response.put(apdu);
+        return apdu.length;
+      }
+
+      @Override public ResponseAPDU transmit(CommandAPDU request) throws IOException {
+        throw new IOException("unexpected call");
+      }
+    };
+    CardChannelContext context = createContext(bufferedCard);
+    context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+        .deriveSessionKeys(context.getCardProperties(), sequenceCounter));
+    card.rMac = new MacAlgorithm3(context.getSessionKeys().getDesEde(KeyUsage.R_MAC).getEncoded());
+    card.rIcv = icv.clone();
+    Scp02ApduChannel scpChannel
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    scpChannel.setRicv(icv);
+
+    List<ResponseAPDU> responses = scpChannel.transmitScript(script, SwPolicy.NO_ERROR, 2, Runnable::run);
+    Assert.assertEquals(8, responses.size());
+    Assert.assertEquals("07", HEX.fromByteArray(responses.get(7).getData()));
+
+    responses = scpChannel.transmitScript(script, SwPolicy.NO_ERROR, 2, command -> { });
+    Assert.assertEquals(8, responses.size());
+
+    Card reference = new Card(-1);
+    CardChannelContext referenceContext = createContext(reference);
+    referenceContext.setSessionKeys(context.getSessionKeys());
+    reference.rMac = card.rMac;
+    reference.rIcv = icv.clone();
+    Scp02ApduChannel referenceChannel
+        = scp02Channel(referenceContext, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    referenceChannel.setRicv(icv);
+    for (int n = 0; n < 2; n++) {
+      for (CommandAPDU command : script) {
+        referenceChannel.transmit(command);
+      }
+    }
+    Assert.assertEquals(reference.received, card.received);
+  }
+
+  @Test public void testTransmitAll() throws Exception {
+    byte[] sequenceCounter = HEX.toByteArray("0004");
+    byte[] icv = HEX.toByteArray("FB3A120021F7363C");
+    List<CommandAPDU> script = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      script.add(new CommandAPDU(0x80, 0xE2, 0x00, i, new byte[] {0x01, 0x02, (byte) i}));
+    }
+
+    Card card = new Card(3);
+    CardChannelContext context = createContext(card);
+    context.setSessionKeys(KeySet.of(ScpVersion.SCP_02, context.keyProvider())
+        .deriveSessionKeys(context.getCardProperties(), sequenceCounter));
+    card.rMac = new MacAlgorithm3(context.getSessionKeys().getDesEde(KeyUsage.R_MAC).getEncoded());
+    card.rIcv = icv.clone();
+    Scp02ApduChannel scpChannel
+        = scp02Channel(context, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    scpChannel.setRicv(icv);
+
+    int[] sws = scpChannel.transmitAll(script, SwPolicy.NO_ERROR);
+    Assert.assertArrayEquals(new int[] {0x9000, 0x9000, 0x9000, 0x6A80}, sws);
+
+    List<ResponseAPDU> responses = scpChannel.transmitScript(script.subList(4, 8), SwPolicy.NO_ERROR, 1
+        , command -> Assert.fail("depth 1 must not use the executor"));
+    Assert.assertEquals(4, responses.size());
+    Assert.assertEquals("07", HEX.fromByteArray(responses.get(3).getData()));
+
+    Card reference = new Card(3);
+    CardChannelContext referenceContext = createContext(reference);
+    referenceContext.setSessionKeys(context.getSessionKeys());
+    reference.rMac = card.rMac;
+    reference.rIcv = icv.clone();
+    Scp02ApduChannel referenceChannel
+        = scp02Channel(referenceContext, EnumSet.of(SecurityLevel.C_MAC, SecurityLevel.R_MAC), icv);
+    referenceChannel.setRicv(icv);
+    for (CommandAPDU command : script) {
+      referenceChannel.transmit(command);
+    }
+    Assert.assertEquals(reference.received, card.received);
+  }
+
+  private static Scp02ApduChannel scp02Channel(CardChannelContext context, EnumSet<SecurityLevel> securityLevel,
+      byte[] icv) {
+    Scp02CryptoContext cryptoContext
+        = new Scp02CryptoContext(context.cryptoBackend(), context.batchMacEngine(), context.getSessionKeys());
+    return new Scp02ApduChannel(context, cryptoContext, securityLevel, icv);
+  }
+
+  /**
+   * Answers every command with its P2 as data and an R-MAC, the command with P2 {@code failAt} fails.
+   */
+  private static final class Card implements ApduChannel {
+    private final int failAt;
+    private final List<String> received = new ArrayList<>();
+    private MacAlgorithm3 rMac;
+    private byte[] rIcv;
+
+    Card(int failAt) {
+      this.failAt = failAt;
+    }
+
+    @Override public ResponseAPDU transmit(CommandAPDU request) {
+      byte[] apdu = request.getBytes();
+      received.add(HEX.fromByteArray(apdu));
+      int nc = request.getNc() - 8;
+      boolean failed = request.getINS() == 0xE2 && request.getP2() == failAt;
+      byte[] data = failed ? new byte[0] : new byte[] {(byte) request.getP2()};
+      int sw = failed ? 0x6A80 : 0x9000;
+
+      rMac.init(rIcv);
+      rMac.update((byte) (apdu[0] & 0xF8));
+      rMac.update(apdu, 1, 3);
+      if (nc > 0) {
+        rMac.update((byte) nc);
+        rMac.update(apdu, 5, nc);
+      }
+      rMac.update((byte) data.length);
+      rMac.update(data, 0, data.length);
+      rMac.update((byte) (sw >> 8));
+      rMac.update((byte) sw);
+      rMac.doFinalPadded(rIcv, 0);
+
+      ByteBuffer response = ByteBuffer.allocate(data.length + 10);
+      response.put(data).put(rIcv).putShort((short) sw);
+      return new ResponseAPDU(response.array());
+    }
+  }
 }
@@ -18,15 +18,39 @@ import org.nightcode.javacard.AbstractJcTest;
 import org.nightcode.javacard.JavaCardException;
 import org.nightcode.javacard.channel.ApduChannel;
 import org.nightcode.javacard.channel.CardChannelContext;
+import org.nightcode.javacard.channel.ScriptExecutionException;
+import org.nightcode.javacard.channel.SwPolicy;
+import org.nightcode.javacard.channel.key.AsyncKeyProvider;
+import org.nightcode.javacard.channel.key.DiversifiedKeyProvider;
+import org.nightcode.javacard.channel.key.KeyProvider;
 import org.nightcode.javacard.channel.key.KeySet;
+import org.nightcode.javacard.channel.key.KeyUsage;
 import org.nightcode.javacard.channel.key.SessionKeys;
+import org.nightcode.javacard.common.Aid;
+import org.nightcode.javacard.common.Apdu;
+import org.nightcode.javacard.common.CardProperties;
 import org.nightcode.javacard.common.SecurityLevel;
+import org.nightcode.javacard.crypto.CryptoBackends;
 import org.nightcode.javacard.util.ByteArrayGenerator;
 import org.nightcode.javacard.util.Hexs;
+import org.nightcode.javacard.util.MacAlgorithm3;
+import org.nightcode.tools.ber.BerFrame;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import org.junit.Assert;
@@ -111,4 +135,366 @@ public class Scp02SessionTest extends AbstractJcTest {
       Assert.assertEquals("C_DECRYPTION must be combined with C_MAC", ex.getMessage());
     }
   }
+
+  @Test public void testSpeculativeSessionKeys() throws Exception {
+    byte[] hostChallenge = Hexs.hex().toByteArray("E4C522735415CC5C");
+    AtomicInteger sequenceCounter = new AtomicInteger(0x00FF);
+    List<String> encDerivations = Collections.synchronizedList(new ArrayList<>());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "speculative"));
+    try {
+      CardChannelContext context = contextBuilder(handshakeCard(sequenceCounter, hostChallenge))
+          .keyProvider(recordingKeyProvider(encDerivations))
+          .keyDerivationExecutor(executor)
+          .build();
+      Scp02Session session = new Scp02Session(context, size -> hostChallenge);
+      String caller = Thread.currentThread().getName();
+
+      session.initializeUpdate((byte) 0);
+      drain(executor);
+      Assert.assertEquals(Arrays.asList(caller, "speculative"), encDerivations);
+
+      sequenceCounter.set(0x0100);
+      session.initializeUpdate((byte) 0);
+      drain(executor);
+      Assert.assertEquals(Arrays.asList(caller, "speculative", "speculative"), encDerivations);
+
+      sequenceCounter.set(0x0103);
+      Scp02Context scp02Context = session.initializeUpdate((byte) 0);
+      drain(executor);
+      Assert.assertArrayEquals(Hexs.hex().toByteArray("0103"), scp02Context.getSequenceCounter());
+      Assert.assertEquals(2, Collections.frequency(encDerivations, caller));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testSharedKeyPredictions() throws Exception {
+    byte[] hostChallenge = Hexs.hex().toByteArray("E4C522735415CC5C");
+    AtomicInteger sequenceCounter = new AtomicInteger(0x0010);
+    List<String> encDerivations = Collections.synchronizedList(new ArrayList<>());
+    Scp02KeyPredictions keyPredictions = new Scp02KeyPredictions(16);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "speculative"));
+    try {
+      String caller = Thread.currentThread().getName();
+      for (int connection = 0; connection < 2; connection++) {
+        CardChannelContext context = contextBuilder(handshakeCard(sequenceCounter, hostChallenge))
+            .keyProvider(recordingKeyProvider(encDerivations))
+            .keyDerivationExecutor(executor)
+            .keyPredictions(keyPredictions)
+            .build();
+        new Scp02Session(context, size -> hostChallenge).initializeUpdate((byte) 0);
+        drain(executor);
+        sequenceCounter.incrementAndGet();
+      }
+      Assert.assertEquals(Arrays.asList(caller, "speculative", "speculative"), encDerivations);
+      Assert.assertEquals(1, keyPredictions.size());
+
+      CardChannelContext unshared = contextBuilder(handshakeCard(sequenceCounter, hostChallenge))
+          .keyProvider(recordingKeyProvider(encDerivations))
+          .keyDerivationExecutor(executor)
+          .build();
+      new Scp02Session(unshared, size -> hostChallenge).initializeUpdate((byte) 0);
+      Assert.assertEquals(caller, encDerivations.get(3));
+
+      keyPredictions.clear();
+      Assert.assertEquals(0, keyPredictions.size());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testOpenImplicitSecureChannel() throws Exception {
+    Aid sdAid = Aid.parse("A000000151000000");
+    CardProperties cardProperties = CardProperties.builder().keyVersionNumber((byte) 0xFF).build();
+    byte[] sequenceCounter = Hexs.hex().toByteArray("0005");
+
+    KeySet keySet = KeySet.of(ScpVersion.SCP_02, KeyProvider.DEFAULT);
+    byte[] macKey = keySet.deriveSessionKeys(cardProperties, sequenceCounter).getDesEde(KeyUsage.MAC).getEncoded();
+    byte[] command = Hexs.hex().toByteArray("80F28000024F00");
+    String expected = "84F280000A4F00" + implicitCmac(macKey, sdAid, command);
+
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel channel = request -> {
+      transmitted.add(Hexs.hex().fromByteArray(request.getBytes()));
+      if (request.getINS() == 0xCA && request.getP2() == 0xC1) {
+        return new ResponseAPDU(Hexs.hex().toByteArray("C10200059000"));
+      }
+      if (request.getINS() == 0xCA) {
+        return new ResponseAPDU(Hexs.hex().toByteArray("6A88"));
+      }
+      return new ResponseAPDU(Hexs.hex().toByteArray("9000"));
+    };
+    CardChannelContext context = contextBuilder(channel).sdAid(sdAid).build();
+
+    Scp02Session session = new Scp02Session(context);
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC));
+    Assert.assertEquals(0x9000, session.transmit(new CommandAPDU(command)).getSW());
+
+    Assert.assertEquals(3, transmitted.size());
+    Assert.assertEquals("80CA00CF00", transmitted.get(0));
+    Assert.assertEquals("80CA00C100", transmitted.get(1));
+    Assert.assertEquals(expected, transmitted.get(2));
+
+    session.reset();
+    Assert.assertNull(context.getSessionKeys());
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, sequenceCounter);
+    Assert.assertEquals(0x9000, session.transmit(new CommandAPDU(command)).getSW());
+    Assert.assertEquals(expected, transmitted.get(3));
+  }
+
+  @Test public void testOpenImplicitSecureChannelDiversified() throws Exception {
+    byte[] keyDiversificationData = Hexs.hex().toByteArray("00010203040506070809");
+    byte[] sequenceCounter = Hexs.hex().toByteArray("0005");
+    CardProperties cardProperties = CardProperties.builder().keyVersionNumber((byte) 0x00).build();
+    DiversifiedKeyProvider keyProvider = DiversifiedKeyProvider.builder()
+        .masterKey(Hexs.hex().toByteArray("404142434445464748494A4B4C4D4E4F"))
+        .build();
+
+    byte[] macKey = KeySet.of(ScpVersion.SCP_02, keyProvider)
+        .deriveSessionKeys(cardProperties, keyDiversificationData, (byte) 0x20, sequenceCounter)
+        .getDesEde(KeyUsage.MAC).getEncoded();
+    byte[] command = Hexs.hex().toByteArray("80F28000024F00");
+    String expected = "84F280000A4F00" + implicitCmac(macKey, Apdu.DEFAULT_ISD_AID, command);
+
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel channel = request -> {
+      transmitted.add(Hexs.hex().fromByteArray(request.getBytes()));
+      if (request.getINS() != 0xCA) {
+        return new ResponseAPDU(Hexs.hex().toByteArray("9000"));
+      }
+      switch (request.getP2()) {
+        case 0xC1:
+          return new ResponseAPDU(Hexs.hex().toByteArray("C10200059000"));
+        case 0xCF:
+          return new ResponseAPDU(Hexs.hex().toByteArray("CF0A" + Hexs.hex().fromByteArray(keyDiversificationData) + "9000"));
+        default:
+          return new ResponseAPDU(Hexs.hex().toByteArray("E00CC00401208010C004022080109000"));
+      }
+    };
+    CardChannelContext context = contextBuilder(channel)
+        .cardProperties(cardProperties)
+        .keyProvider(keyProvider)
+        .build();
+
+    Scp02Session session = new Scp02Session(context);
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC));
+    Assert.assertEquals(0x9000, session.transmit(new CommandAPDU(command)).getSW());
+    Assert.assertEquals(Arrays.asList("80CA00CF00", "80CA00E000", "80CA00C100", expected), transmitted);
+
+    session.reset();
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), keyDiversificationData, (byte) 0x20
+        , sequenceCounter);
+    Assert.assertEquals(0x9000, session.transmit(new CommandAPDU(command)).getSW());
+    Assert.assertEquals(expected, transmitted.get(4));
+  }
+
+  @Test public void testTransmitAll() throws Exception {
+    List<String> transmitted = new ArrayList<>();
+    ApduChannel channel = request -> {
+      transmitted.add(Hexs.hex().fromByteArray(request.getBytes()));
+      return new ResponseAPDU(Hexs.hex().toByteArray((request.getP2() == 2) ? "6A80" : "019000"));
+    };
+    CardChannelContext context = contextBuilder(channel).build();
+    List<CommandAPDU> script = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      script.add(new CommandAPDU(0x80, 0xE2, 0x00, i, new byte[] {0x01, 0x02, 0x03}));
+    }
+
+    Scp02Session session = new Scp02Session(context);
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, Hexs.hex().toByteArray("0005"));
+    int[] sws = session.transmitAll(script, SwPolicy.NO_ERROR);
+    Assert.assertArrayEquals(new int[] {0x9000, 0x9000, 0x6A80}, sws);
+    Assert.assertEquals(3, transmitted.size());
+    Assert.assertTrue(transmitted.get(0).startsWith("84E200000B010203"));
+
+    session.reset();
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, Hexs.hex().toByteArray("0005"));
+    sws = session.transmitAll(script, SwPolicy.builder().expected(0x9000, 0x6A80).abortOnUnexpected(false).build());
+    Assert.assertArrayEquals(new int[] {0x9000, 0x9000, 0x6A80, 0x9000}, sws);
+    Assert.assertEquals(transmitted.get(0), transmitted.get(3));
+  }
+
+  @Test public void testTransmitAllFailureIndex() throws Exception {
+    ApduChannel channel = request -> {
+      if (request.getP2() == 2) {
+        throw new IOException("card removed");
+      }
+      return new ResponseAPDU(Hexs.hex().toByteArray("9000"));
+    };
+    CardChannelContext context = contextBuilder(channel).build();
+    List<CommandAPDU> script = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      script.add(new CommandAPDU(0x80, 0xE2, 0x00, i, new byte[] {0x01, 0x02, 0x03}));
+    }
+
+    Scp02Session session = new Scp02Session(context);
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, Hexs.hex().toByteArray("0005"));
+    try {
+      session.transmitAll(script, SwPolicy.NO_ERROR);
+      Assert.fail("must throw ScriptExecutionException");
+    } catch (ScriptExecutionException ex) {
+      Assert.assertEquals(2, ex.index());
+      Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("script command 2 failed: APDU [84E20002"));
+    }
+  }
+
+  @Test public void testReopenReleasesCryptoContext() throws Exception {
+    CountingCryptoBackend backend = new CountingCryptoBackend();
+    CardChannelContext context = contextBuilder(request -> new ResponseAPDU(Hexs.hex().toByteArray("9000")))
+        .cryptoBackend(backend)
+        .build();
+    CommandAPDU command = new CommandAPDU(0x80, 0xE2, 0x00, 0x00, new byte[] {0x01, 0x02, 0x03});
+
+    Scp02Session session = new Scp02Session(context);
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, Hexs.hex().toByteArray("0005"));
+    Assert.assertEquals(0x9000, session.transmit(command).getSW());
+    int live = backend.live.get();
+    Assert.assertTrue(live > 0);
+
+    session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, Hexs.hex().toByteArray("0006"));
+    Assert.assertEquals(0x9000, session.transmit(command).getSW());
+    Assert.assertEquals(live, backend.live.get());
+
+    session.reset();
+    Assert.assertEquals(0, backend.live.get());
+  }
+
+  @Test public void testOpenImplicitSecureChannelNotSupported() {
+    Scp02Session session = new Scp02Session(createContext(request -> new ResponseAPDU(new byte[] {(byte) 0x90, 0x00})));
+    try {
+      session.openImplicitSecureChannel(EnumSet.of(SecurityLevel.C_MAC), null, (byte) 0xFF, new byte[] {0x00, 0x01});
+      Assert.fail("must throw JavaCardException");
+    } catch (JavaCardException ex) {
+      Assert.assertEquals("implicit initiation is not supported by the card", ex.getMessage());
+    }
+  }
+
+  @Test public void testOpenSecureChannelAsync() throws Exception {
+    List<String> transmitted = Collections.synchronizedList(new ArrayList<>());
+    ApduChannel channel = request -> {
+      transmitted.add(Hexs.hex().fromByteArray(request.getBytes()));
+      if (request.getINS() == 0x50) {
+        return new ResponseAPDU(Hexs.hex().toByteArray("0000000000000000000001020002D9857D532F04EFA4524D0C2472659000"));
+      }
+      return new ResponseAPDU(Hexs.hex().toByteArray("9000"));
+    };
+
+    CountDownLatch release = new CountDownLatch(1);
+    KeyProvider blockingProvider = (keyContext, usage) -> {
+      try {
+        Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+      } catch (InterruptedException ex) {
+        throw new IllegalStateException(ex);
+      }
+      return KeyProvider.DEFAULT.deriveSessionKey(keyContext, usage);
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CardChannelContext context = CardChannelContext.builder()
+          .channel(channel)
+          .cardProperties(CardProperties.builder().keyVersionNumber((byte) 0x00).build())
+          .keyProvider(AsyncKeyProvider.of(blockingProvider, executor))
+          .maxLength(0xFF)
+          .build();
+      Scp02Session session = new Scp02Session(context, size -> Hexs.hex().toByteArray("E4C522735415CC5C"));
+
+      CompletableFuture<Void> opened = session.openSecureChannelAsync(EnumSet.of(SecurityLevel.C_MAC), executor)
+          .toCompletableFuture();
+      Assert.assertFalse(opened.isDone());
+      Assert.assertEquals(1, transmitted.size());
+
+      release.countDown();
+      opened.get(5, TimeUnit.SECONDS);
+      Assert.assertEquals(2, transmitted.size());
+      Assert.assertEquals("84820100100958CFB92281CADE0772395773758FE4", transmitted.get(1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void testOpenSecureChannelAsyncCryptogramMismatch() throws Exception {
+    ApduChannel channel = request -> new ResponseAPDU(
+        Hexs.hex().toByteArray("0000000000000000000001020002D9857D532F04EFA4524D0C2472669000"));
+    CardChannelContext context = createContext(channel);
+    Scp02Session session = new Scp02Session(context, size -> Hexs.hex().toByteArray("E4C522735415CC5C"));
+
+    try {
+      session.openSecureChannelAsync(EnumSet.of(SecurityLevel.C_MAC), Runnable::run).toCompletableFuture().get();
+      Assert.fail("must throw ExecutionException");
+    } catch (ExecutionException ex) {
+      Assert.assertTrue(ex.getCause() instanceof JavaCardException);
+    }
+  }
+
+  /**
+   * Returns a card answering INITIALIZE UPDATE for the current {@code sequenceCounter} with the
+   * key diversification data 00001122334455667788 and key version number FF.
+   */
+  private static ApduChannel handshakeCard(AtomicInteger sequenceCounter, byte[] hostChallenge)
+      throws JavaCardException {
+    byte[] keyDiversificationData = Hexs.hex().toByteArray("00001122334455667788");
+    byte[] cardChallenge = Hexs.hex().toByteArray("D9857D532F04");
+    CardProperties cardProperties = CardProperties.builder().keyVersionNumber((byte) 0xFF).build();
+    KeySet cardKeySet = KeySet.of(ScpVersion.SCP_02, KeyProvider.DEFAULT);
+    return request -> {
+      byte[] counter = {(byte) (sequenceCounter.get() >>> 8), (byte) sequenceCounter.get()};
+      SessionKeys sessionKeys = cardKeySet.deriveSessionKeys(cardProperties, counter);
+      byte[] cryptogram = new Scp02CryptoContext(CryptoBackends.defaultBackend(), null, sessionKeys)
+          .cryptogram(hostChallenge, counter, cardChallenge);
+      return new ResponseAPDU(Hexs.hex().toByteArray(Hexs.hex().fromByteArray(keyDiversificationData)
+          + "FF02" + Hexs.hex().fromByteArray(counter) + Hexs.hex().fromByteArray(cardChallenge)
+          + Hexs.hex().fromByteArray(cryptogram) + "9000"));
+    };
+  }
+
+  /**
+   * Returns the default key provider recording the name of the thread of every S-ENC derivation.
+   */
+  private static KeyProvider recordingKeyProvider(List<String> encDerivations) {
+    return (keyContext, usage) -> {
+      if (usage == KeyUsage.ENC) {
+        encDerivations.add(Thread.currentThread().getName());
+      }
+      return KeyProvider.DEFAULT.deriveSessionKey(keyContext, usage);
+    };
+  }
+
+  private static void drain(ExecutorService executor) throws Exception {
+    executor.submit(() -> { }).get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Returns the C-MAC of the first command of an implicitly initiated session whose ICV is the
+   * MAC over the AID.
+   */
+  private static String implicitCmac(byte[] macKey, Aid aid, byte[] command) {
+    MacAlgorithm3 mac = new MacAlgorithm3(macKey);
+    byte[] icv = new byte[8];
+    mac.init(icv);
+    mac.update(aid.array(), 0, aid.length());
+    mac.doFinalPadded(icv, 0);
+    byte[] cMac = new byte[8];
+    mac.init(icv);
+    mac.update(command, 0, command.length);
+    mac.doFinalPadded(cMac, 0);
+    return Hexs.hex().fromByteArray(cMac);
+  }
+
+  /**
+   * Returns a context builder for a card with the key version number 'FF' and i = 0x1B: implicit
+   * initiation, ICV set to MAC over AID, ICV encryption, C-MAC on unmodified APDU.
+   */
+  private static CardChannelContext.Builder contextBuilder(ApduChannel channel) {
+    BerFrame cardRecognitionData = BerFrame.parseFrom(Hexs.hex().toByteArray("730D640B06092A864886FC6B04021B"))
+        .getTag(0x73);
+    return CardChannelContext.builder()
+        .channel(channel)
+        .cardProperties(CardProperties.builder().keyVersionNumber((byte) 0xFF).build())
+        .cardRecognitionData(cardRecognitionData)
+        .keyProvider(KeyProvider.DEFAULT)
+        .maxLength(0xFF);
+  }
 }
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.nightcode.javacard.util.Hexs;
+import org.nightcode.javacard.util.MacAlgorithm3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchMacEngineTest {
+
+  private static final Hexs HEX = Hexs.hex();
+
+  @Test public void testMac() {
+    Random random = new Random(3);
+    BatchMacEngine engine = new BatchMacEngine(4);
+    for (int keyLength = 16; keyLength <= 24; keyLength += 8) {
+      byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      BatchMacEngine.MacKey macKey = BatchMacEngine.macKey(key);
+      MacAlgorithm3 reference = new MacAlgorithm3(new TableDesCryptoBackend(), key);
+      for (int length = 8; length <= 64; length += 8) {
+        byte[] input = new byte[length + 1];
+        random.nextBytes(input);
+        byte[] iv = new byte[8];
+        random.nextBytes(iv);
+
+        byte[] expected = new byte[8];
+        reference.mac(iv, input, 1, length, expected, 0);
+        engine.mac(macKey, iv, input, 1, length, iv, 0);
+        Assert.assertEquals(HEX.fromByteArray(expected), HEX.fromByteArray(iv));
+      }
+    }
+  }
+
+  @Test public void testNullKey() {
+    BatchMacEngine engine = new BatchMacEngine(2);
+    try {
+      engine.mac(null, null, new byte[8], 0, 8, new byte[8], 0);
+      Assert.fail("must throw NullPointerException");
+    } catch (NullPointerException ex) {
+      Assert.assertEquals("key", ex.getMessage());
+    }
+    byte[] key = HEX.toByteArray("404142434445464748494A4B4C4D4E4F");
+    byte[] expected = new byte[8];
+    new MacAlgorithm3(new TableDesCryptoBackend(), key).mac(null, new byte[8], 0, 8, expected, 0);
+    byte[] mac = new byte[8];
+    engine.mac(BatchMacEngine.macKey(key), null, new byte[8], 0, 8, mac, 0);
+    Assert.assertArrayEquals(expected, mac);
+  }
+
+  @Test public void testConcurrentSessions() throws Exception {
+    int threads = 8;
+    BatchMacEngine engine = new BatchMacEngine(6);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final int seed = t;
+        results.add(executor.submit((Callable<Boolean>) () -> {
+          Random random = new Random(seed);
+          byte[] key = new byte[16];
+          random.nextBytes(key);
+          BatchMacEngine.MacKey macKey = BatchMacEngine.macKey(key);
+          MacAlgorithm3 reference = new MacAlgorithm3(new BouncyCastleCryptoBackend(), key);
+          byte[] mac = new byte[8];
+          byte[] expected = new byte[8];
+          for (int i = 0; i < 500; i++) {
+            byte[] input = new byte[8 * (1 + random.nextInt(8))];
+            random.nextBytes(input);
+            reference.mac(expected, input, 0, input.length, expected, 0);
+            engine.mac(macKey, mac, input, 0, input.length, mac, 0);
+            if (!HEX.fromByteArray(expected).equals(HEX.fromByteArray(mac))) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        Assert.assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLength() {
+    BatchMacEngine engine = new BatchMacEngine();
+    byte[] input = new byte[12];
+    engine.mac(BatchMacEngine.macKey(new byte[16]), null, input, 0, input.length, new byte[8], 0);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.crypto;
+
+import org.nightcode.javacard.util.Hexs;
+import org.nightcode.javacard.util.JcCryptoUtils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CryptoBackendsTest {
+
+  private static final Hexs HEX = Hexs.hex();
+
+  private static byte[] jca(String transformation, int mode, byte[] key, byte[] iv, byte[] input) throws Exception {
+    String algorithm = transformation.substring(0, transformation.indexOf('/'));
+    Cipher cipher = Cipher.getInstance(transformation);
+    if (iv != null) {
+      cipher.init(mode, new SecretKeySpec(key, algorithm), new IvParameterSpec(iv));
+    } else {
+      cipher.init(mode, new SecretKeySpec(key, algorithm));
+    }
+    return cipher.doFinal(input);
+  }
+
+  @Test public void testDesEde() throws Exception {
+    Random random = new Random(7);
+    for (CryptoBackend backend : CryptoBackends.backends()) {
+      for (int keyLength = 16; keyLength <= 24; keyLength += 8) {
+        byte[] key = new byte[keyLength];
+        random.nextBytes(key);
+        byte[] iv = new byte[8];
+        random.nextBytes(iv);
+        byte[] input = new byte[64];
+        random.nextBytes(input);
+        byte[] key24 = JcCryptoUtils.toKey24(key);
+        CipherEngine engine = backend.desEde(key);
+
+        byte[] out = new byte[input.length];
+        engine.encrypt(input, 0, input.length, out, 0);
+        Assert.assertEquals(backend.name()
+            , HEX.fromByteArray(jca("DESede/ECB/NoPadding", Cipher.ENCRYPT_MODE, key24, null, input))
+            , HEX.fromByteArray(out));
+
+        engine.decrypt(out, 0, out.length, out, 0);
+        Assert.assertEquals(backend.name(), HEX.fromByteArray(input), HEX.fromByteArray(out));
+
+        engine.encryptCbc(iv, input, 0, input.length, out, 0);
+        Assert.assertEquals(backend.name()
+            , HEX.fromByteArray(jca("DESede/CBC/NoPadding", Cipher.ENCRYPT_MODE, key24, iv, input))
+            , HEX.fromByteArray(out));
+
+        byte[] chain = iv.clone();
+        engine.cbcChain(chain, input, 0, input.length);
+        Assert.assertEquals(backend.name(), HEX.fromByteArray(out, out.length - 8, 8), HEX.fromByteArray(chain));
+      }
+    }
+  }
+
+  @Test public void testDes() throws Exception {
+    Random random = new Random(11);
+    for (CryptoBackend backend : CryptoBackends.backends()) {
+      byte[] key = new byte[16];
+      random.nextBytes(key);
+      byte[] input = new byte[40];
+      random.nextBytes(input);
+      CipherEngine engine = backend.des(key, 8);
+
+      byte[] out = new byte[input.length];
+      engine.encryptCbc(null, input, 0, input.length, out, 0);
+      byte[] desKey = new byte[8];
+      System.arraycopy(key, 8, desKey, 0, 8);
+      Assert.assertEquals(backend.name()
+          , HEX.fromByteArray(jca("DES/CBC/NoPadding", Cipher.ENCRYPT_MODE, desKey, new byte[8], input))
+          , HEX.fromByteArray(out));
+
+      engine.encrypt(input, 0, input.length, input, 0);
+      engine.decrypt(input, 0, input.length, input, 0);
+      engine.encryptCbc(null, input, 0, input.length, input, 0);
+      Assert.assertEquals(backend.name(), HEX.fromByteArray(out), HEX.fromByteArray(input));
+    }
+  }
+
+  @Test public void testMacAndKcv() {
+    byte[] key = HEX.toByteArray("404142434445464748494A4B4C4D4E4F");
+    byte[] input = HEX.toByteArray("0102030405060708090A0B0C0D0E0F10");
+    byte[] expected = new byte[8];
+    new BouncyCastleCryptoBackend().macAlgorithm3(key).mac(null, input, 0, input.length, expected, 0);
+    for (CryptoBackend backend : CryptoBackends.backends()) {
+      byte[] mac = new byte[8];
+      backend.macAlgorithm3(key).mac(null, input, 0, input.length, mac, 0);
+      Assert.assertEquals(backend.name(), HEX.fromByteArray(expected), HEX.fromByteArray(mac));
+      Assert.assertEquals(backend.name(), "8BAF47", HEX.fromByteArray(backend.kcv(key)));
+    }
+  }
+
+  @Test public void testJcaCipherPool() throws Exception {
+    JcaCryptoBackend backend = new JcaCryptoBackend(4);
+    byte[] input = HEX.toByteArray("0102030405060708090A0B0C0D0E0F10");
+    byte[] out = new byte[input.length];
+    for (int i = 0; i < 8; i++) {
+      byte[] key = new byte[16];
+      Arrays.fill(key, (byte) i);
+      CipherEngine engine = backend.desEde(key);
+      engine.encrypt(input, 0, input.length, out, 0);
+      Assert.assertEquals(HEX.fromByteArray(jca("DESede/ECB/NoPadding", Cipher.ENCRYPT_MODE
+          , JcCryptoUtils.toKey24(key), null, input)), HEX.fromByteArray(out));
+      engine.release();
+      engine.release();
+      Assert.assertEquals(2, backend.pooledDesEdeCiphers());
+    }
+  }
+
+  @Test public void testKnownAnswerTest() {
+    for (CryptoBackend backend : CryptoBackends.backends()) {
+      Assert.assertTrue(backend.name(), CryptoBackends.knownAnswerTest(backend));
+    }
+    CryptoBackend broken = new CryptoBackend() {
+      @Override public String name() {
+        return "broken";
+      }
+
+      @Override public CipherEngine des(byte[] key, int offset) {
+        return new TableDesCryptoBackend().des(key, offset);
+      }
+
+      @Override public CipherEngine desEde(byte[] key) {
+        byte[] wrongKey = key.clone();
+        wrongKey[0] ^= 0x02;
+        return new TableDesCryptoBackend().desEde(wrongKey);
+      }
+    };
+    Assert.assertFalse(CryptoBackends.knownAnswerTest(broken));
+    Assert.assertEquals(TableDesCryptoBackend.NAME
+        , CryptoBackends.calibrate(Arrays.asList(broken, new TableDesCryptoBackend())).name());
+  }
+
+  @Test public void testByName() {
+    Assert.assertEquals(TableDesCryptoBackend.NAME, CryptoBackends.byName("table").name());
+    Assert.assertTrue(CryptoBackends.backends().contains(CryptoBackends.defaultBackend()));
+    if (System.getProperty(CryptoBackends.BACKEND_PROPERTY) == null) {
+      Assert.assertEquals(JcaCryptoBackend.NAME, CryptoBackends.defaultBackend().name());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownBackend() {
+    CryptoBackends.byName("unknown");
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+  @Test public void testAcquireRelease() {
+    ByteBufferPool pool = new ByteBufferPool(2, 16, true);
+
+    ByteBuffer first = pool.acquire();
+    Assert.assertTrue(first.isDirect());
+    Assert.assertEquals(16, first.capacity());
+
+    first.put((byte) 0x01).flip();
+    pool.release(first);
+
+    ByteBuffer second = pool.acquire();
+    Assert.assertSame(first, second);
+    Assert.assertEquals(0, second.position());
+    Assert.assertEquals(16, second.limit());
+
+    Assert.assertNotSame(second, pool.acquire());
+  }
+
+  @Test public void testReleaseForeignBuffer() {
+    ByteBufferPool pool = new ByteBufferPool(1, 16, false);
+
+    ByteBuffer foreign = ByteBuffer.allocate(32);
+    pool.release(foreign);
+    Assert.assertNotSame(foreign, pool.acquire());
+
+    ByteBuffer first = ByteBuffer.allocate(16);
+    ByteBuffer second = ByteBuffer.allocate(16);
+    pool.release(first);
+    pool.release(second);
+    Assert.assertSame(first, pool.acquire());
+    Assert.assertNotSame(second, pool.acquire());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.Mac;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.macs.ISO9797Alg3Mac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MacAlgorithm3Test {
+
+  private static final Hexs HEX = Hexs.hex();
+
+  private static byte[] referenceMac(byte[] key, byte[] iv, byte[] input, int offset, int length) {
+    Mac mac = new ISO9797Alg3Mac(new DESEngine(), 64);
+    mac.init(new ParametersWithIV(new KeyParameter(key), iv));
+    mac.update(input, offset, length);
+    byte[] result = new byte[8];
+    mac.doFinal(result, 0);
+    return result;
+  }
+
+  @Test public void testMac() {
+    Random random = new Random(42);
+    byte[] key = JcCryptoUtils.toKey24(HEX.toByteArray("404142434445464748494A4B4C4D4E4F"));
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(key);
+
+    byte[] iv = new byte[8];
+    byte[] out = new byte[10];
+    for (int length = 8; length <= 264; length += 8) {
+      byte[] input = new byte[length + 3];
+      random.nextBytes(input);
+      random.nextBytes(iv);
+
+      macAlgorithm.mac(iv, input, 3, length, out, 2);
+
+      byte[] expected = referenceMac(key, iv, input, 3, length);
+      Assert.assertEquals(HEX.fromByteArray(expected), HEX.fromByteArray(out, 2, 8));
+    }
+  }
+
+  @Test public void testMacInPlaceIcv() {
+    byte[] key = HEX.toByteArray("0123456789ABCDEFFEDCBA9876543210");
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(key);
+
+    byte[] input = Iso7816D4.pad(HEX.toByteArray("80F28002024F00"));
+    byte[] icv = HEX.toByteArray("FB3A120021F7363C");
+    byte[] expected = referenceMac(key, icv, input, 0, input.length);
+
+    macAlgorithm.mac(icv, input, 0, input.length, icv, 0);
+    Assert.assertArrayEquals(expected, icv);
+  }
+
+  @Test public void testJcCryptoUtilsZeroPadding() {
+    Random random = new Random(7);
+    byte[] key = HEX.toByteArray("0123456789ABCDEFFEDCBA9876543210");
+    byte[] iv = HEX.toByteArray("FB3A120021F7363C");
+    for (int length : new int[] {0, 5, 8, 13, 16}) {
+      byte[] input = new byte[length];
+      random.nextBytes(input);
+      byte[] expected = referenceMac(key, iv, input, 0, length);
+      byte[] mac = JcCryptoUtils.macAlgorithm3(new SecretKeySpec(key, "DESede"), iv, input);
+      Assert.assertEquals("length " + length, HEX.fromByteArray(expected), HEX.fromByteArray(mac));
+    }
+  }
+
+  @Test public void testUpdateSlicedBuffer() {
+    Random random = new Random(11);
+    byte[] key = HEX.toByteArray("0123456789ABCDEFFEDCBA9876543210");
+    byte[] iv = HEX.toByteArray("FB3A120021F7363C");
+    byte[] array = new byte[32];
+    random.nextBytes(array);
+    ByteBuffer slice = ByteBuffer.wrap(array, 8, 16).slice();
+
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(key);
+    macAlgorithm.init(iv);
+    macAlgorithm.update(slice, 0, 16);
+    byte[] mac = new byte[8];
+    macAlgorithm.doFinal(mac, 0);
+    Assert.assertArrayEquals(referenceMac(key, iv, array, 8, 16), mac);
+
+    try {
+      macAlgorithm.update(slice, 8, 16);
+      Assert.fail("must throw IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals("(index + length) must be less than 16", ex.getMessage());
+    }
+  }
+
+  @Test public void testInvalidLength() {
+    MacAlgorithm3 macAlgorithm = new MacAlgorithm3(HEX.toByteArray("0123456789ABCDEFFEDCBA9876543210"));
+    try {
+      macAlgorithm.mac(null, new byte[7], 0, 7, new byte[8], 0);
+      Assert.fail("must throw IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      Assert.assertEquals("input length [7] must be a positive multiple of 8", ex.getMessage());
+    }
+  }
+}
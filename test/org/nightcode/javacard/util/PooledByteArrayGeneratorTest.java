@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.nightcode.javacard.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PooledByteArrayGeneratorTest {
+
+  @Test public void testRefillAhead() throws InterruptedException {
+    try (PooledByteArrayGenerator generator = PooledByteArrayGenerator.builder().capacity(16).build()) {
+      awaitAvailable(generator, 16);
+
+      Assert.assertEquals(24, generator.generate(24).length);
+      Assert.assertEquals(16, generator.available());
+      for (int i = 0; i < 12; i++) {
+        Assert.assertEquals(8, generator.generate(8).length);
+      }
+      awaitAvailable(generator, 16);
+    }
+  }
+
+  @Test public void testUniqueAcrossThreads() throws Exception {
+    PooledByteArrayGenerator generator = PooledByteArrayGenerator.builder().capacity(64).drbg(true).build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<byte[]>>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(() -> {
+          List<byte[]> values = new ArrayList<>();
+          for (int j = 0; j < 2_000; j++) {
+            values.add(generator.generate(8));
+          }
+          return values;
+        }));
+      }
+      Set<ByteBuffer> unique = new HashSet<>();
+      for (Future<List<byte[]>> future : futures) {
+        for (byte[] value : future.get(10, TimeUnit.SECONDS)) {
+          Assert.assertTrue(unique.add(ByteBuffer.wrap(value)));
+        }
+      }
+      Assert.assertEquals(8_000, unique.size());
+    } finally {
+      executor.shutdownNow();
+      generator.close();
+    }
+  }
+
+  @Test public void testClose() throws InterruptedException {
+    PooledByteArrayGenerator generator = PooledByteArrayGenerator.builder().capacity(4).build();
+    awaitAvailable(generator, 4);
+    generator.close();
+
+    Assert.assertEquals(0, generator.available());
+    Assert.assertEquals(8, generator.generate(8).length);
+  }
+
+  private static void awaitAvailable(PooledByteArrayGenerator generator, int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (generator.available() < expected) {
+      Assert.assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+  }
+}